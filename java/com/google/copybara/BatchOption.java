@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara;
+
+/**
+ * An {@link Option} with state that the jobs of a batch can share, like the references fetched
+ * from remote repositories. Every job has its own options, since some of them are modified while
+ * the job runs.
+ */
+public interface BatchOption extends Option {
+
+  /**
+   * Makes this option, that belongs to one job, share the state of {@code batchOption}, the
+   * option of the same class that belongs to the whole batch.
+   */
+  void shareBatchState(BatchOption batchOption);
+}
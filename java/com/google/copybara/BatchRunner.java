@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.config.ConfigFile;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Runs the workflows of a batch of jobs concurrently in the same JVM.
+ *
+ * <p>Compared to running every job in its own process, the JVM starts once and the jobs share the
+ * state of the {@link BatchOption}s, like the references fetched from the origins. The number of
+ * jobs that write to the same destination at the same time is limited, since their commits would
+ * race. Destinations are identified by their description (For example the url, fetch and push
+ * references of a git destination).
+ */
+public class BatchRunner {
+
+  private static final Logger logger = Logger.getLogger(BatchRunner.class.getName());
+
+  /**
+   * A workflow to run, with the options of the job.
+   */
+  public static final class Job {
+
+    private final ConfigFile config;
+    private final String workflowName;
+    @Nullable
+    private final String sourceRef;
+    private final Options options;
+    private final Path workdir;
+
+    public Job(ConfigFile config, String workflowName, @Nullable String sourceRef, Options options,
+        Path workdir) {
+      this.config = Preconditions.checkNotNull(config);
+      this.workflowName = Preconditions.checkNotNull(workflowName);
+      this.sourceRef = sourceRef;
+      this.options = Preconditions.checkNotNull(options);
+      this.workdir = Preconditions.checkNotNull(workdir);
+    }
+
+    @Override
+    public String toString() {
+      return config.path() + " " + workflowName + (sourceRef == null ? "" : " " + sourceRef);
+    }
+  }
+
+  /**
+   * The outcome of a {@link Job}.
+   */
+  public static final class Result {
+
+    private final Job job;
+    @Nullable
+    private final Exception failure;
+    private final long millis;
+
+    private Result(Job job, @Nullable Exception failure, long millis) {
+      this.job = job;
+      this.failure = failure;
+      this.millis = millis;
+    }
+
+    public Job getJob() {
+      return job;
+    }
+
+    /**
+     * Returns why the job failed, or null if it succeeded.
+     */
+    @Nullable
+    public Exception getFailure() {
+      return failure;
+    }
+
+    /**
+     * Returns the time that the job took, including the time waiting for its destination.
+     */
+    public long getMillis() {
+      return millis;
+    }
+  }
+
+  private final Copybara copybara;
+  private final int workers;
+  private final int destinationConcurrency;
+  private final Map<String, Semaphore> destinationPermits = new HashMap<>();
+
+  /**
+   * @param workers maximum number of jobs running at the same time
+   * @param destinationConcurrency maximum number of jobs writing to the same destination at the
+   *     same time
+   */
+  public BatchRunner(Copybara copybara, int workers, int destinationConcurrency) {
+    Preconditions.checkArgument(workers > 0, "workers must be greater than zero: %s", workers);
+    Preconditions.checkArgument(destinationConcurrency > 0,
+        "destinationConcurrency must be greater than zero: %s", destinationConcurrency);
+    this.copybara = Preconditions.checkNotNull(copybara);
+    this.workers = workers;
+    this.destinationConcurrency = destinationConcurrency;
+  }
+
+  /**
+   * Returns the {@link Options} of a job of the batch, that share the state of their
+   * {@link BatchOption}s with the options of the same class in {@code batchOptions}.
+   *
+   * @param jobOptions new instances of the options, that are not used by any other job
+   */
+  public static Options jobOptions(Iterable<? extends Option> jobOptions, Options batchOptions) {
+    for (Option option : jobOptions) {
+      if (option instanceof BatchOption) {
+        ((BatchOption) option).shareBatchState(
+            batchOptions.<BatchOption>get(option.getClass().asSubclass(BatchOption.class)));
+      }
+    }
+    return new Options(jobOptions);
+  }
+
+  /**
+   * Runs {@code jobs} and returns their results in the same order. A job that fails doesn't stop
+   * the rest.
+   */
+  public ImmutableList<Result> run(List<Job> jobs) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(workers, jobs.size())),
+        new ThreadFactoryBuilder()
+            .setNameFormat("copybara-batch-%d")
+            .setDaemon(true)
+            .build());
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (final Job job : jobs) {
+        futures.add(executor.submit(new Callable<Result>() {
+          @Override
+          public Result call() throws InterruptedException {
+            return runJob(job);
+          }
+        }));
+      }
+      ImmutableList.Builder<Result> results = ImmutableList.builder();
+      for (Future<Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+      return results.build();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Result runJob(Job job) throws InterruptedException {
+    long start = System.nanoTime();
+    Exception failure = null;
+    try {
+      Config config = copybara.loadConfig(job.options, job.config, job.workflowName);
+      if (!job.options.get(GeneralOptions.class).isValidate()) {
+        Workflow<?> workflow = config.getActiveWorkflow();
+        Semaphore permits = destinationPermits(workflow.destination());
+        permits.acquire();
+        try {
+          workflow.run(job.workdir, job.sourceRef);
+        } finally {
+          permits.release();
+        }
+      }
+    } catch (RepoException | ValidationException | IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, "Job '" + job + "' failed", e);
+      failure = e;
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.log(Level.INFO, String.format("Job '%s' finished in %d ms", job, millis));
+    return new Result(job, failure, millis);
+  }
+
+  private synchronized Semaphore destinationPermits(Destination destination) {
+    String key = destination.toString();
+    Semaphore permits = destinationPermits.get(key);
+    if (permits == null) {
+      permits = new Semaphore(destinationConcurrency);
+      destinationPermits.put(key, permits);
+    }
+    return permits;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the changes of an iterative migration ahead of time, so that the next changes are
+ * prepared (For example checked out and transformed) while the current one is written to the
+ * destination.
+ *
+ * <p>At most {@code lookAhead} changes after the one being consumed are prepared in advance. They
+ * are prepared one at a time and in order in a background thread, since origin readers are not
+ * required to support concurrent checkouts. Every change in flight gets its own working directory,
+ * that is reused once the change has been consumed.
+ *
+ * <p>Results have to be consumed in order. Closing the pipeline discards the changes that were
+ * not consumed, waiting for the one being prepared to finish.
+ */
+final class ChangePipeline<T> implements AutoCloseable {
+
+  /**
+   * Prepares one change of the migration.
+   */
+  interface Preparer<T> {
+
+    /**
+     * Prepares the change at position {@code index} using {@code workdir} as working directory.
+     */
+    T prepare(int index, Path workdir) throws RepoException, IOException, ValidationException;
+  }
+
+  private final Preparer<T> preparer;
+  private final int size;
+  private final int lookAhead;
+  private final Path workdir;
+  private final ExecutorService executor;
+  private final Deque<Future<T>> pending = new ArrayDeque<>();
+  private int nextToSubmit = 0;
+  private int nextToConsume = 0;
+
+  /**
+   * @param preparer how to prepare every change
+   * @param size number of changes of the migration
+   * @param lookAhead maximum number of changes prepared in advance. Must be greater than zero
+   * @param workdir directory where the working directories of the changes in flight are created
+   */
+  ChangePipeline(Preparer<T> preparer, int size, int lookAhead, Path workdir) {
+    Preconditions.checkArgument(lookAhead > 0, "Invalid look-ahead: %s", lookAhead);
+    this.preparer = Preconditions.checkNotNull(preparer);
+    this.size = size;
+    this.lookAhead = lookAhead;
+    this.workdir = Preconditions.checkNotNull(workdir);
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("copybara-change-pipeline-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /**
+   * Returns the prepared change at position {@code index}, waiting for it if needed, and starts
+   * preparing the following ones. If preparing the change failed, the same exception is thrown.
+   *
+   * <p>The working directory of the change is valid until the next change is requested.
+   */
+  T get(int index) throws RepoException, IOException, ValidationException {
+    Preconditions.checkArgument(index == nextToConsume,
+        "Changes must be consumed in order. Expected %s but got %s", nextToConsume, index);
+    Preconditions.checkElementIndex(index, size);
+    nextToConsume++;
+    // The change that was consumed before is done, so its working directory can be reused.
+    while (nextToSubmit < size && nextToSubmit <= index + lookAhead) {
+      submit(nextToSubmit++);
+    }
+    try {
+      return Uninterruptibles.getUninterruptibly(pending.removeFirst());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfPossible(cause, RepoException.class, IOException.class);
+      Throwables.propagateIfInstanceOf(cause, ValidationException.class);
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private void submit(final int index) {
+    final Path changeWorkdir = workdir.resolve(String.valueOf(index % (lookAhead + 1)));
+    pending.addLast(executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        Files.createDirectories(changeWorkdir);
+        return preparer.prepare(index, changeWorkdir);
+      }
+    }));
+  }
+
+  @Override
+  public void close() {
+    for (Future<T> future : pending) {
+      future.cancel(/*mayInterruptIfRunning=*/ false);
+    }
+    pending.clear();
+    executor.shutdown();
+    // Don't leave a change being prepared: it could still be writing its working directory.
+    boolean interrupted = false;
+    while (!executor.isTerminated()) {
+      try {
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -63,29 +63,36 @@ public class Copybara {
         new GitOptions(homeDir),
         new GitDestinationOptions(),
         new GerritOptions(),
-        new WorkflowOptions());
+        new WorkflowOptions(homeDir));
   }
 
   public void run(Options options, ConfigFile configContents, String workflowName,
       Path baseWorkdir, @Nullable String sourceRef)
       throws RepoException, ValidationException, IOException {
-    options.get(WorkflowOptions.class).setWorkflowName(workflowName);
     GeneralOptions generalOptions = options.get(GeneralOptions.class);
     Preconditions.checkArgument(!generalOptions.isValidate(), "Call validate() instead");
-    Config config = skylarkParser.loadConfig(configContents, options);
-    Console console = generalOptions.console();
-    console.progress("Validating configuration");
-
-    validateConfig(options, config);
+    Config config = loadConfig(options, configContents, workflowName);
 
     config.getActiveWorkflow().run(baseWorkdir, sourceRef);
   }
 
   public void validate(Options options, ConfigFile configContent, String workflowName)
       throws RepoException, ValidationException, IOException {
+    loadConfig(options, configContent, workflowName);
+  }
+
+  /**
+   * Loads and validates the config, with {@code workflowName} as the active workflow.
+   */
+  Config loadConfig(Options options, ConfigFile configContents, String workflowName)
+      throws ValidationException, IOException {
     options.get(WorkflowOptions.class).setWorkflowName(workflowName);
-    Config config = skylarkParser.loadConfig(configContent, options);
+    Config config = skylarkParser.loadConfig(configContents, options);
+    Console console = options.get(GeneralOptions.class).console();
+    console.progress("Validating configuration");
+
     validateConfig(options, config);
+    return config;
   }
 
   private void validateConfig(Options options, Config config) throws ValidationException {
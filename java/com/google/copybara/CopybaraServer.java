@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.config.ConfigFile;
+import com.google.copybara.config.RecordingConfigFile;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.Console;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Runs workflows on request in a long-running process, listening for HTTP requests on the
+ * loopback interface.
+ *
+ * <p>Compared to running every workflow in its own process, the JVM and the Skylark modules are
+ * initialized once, and the caches of the process (Like the {@code git cat-file} processes of the
+ * git repositories) are kept between requests. The loaded config of every workflow is reused
+ * while none of the config files that it read change, together with the options that it was
+ * loaded with. Requests for the same workflow are serialized.
+ *
+ * <p>Requests are {@code POST}s to {@code /migrate} or {@code /validate}, with the positional
+ * arguments of a workflow as the body: {@code CONFIG_PATH [WORKFLOW_NAME [SOURCE_REF]]}. The
+ * response is a line with the {@link ExitCode} and the time that the request took, and the error
+ * message if it failed. {@code POST /shutdown} stops the server.
+ *
+ * <p>The server runs migrations with the credentials of its user, so every request must send in
+ * the {@value #TOKEN_HEADER} header the random token that the server writes at startup to a file
+ * only readable by that user. Requests with an {@code Origin} header are rejected, since they come
+ * from a web page, that can send a {@code POST} to the loopback interface without a CORS
+ * preflight.
+ */
+public class CopybaraServer {
+
+  private static final Logger logger = Logger.getLogger(CopybaraServer.class.getName());
+
+  /**
+   * Header of the requests with the token of the server.
+   */
+  public static final String TOKEN_HEADER = "X-Copybara-Token";
+
+  private static final int TOKEN_BYTES = 32;
+
+  /**
+   * Creates the objects needed for loading the config of a workflow.
+   */
+  public interface Loader {
+
+    /**
+     * Returns the config file in {@code configPath}.
+     */
+    ConfigFile configFile(String configPath)
+        throws IOException, CommandLineException, ValidationException;
+
+    /**
+     * Returns new options for running the workflow {@code workflowName}, that are not used by any
+     * other workflow.
+     */
+    Options newOptions(String workflowName) throws IOException;
+  }
+
+  /**
+   * A workflow with its config loaded.
+   */
+  private static final class LoadedWorkflow {
+
+    private final RecordingConfigFile configFile;
+    private final Options options;
+    private final Config config;
+    private final Path workdir;
+
+    private LoadedWorkflow(RecordingConfigFile configFile, Options options, Config config,
+        Path workdir) {
+      this.configFile = configFile;
+      this.options = options;
+      this.config = config;
+      this.workdir = workdir;
+    }
+  }
+
+  private final Copybara copybara;
+  private final Loader loader;
+  private final Path baseWorkdir;
+  private final Console console;
+  // Lock for the requests of every workflow, by config path and workflow name
+  private final Map<String, Object> workflowLocks = new HashMap<>();
+  private final Map<String, LoadedWorkflow> loadedWorkflows = new HashMap<>();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private int workdirs = 0;
+  @Nullable private HttpServer server;
+  @Nullable private ExecutorService executor;
+  @Nullable private Path tokenFile;
+  @Nullable private byte[] token;
+
+  public CopybaraServer(Copybara copybara, Loader loader, Path baseWorkdir, Console console) {
+    this.copybara = Preconditions.checkNotNull(copybara);
+    this.loader = Preconditions.checkNotNull(loader);
+    this.baseWorkdir = Preconditions.checkNotNull(baseWorkdir);
+    this.console = Preconditions.checkNotNull(console);
+  }
+
+  /**
+   * Listens on {@code port} of the loopback interface (A free port if 0) until a shutdown
+   * request is received, running up to {@code workers} requests at the same time.
+   *
+   * @param tokenFile file where the token of the requests is written
+   */
+  public void serve(int port, int workers, Path tokenFile)
+      throws IOException, InterruptedException {
+    start(port, workers, tokenFile);
+    awaitShutdown();
+  }
+
+  /**
+   * Starts listening on {@code port} of the loopback interface (A free port if 0), running up to
+   * {@code workers} requests at the same time, and returns the address of the server.
+   *
+   * @param tokenFile file where the token of the requests is written. It is deleted on shutdown
+   */
+  InetSocketAddress start(int port, int workers, Path tokenFile) throws IOException {
+    Preconditions.checkArgument(workers > 0, "workers must be greater than zero: %s", workers);
+    Preconditions.checkState(server == null, "Already started");
+    byte[] token = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(token);
+    this.token = BaseEncoding.base16().lowerCase().encode(token).getBytes(UTF_8);
+    this.tokenFile = tokenFile;
+    writeToken(tokenFile, this.token);
+
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), /*backlog=*/0);
+    executor = Executors.newFixedThreadPool(workers,
+        new ThreadFactoryBuilder()
+            .setNameFormat("copybara-server-%d")
+            .setDaemon(true)
+            .build());
+    server.setExecutor(executor);
+    server.createContext("/migrate", new WorkflowHandler(/*validate=*/false));
+    server.createContext("/validate", new WorkflowHandler(/*validate=*/true));
+    server.createContext("/shutdown", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (checkRequest(exchange)) {
+            respond(exchange, 200, "Shutting down\n");
+            stopped.countDown();
+          }
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+    console.info("Listening on http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + ". The token of the requests is in " + tokenFile);
+    return server.getAddress();
+  }
+
+  /**
+   * Waits for a shutdown request and stops the server.
+   */
+  void awaitShutdown() throws IOException, InterruptedException {
+    Preconditions.checkState(server != null, "Not started");
+    try {
+      stopped.await();
+    } finally {
+      server.stop(/*delay=*/0);
+      executor.shutdownNow();
+      Files.deleteIfExists(tokenFile);
+    }
+  }
+
+  /**
+   * Writes {@code token} to a new {@code file} only readable and writable by the user.
+   */
+  private static void writeToken(Path file, byte[] token) throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    // Never reuse an existing file, that could be readable by others
+    Files.deleteIfExists(file);
+    Files.createFile(file, PosixFilePermissions.asFileAttribute(
+        EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    Files.write(file, token);
+  }
+
+  private class WorkflowHandler implements HttpHandler {
+
+    private final boolean validate;
+
+    private WorkflowHandler(boolean validate) {
+      this.validate = validate;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        if (!checkRequest(exchange)) {
+          return;
+        }
+        String request = new String(ByteStreams.toByteArray(exchange.getRequestBody()), UTF_8);
+        long start = System.nanoTime();
+        ExitCode exitCode = ExitCode.SUCCESS;
+        String detail;
+        try {
+          detail = run(MainArguments.parseLine(request.trim()), validate);
+        } catch (CommandLineException e) {
+          exitCode = ExitCode.COMMAND_LINE_ERROR;
+          detail = e.getMessage();
+        } catch (ValidationException e) {
+          exitCode = ExitCode.CONFIGURATION_ERROR;
+          detail = e.getMessage();
+        } catch (RepoException e) {
+          exitCode = ExitCode.REPOSITORY_ERROR;
+          detail = e.getMessage();
+        } catch (IOException e) {
+          exitCode = ExitCode.ENVIRONMENT_ERROR;
+          detail = e.getMessage();
+        } catch (RuntimeException e) {
+          logger.log(Level.SEVERE, "Unexpected error running '" + request.trim() + "'", e);
+          exitCode = ExitCode.INTERNAL_ERROR;
+          detail = "Unexpected error (please file a bug): " + e;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        String response = String.format("%s %d ms: %s\n", exitCode, millis, detail);
+        logger.log(Level.INFO, String.format("%s '%s': %s", exchange.getRequestURI().getPath(),
+            request.trim(), response.trim()));
+        int status = exitCode == ExitCode.SUCCESS
+            ? 200
+            : exitCode == ExitCode.COMMAND_LINE_ERROR ? 400 : 500;
+        respond(exchange, status, response);
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  /**
+   * Runs or validates the workflow and returns a description of what was done.
+   */
+  private String run(MainArguments args, boolean validate)
+      throws CommandLineException, ValidationException, RepoException, IOException {
+    String key = args.getConfigPath() + " " + args.getWorkflowName();
+    Object lock;
+    synchronized (workflowLocks) {
+      lock = workflowLocks.get(key);
+      if (lock == null) {
+        lock = new Object();
+        workflowLocks.put(key, lock);
+      }
+    }
+    synchronized (lock) {
+      LoadedWorkflow loaded;
+      synchronized (loadedWorkflows) {
+        loaded = loadedWorkflows.get(key);
+      }
+      String loadDetail = "config reused";
+      if (loaded == null || !loaded.configFile.isUpToDate()) {
+        loadDetail = loaded == null ? "config loaded" : "config reloaded";
+        loaded = load(args, loaded == null ? null : loaded.workdir);
+        synchronized (loadedWorkflows) {
+          loadedWorkflows.put(key, loaded);
+        }
+      }
+      if (validate) {
+        return "Configuration is valid (" + loadDetail + ")";
+      }
+      loaded.config.getActiveWorkflow().run(loaded.workdir, args.getSourceRef());
+      return "Migrated (" + loadDetail + ")";
+    }
+  }
+
+  private LoadedWorkflow load(MainArguments args, @Nullable Path workdir)
+      throws CommandLineException, ValidationException, IOException {
+    RecordingConfigFile configFile =
+        new RecordingConfigFile(loader.configFile(args.getConfigPath()));
+    Options options = loader.newOptions(args.getWorkflowName());
+    Config config = copybara.loadConfig(options, configFile, args.getWorkflowName());
+    if (workdir == null) {
+      synchronized (this) {
+        workdir = Files.createDirectories(baseWorkdir.resolve("workflow-" + workdirs++));
+      }
+    }
+    return new LoadedWorkflow(configFile, options, config, workdir);
+  }
+
+  /**
+   * Returns true if the request can be handled. Otherwise it responds with an error.
+   */
+  private boolean checkRequest(HttpExchange exchange) throws IOException {
+    if (exchange.getRequestHeaders().containsKey("Origin")) {
+      logger.log(Level.WARNING, "Rejected request from " + exchange.getRequestHeaders()
+          .getFirst("Origin") + " to " + exchange.getRequestURI().getPath());
+      respond(exchange, 403, "Requests from web pages are not allowed\n");
+      return false;
+    }
+    String requestToken = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+    if (requestToken == null || !MessageDigest.isEqual(token, requestToken.getBytes(UTF_8))) {
+      respond(exchange, 403, "Missing or wrong " + TOKEN_HEADER + " header\n");
+      return false;
+    }
+    if (!exchange.getRequestMethod().equals("POST")) {
+      respond(exchange, 405, "Only POST requests are supported\n");
+      return false;
+    }
+    return true;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -456,7 +456,8 @@ public class Core implements OptionsAwareModule {
       return VerifyMatch.create(location,
           regex,
           paths,
-          verifyNoMatch);
+          verifyNoMatch,
+          self.workflowOptions);
     }
   };
 
@@ -80,6 +80,23 @@ public interface Destination {
         throws RepoException, IOException;
   }
 
+  /**
+   * A {@link Writer} that can delay writing some revisions to the destination, for example to
+   * push several of them at once.
+   *
+   * <p>{@link #flush(Console)} is called after the last revision of the migration has been
+   * written, and also if the migration fails, so that the revisions that were written
+   * successfully are not lost. It is the last call to the writer, so it also releases the
+   * resources of the writer, like temporary directories.
+   */
+  interface BufferedWriter extends Writer {
+
+    /**
+     * Writes to the destination all the revisions whose writing was delayed.
+     */
+    void flush(Console console) throws RepoException, IOException;
+  }
+
   /**
    * Creates a writer which is capable of writing to this destination. This writer may maintain
    * state between writing of revisions.
@@ -28,6 +28,7 @@ import com.google.copybara.util.ExitCode;
 import com.google.copybara.util.console.AnsiConsole;
 import com.google.copybara.util.console.Console;
 import com.google.copybara.util.console.LogConsole;
+import com.google.copybara.util.console.ProgressPrefixConsole;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -103,15 +104,19 @@ public class Main {
       allOptions.add(generalOptions);
       Options options = new Options(allOptions);
 
-      final Path configPath = fs.getPath(mainArgs.getConfigPath());
-      if (generalOptions.isValidate()) {
-        ConfigFile skylarkContent = loadConfig(/*skylark=*/ configPath,
-            generalOptions.getConfigRoot());
+      if (mainArgs.getBatchFile() != null) {
+        runBatch(copybara, args, mainArgs, options, generalOptions.getConfigRoot(), console, fs);
+      } else if (mainArgs.getServerPort() != null) {
+        runServer(copybara, args, mainArgs, generalOptions.getConfigRoot(),
+            generalOptions.getHomeDir(), console, fs);
+      } else if (generalOptions.isValidate()) {
+        ConfigFile skylarkContent = loadConfig(
+            /*skylark=*/ fs.getPath(mainArgs.getConfigPath()), generalOptions.getConfigRoot());
         copybara.validate(options, skylarkContent, mainArgs.getWorkflowName());
       } else {
         copybara.run(
             options,
-            loadConfig(configPath, generalOptions.getConfigRoot()),
+            loadConfig(fs.getPath(mainArgs.getConfigPath()), generalOptions.getConfigRoot()),
             mainArgs.getWorkflowName(),
             mainArgs.getBaseWorkdir(fs),
             mainArgs.getSourceRef());
@@ -129,6 +134,9 @@ public class Main {
       System.exit(ExitCode.CONFIGURATION_ERROR.getCode());
     } catch (IOException e) {
       handleUnexpectedError(console, ExitCode.ENVIRONMENT_ERROR, e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      handleUnexpectedError(console, ExitCode.INTERRUPTED, "Execution was interrupted.", e);
     } catch (RuntimeException e) {
       // This usually indicates a serious programming error that will require Copybara team
       // intervention. Print stack trace without concern for presentation.
@@ -146,8 +154,103 @@ public class Main {
     }
   }
 
+  /**
+   * Runs the workflows of the {@code --batch} file concurrently.
+   *
+   * <p>Every workflow has its own options, parsed from the same {@code args}, since some options
+   * are modified by the workflows. The state that can be shared, like the references fetched from
+   * the origins, is shared through {@code batchOptions}.
+   */
+  private void runBatch(Copybara copybara, String[] args, MainArguments mainArgs,
+      Options batchOptions, @Nullable Path rootCfgPath, Console console, FileSystem fs)
+      throws IOException, CommandLineException, RepoException, ValidationException,
+      InterruptedException {
+    Path baseWorkdir = mainArgs.getBaseWorkdir(fs);
+    List<MainArguments> jobArgs = mainArgs.getBatchJobs(fs);
+    List<BatchRunner.Job> jobs = new ArrayList<>();
+    for (int i = 0; i < jobArgs.size(); i++) {
+      MainArguments job = jobArgs.get(i);
+      jobs.add(new BatchRunner.Job(
+          loadConfig(fs.getPath(job.getConfigPath()), rootCfgPath),
+          job.getWorkflowName(),
+          job.getSourceRef(),
+          BatchRunner.jobOptions(
+              newWorkflowOptions(copybara, args, job.getWorkflowName(), console, fs),
+              batchOptions),
+          Files.createDirectories(baseWorkdir.resolve("job-" + i))));
+    }
+
+    console.progress(String.format("Running %d workflows with %d workers",
+        jobs.size(), mainArgs.getBatchWorkers()));
+    List<BatchRunner.Result> results = new BatchRunner(copybara, mainArgs.getBatchWorkers(),
+        mainArgs.getBatchDestinationConcurrency()).run(jobs);
+    int failed = 0;
+    for (BatchRunner.Result result : results) {
+      if (result.getFailure() == null) {
+        console.info(String.format("Workflow '%s' succeeded in %d ms",
+            result.getJob(), result.getMillis()));
+      } else {
+        failed++;
+        console.error(String.format("Workflow '%s' failed in %d ms: %s",
+            result.getJob(), result.getMillis(), result.getFailure().getMessage()));
+      }
+    }
+    if (failed > 0) {
+      throw new RepoException(
+          String.format("%d of %d workflows of the batch failed", failed, results.size()));
+    }
+  }
+
+  /**
+   * Runs workflows on request until the server is shut down. See {@link CopybaraServer}.
+   */
+  private void runServer(final Copybara copybara, final String[] args, MainArguments mainArgs,
+      @Nullable final Path rootCfgPath, Path homeDir, final Console console, final FileSystem fs)
+      throws IOException, InterruptedException {
+    new CopybaraServer(copybara, new CopybaraServer.Loader() {
+      @Override
+      public ConfigFile configFile(String configPath)
+          throws IOException, CommandLineException, ValidationException {
+        // Not logging the content, since the server reads the files for checking if they changed
+        return pathBasedConfigFile(fs.getPath(configPath), rootCfgPath);
+      }
+
+      @Override
+      public Options newOptions(String workflowName) throws IOException {
+        return new Options(newWorkflowOptions(copybara, args, workflowName, console, fs));
+      }
+    }, mainArgs.getBaseWorkdir(fs), console)
+        .serve(mainArgs.getServerPort(), mainArgs.getServerWorkers(),
+            mainArgs.getServerTokenFile(fs, homeDir));
+  }
+
+  /**
+   * Returns new instances of all the options, parsed from {@code args}, for one of the workflows
+   * that run in this process. Some options are modified by the workflows, so every workflow needs
+   * its own.
+   */
+  private List<Option> newWorkflowOptions(Copybara copybara, String[] args, String workflowName,
+      Console console, FileSystem fs) throws IOException {
+    List<Option> options = new ArrayList<>(copybara.getAllOptions());
+    GeneralOptions.Args generalOptionsArgs = new GeneralOptions.Args();
+    new JCommander(ImmutableList.builder()
+        .addAll(options)
+        .add(new MainArguments())
+        .add(generalOptionsArgs)
+        .build())
+        .parse(args);
+    options.add(generalOptionsArgs.init(System.getenv(), fs,
+        new ProgressPrefixConsole("[" + workflowName + "] ", console)));
+    return options;
+  }
+
   private ConfigFile loadConfig(Path configPath, @Nullable Path rootCfgPath)
       throws IOException, CommandLineException, ValidationException {
+    return pathBasedConfigFile(configPath, rootCfgPath).withContentLogging();
+  }
+
+  private PathBasedConfigFile pathBasedConfigFile(Path configPath, @Nullable Path rootCfgPath)
+      throws IOException, CommandLineException, ValidationException {
     String fileName = configPath.getFileName().toString();
 
     ValidationException.checkCondition(
@@ -163,7 +266,7 @@ public class Main {
     if (root == null) {
       root = findConfigRootHeuristic(configPath.toAbsolutePath());
     }
-    return new PathBasedConfigFile(configPath.toAbsolutePath(), root).withContentLogging();
+    return new PathBasedConfigFile(configPath.toAbsolutePath(), root);
   }
 
   /**
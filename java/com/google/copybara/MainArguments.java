@@ -16,6 +16,10 @@
 
 package com.google.copybara;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 
 import com.beust.jcommander.Parameter;
@@ -50,6 +54,39 @@ public final class MainArguments {
       + " will be performed. By default a temporary directory.")
   String baseWorkdir;
 
+  @Parameter(names = "--batch", description = "File with workflows to run concurrently in this"
+      + " process, one per line, with the same format as the positional arguments:"
+      + " CONFIG_PATH [WORKFLOW_NAME [SOURCE_REF]]. Empty lines and lines starting with '#' are"
+      + " ignored. Every workflow uses a subdirectory of --work-dir.")
+  String batchFile;
+
+  @Parameter(names = "--batch-workers",
+      description = "Maximum number of workflows of a --batch running at the same time.")
+  int batchWorkers = 4;
+
+  @Parameter(names = "--batch-destination-concurrency",
+      description = "Maximum number of workflows of a --batch writing to the same destination at"
+          + " the same time.")
+  int batchDestinationConcurrency = 1;
+
+  @Parameter(names = "--server-port", description = "Instead of running a workflow, listen on this"
+      + " port of the loopback interface for requests to run workflows, keeping the configs and"
+      + " the caches loaded between requests. 0 picks a free port. The requests are HTTP POSTs to"
+      + " /migrate or /validate, with the positional arguments of a workflow as the body and the"
+      + " token of --server-token-file in the " + CopybaraServer.TOKEN_HEADER + " header. POST"
+      + " /shutdown stops the server.")
+  Integer serverPort;
+
+  @Parameter(names = "--server-token-file", description = "File where a --server-port server"
+      + " writes the token that every request has to send in the " + CopybaraServer.TOKEN_HEADER
+      + " header. The file is only readable by the user. By default"
+      + " $HOME/.copybara/server_token.")
+  String serverTokenFile;
+
+  @Parameter(names = "--server-workers",
+      description = "Maximum number of requests that a --server-port server runs at the same time.")
+  int serverWorkers = 4;
+
   String getConfigPath() {
     return unnamed.get(0);
   }
@@ -71,6 +108,69 @@ public final class MainArguments {
     }
   }
 
+  @Nullable
+  String getBatchFile() {
+    return batchFile;
+  }
+
+  int getBatchWorkers() {
+    return Math.max(1, batchWorkers);
+  }
+
+  int getBatchDestinationConcurrency() {
+    return Math.max(1, batchDestinationConcurrency);
+  }
+
+  @Nullable
+  Integer getServerPort() {
+    return serverPort;
+  }
+
+  Path getServerTokenFile(FileSystem fs, Path homeDir) {
+    return serverTokenFile == null
+        ? homeDir.resolve(".copybara/server_token")
+        : fs.getPath(serverTokenFile);
+  }
+
+  int getServerWorkers() {
+    return Math.max(1, serverWorkers);
+  }
+
+  /**
+   * Returns the arguments of the workflows in the {@code --batch} file.
+   */
+  List<MainArguments> getBatchJobs(FileSystem fs) throws IOException, CommandLineException {
+    List<MainArguments> jobs = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(fs.getPath(batchFile), UTF_8)) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        jobs.add(parseLine(line));
+      } catch (CommandLineException e) {
+        throw new CommandLineException(
+            String.format("Invalid workflow in %s:%d: %s", batchFile, lineNumber, e.getMessage()));
+      }
+    }
+    return jobs;
+  }
+
+  /**
+   * Parses the positional arguments of a workflow, separated by spaces, like in the lines of the
+   * {@code --batch} file.
+   */
+  static MainArguments parseLine(String line) throws CommandLineException {
+    MainArguments job = new MainArguments();
+    // The source ref can contain spaces, like in "http://example.com/repo branch"
+    job.unnamed = new ArrayList<>(Splitter.on(CharMatcher.anyOf(" \t"))
+        .omitEmptyStrings().trimResults().limit(3).splitToList(line));
+    job.validateUnnamedArgs();
+    return job;
+  }
+
   /**
    * Returns the base working directory. This method should not be accessed directly by any other
    * class but Main.
@@ -106,7 +206,19 @@ public final class MainArguments {
   }
 
   void validateUnnamedArgs() throws CommandLineException {
-    if (unnamed.size() < 1) {
+    if (batchFile != null && serverPort != null) {
+      throw new CommandLineException("--batch and --server-port cannot be used together.");
+    } else if (batchFile != null) {
+      if (!unnamed.isEmpty()) {
+        throw new CommandLineException(
+            "Positional arguments cannot be used with --batch. Add them to the batch file.");
+      }
+    } else if (serverPort != null) {
+      if (!unnamed.isEmpty()) {
+        throw new CommandLineException("Positional arguments cannot be used with --server-port."
+            + " Send them in the requests.");
+      }
+    } else if (unnamed.size() < 1) {
       throw new CommandLineException("Expected at least a configuration file.");
     } else if (unnamed.size() > 3) {
       throw new CommandLineException("Expect at most three arguments.");
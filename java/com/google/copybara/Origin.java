@@ -116,6 +116,24 @@ public interface Origin<R extends Origin.Reference> {
     void visitChanges(R start, ChangesVisitor visitor) throws RepoException;
   }
 
+  /**
+   * A {@link Reader} that can update a previous checkout instead of checking out from scratch.
+   */
+  interface IncrementalReader<R extends Origin.Reference> extends Reader<R> {
+
+    /**
+     * Like {@link #checkout(Reference, Path)}, but {@code workdir} can contain the result of the
+     * previous call to this method, possibly modified afterwards (for example by
+     * transformations). Only the files that differ from the contents of {@code ref} are written.
+     *
+     * <p>If {@code workdir} is not the directory used in the previous call, any content in it is
+     * removed.
+     *
+     * @throws RepoException if any error happens during the checkout or workdir preparation.
+     */
+    void checkoutIncremental(R ref, Path workdir) throws RepoException;
+  }
+
   /**
    * Creates a new reader of this origin.
    *
@@ -21,13 +21,15 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Destination.WriterResult;
+import com.google.copybara.util.ContentCache;
 import com.google.copybara.util.DiffUtil;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.TreeDiff;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -103,7 +105,7 @@ public abstract class Workflow<R extends Origin.Reference> {
   public void run(Path workdir, @Nullable String sourceRef)
       throws RepoException, IOException, ValidationException {
     console().progress("Cleaning working directory");
-    FileUtil.deleteAllFilesRecursively(workdir);
+    workflowOptions().getWorkdirCleaner().clean(workdir);
 
     console().progress("Getting last revision: "
         + "Resolving " + ((sourceRef == null) ? "origin reference" : sourceRef));
@@ -114,7 +116,35 @@ public abstract class Workflow<R extends Origin.Reference> {
             configName(), name(), resolvedRef.asString(),
             this.toString()));
     logger.log(Level.INFO, String.format("Using working directory : %s", workdir));
-    mode().run(new RunHelper(workdir, resolvedRef));
+    ContentCache transformCache = workflowOptions().getTransformCache();
+    int hits = transformCache == null ? 0 : transformCache.getHits();
+    int misses = transformCache == null ? 0 : transformCache.getMisses();
+    RunHelper runHelper = new RunHelper(workdir, resolvedRef);
+    try {
+      mode().run(runHelper);
+    } catch (RepoException | IOException | ValidationException | RuntimeException e) {
+      // Don't lose the changes that were written successfully before the failure
+      try {
+        runHelper.flush();
+      } catch (RepoException | IOException flushError) {
+        e.addSuppressed(flushError);
+      }
+      throw e;
+    }
+    runHelper.flush();
+    if (transformCache != null) {
+      reportCacheHitRate(transformCache.getHits() - hits, transformCache.getMisses() - misses);
+    }
+  }
+
+  private void reportCacheHitRate(int hits, int misses) {
+    int lookups = hits + misses;
+    if (lookups == 0) {
+      return;
+    }
+    console().info(String.format(
+        "Transformation cache: %d of %d transformed files reused (%d%% hit rate)",
+        hits, lookups, hits * 100 / lookups));
   }
 
   final class RunHelper {
@@ -122,6 +152,11 @@ public abstract class Workflow<R extends Origin.Reference> {
     final R resolvedRef;
     private final Origin.Reader<R> reader;
     private final Destination.Writer writer;
+    /**
+     * Number of incremental checkouts done since the last full checkout, or -1 if there was no
+     * checkout yet.
+     */
+    private int incrementalCheckouts = -1;
 
     /**
      * @param workdir working directory to use for the transformations
@@ -165,6 +200,13 @@ public abstract class Workflow<R extends Origin.Reference> {
       return reader;
     }
 
+    /**
+     * Working directory of the workflow.
+     */
+    Path getWorkdir() {
+      return workdir;
+    }
+
     /**
      * Performs a full migration, including checking out files from the origin, deleting excluded
      * files, transforming the code, and writing to the destination. This writes to the destination
@@ -185,13 +227,35 @@ public abstract class Workflow<R extends Origin.Reference> {
     WriterResult migrate(R ref, Console processConsole,
         Metadata metadata, Changes changes, @Nullable String destinationBaseline)
         throws IOException, RepoException, ValidationException {
-      processConsole.progress("Cleaning working directory");
-      FileUtil.deleteAllFilesRecursively(workdir);
-      Path checkoutDir = workdir.resolve("checkout");
-      Files.createDirectories(checkoutDir);
+      return write(
+          prepare(workdir, ref, processConsole, metadata, changes, destinationBaseline),
+          processConsole);
+    }
 
-      processConsole.progress("Checking out the change");
-      reader.checkout(ref, checkoutDir);
+    /**
+     * Prepares a migration for being written to the destination: Checks out the files from the
+     * origin, deletes the excluded files and transforms the code.
+     *
+     * <p>This method doesn't use the destination, so it can run for the next change while a
+     * previous one is being written.
+     *
+     * @param workdir working directory to use for this change. The working directory of the
+     *     workflow is updated incrementally if the options allow it
+     */
+    TransformResult prepare(Path workdir, R ref, Console processConsole,
+        Metadata metadata, Changes changes, @Nullable String destinationBaseline)
+        throws IOException, RepoException, ValidationException {
+      Path checkoutDir = workdir.resolve("checkout");
+      if (useIncrementalCheckout(workdir)) {
+        checkoutIncremental(ref, processConsole, checkoutDir);
+      } else {
+        processConsole.progress("Cleaning working directory");
+        workflowOptions().getWorkdirCleaner().clean(workdir);
+        Files.createDirectories(checkoutDir);
+
+        processConsole.progress("Checking out the change");
+        reader.checkout(ref, checkoutDir);
+      }
 
       // Remove excluded origin files.
       PathMatcher originFiles = originFiles().relativeTo(checkoutDir);
@@ -208,7 +272,8 @@ public abstract class Workflow<R extends Origin.Reference> {
       if (reverseTransformForCheck() != null) {
         console().progress("Making a copy or the workdir for reverse checking");
         originCopy = Files.createDirectories(workdir.resolve("origin"));
-        FileUtil.copyFilesRecursively(checkoutDir, originCopy);
+        // Transformations replace the files that they modify, so they don't change the snapshot
+        FileUtil.snapshotFilesRecursively(checkoutDir, originCopy);
       }
 
       TransformWork transformWork = new TransformWork(checkoutDir, metadata, changes);
@@ -217,15 +282,19 @@ public abstract class Workflow<R extends Origin.Reference> {
       if (reverseTransformForCheck() != null) {
         console().progress("Checking that the transformations can be reverted");
         Path reverse = Files.createDirectories(workdir.resolve("reverse"));
-        FileUtil.copyFilesRecursively(checkoutDir, reverse);
+        FileUtil.snapshotFilesRecursively(checkoutDir, reverse);
         reverseTransformForCheck().transform(
             new TransformWork(reverse, metadata, changes),
             processConsole);
-        String diff = new String(DiffUtil.diff(originCopy, reverse, verbose()),
-            StandardCharsets.UTF_8);
-        if (!diff.trim().isEmpty()) {
-          console().error("Non reversible transformations:\n"
-              + DiffUtil.colorize(console(), diff));
+        if (!TreeDiff.equal(originCopy, reverse)) {
+          console().error("Non reversible transformations:");
+          // Print the diff one file at a time, so that it is never fully in memory
+          TreeDiff.diff(originCopy, reverse, new TreeDiff.FileDiffHandler() {
+            @Override
+            public void fileDiff(String diff) {
+              console().error(DiffUtil.colorize(console(), diff));
+            }
+          });
           throw new ValidationException(String.format(
               "Workflow '%s' is not reversible", workflowOptions().getWorkflowName()));
         }
@@ -239,13 +308,52 @@ public abstract class Workflow<R extends Origin.Reference> {
         transformResult = transformResult.withBaseline(destinationBaseline);
       }
 
-      transformResult = transformResult.withAskForConfirmation(askForConfirmation());
+      return transformResult.withAskForConfirmation(askForConfirmation());
+    }
 
+    /**
+     * Writes a migration prepared with {@link #prepare} to the destination.
+     */
+    WriterResult write(TransformResult transformResult, Console processConsole)
+        throws IOException, RepoException, ValidationException {
       WriterResult result = writer.write(transformResult, processConsole);
       Verify.verifyNotNull(result, "Destination returned a null result.");
       return result;
     }
 
+    private boolean useIncrementalCheckout(Path workdir) {
+      return workdir.equals(this.workdir)
+          && mode() == WorkflowMode.ITERATIVE
+          && workflowOptions().isIncrementalCheckout()
+          && reader instanceof Origin.IncrementalReader;
+    }
+
+    /**
+     * Updates {@code checkoutDir}, that contains the previous change, to {@code ref}. Every
+     * {@link WorkflowOptions#getFullCheckoutInterval()} changes the checkout is done from scratch.
+     */
+    private void checkoutIncremental(R ref, Console processConsole, Path checkoutDir)
+        throws IOException, RepoException {
+      boolean full = incrementalCheckouts < 0
+          || incrementalCheckouts >= workflowOptions().getFullCheckoutInterval();
+      processConsole.progress("Cleaning working directory");
+      workflowOptions().getWorkdirCleaner().clean(
+          workdir, full ? ImmutableSet.<Path>of() : ImmutableSet.of(checkoutDir));
+      Files.createDirectories(checkoutDir);
+
+      processConsole.progress(full ? "Checking out the change" : "Updating the checkout");
+      ((Origin.IncrementalReader<R>) reader).checkoutIncremental(ref, checkoutDir);
+      incrementalCheckouts = full ? 0 : incrementalCheckouts + 1;
+    }
+
+    /**
+     * Writes to the destination the changes whose writing was delayed by the writer.
+     */
+    void flush() throws RepoException, IOException {
+      if (writer instanceof Destination.BufferedWriter) {
+        ((Destination.BufferedWriter) writer).flush(console());
+      }
+    }
 
     ImmutableList<Change<R>> changesSinceLastImport() throws RepoException {
       R lastRev = getLastRev();
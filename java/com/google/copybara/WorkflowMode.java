@@ -20,7 +20,6 @@ import static com.google.copybara.WorkflowOptions.CHANGE_REQUEST_PARENT_FLAG;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.UnmodifiableIterator;
 import com.google.copybara.Destination.WriterResult;
 import com.google.copybara.Origin.ChangesVisitor;
 import com.google.copybara.Origin.Reference;
@@ -30,8 +29,7 @@ import com.google.copybara.util.console.ProgressPrefixConsole;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -65,40 +63,51 @@ public enum WorkflowMode {
   @DocField(description = "Import each origin change individually.")
   ITERATIVE {
     @Override
-    <R extends Origin.Reference> void run(Workflow<R>.RunHelper runHelper)
+    <R extends Origin.Reference> void run(final Workflow<R>.RunHelper runHelper)
         throws RepoException, IOException, ValidationException {
-      ImmutableList<Change<R>> changes = runHelper.changesSinceLastImport();
-      int changeNumber = 1;
-      UnmodifiableIterator<Change<R>> changesIterator = changes.iterator();
-      Deque<Change<R>> migrated = new ArrayDeque<>();
-      while (changesIterator.hasNext()) {
-        Change<R> change = changesIterator.next();
-        String prefix = String.format(
-            "Change %d of %d (%s): ",
-            changeNumber, changes.size(), change.getReference().asString());
-        WriterResult result;
-        try {
-          result = runHelper.migrate(
-              change.getReference(),
-              new ProgressPrefixConsole(prefix, runHelper.getConsole()),
-              new Metadata(change.getMessage(), change.getAuthor()),
-              new ComputedChanges(ImmutableList.of(change), migrated));
-        } catch (EmptyChangeException e) {
-          runHelper.getConsole().warn(e.getMessage());
-          result = WriterResult.OK;
-        }
-        migrated.addFirst(change);
-
-        if (result == WriterResult.PROMPT_TO_CONTINUE && changesIterator.hasNext()) {
-          // Use the regular console to log prompt and final message, it will be easier to spot
-          if (!runHelper.getConsole()
-              .promptConfirmation("Continue importing next change?")) {
-            String message = String.format("Iterative workflow aborted by user after: %s", prefix);
-            runHelper.getConsole().warn(message);
-            throw new ChangeRejectedException(message);
+      final ImmutableList<Change<R>> changes = runHelper.changesSinceLastImport();
+      int lookAhead = runHelper.workflowOptions().getIterativeLookAhead();
+      ChangePipeline<TransformResult> pipeline = null;
+      if (lookAhead > 0) {
+        pipeline = new ChangePipeline<>(new ChangePipeline.Preparer<TransformResult>() {
+          @Override
+          public TransformResult prepare(int index, Path workdir)
+              throws RepoException, IOException, ValidationException {
+            return prepareChange(runHelper, changes, index, workdir);
+          }
+        }, changes.size(), lookAhead, runHelper.getWorkdir().resolve("pipeline"));
+      }
+      try {
+        for (int i = 0; i < changes.size(); i++) {
+          String prefix = changePrefix(changes, i);
+          WriterResult result;
+          try {
+            TransformResult transformResult = pipeline == null
+                ? prepareChange(runHelper, changes, i, runHelper.getWorkdir())
+                : pipeline.get(i);
+            result = runHelper.write(
+                transformResult, new ProgressPrefixConsole(prefix, runHelper.getConsole()));
+          } catch (EmptyChangeException e) {
+            runHelper.getConsole().warn(e.getMessage());
+            result = WriterResult.OK;
+          }
+
+          if (result == WriterResult.PROMPT_TO_CONTINUE && i < changes.size() - 1) {
+            // Use the regular console to log prompt and final message, it will be easier to spot
+            if (!runHelper.getConsole()
+                .promptConfirmation("Continue importing next change?")) {
+              String message = String.format(
+                  "Iterative workflow aborted by user after: %s", prefix);
+              runHelper.getConsole().warn(message);
+              throw new ChangeRejectedException(message);
+            }
           }
         }
-        changeNumber++;
+      } finally {
+        if (pipeline != null) {
+          // Discard the changes prepared in advance that won't be migrated
+          pipeline.close();
+        }
       }
     }
   },
@@ -158,6 +167,28 @@ public enum WorkflowMode {
   abstract <R extends Origin.Reference> void run(Workflow<R>.RunHelper runHelper)
       throws RepoException, IOException, ValidationException;
 
+  private static <R extends Origin.Reference> String changePrefix(
+      ImmutableList<Change<R>> changes, int index) {
+    return String.format("Change %d of %d (%s): ",
+        index + 1, changes.size(), changes.get(index).getReference().asString());
+  }
+
+  /**
+   * Prepares the change at position {@code index} of an iterative migration in {@code workdir}.
+   * All the previous changes are considered migrated.
+   */
+  private static <R extends Origin.Reference> TransformResult prepareChange(
+      Workflow<R>.RunHelper runHelper, ImmutableList<Change<R>> changes, int index, Path workdir)
+      throws RepoException, IOException, ValidationException {
+    Change<R> change = changes.get(index);
+    return runHelper.prepare(workdir,
+        change.getReference(),
+        new ProgressPrefixConsole(changePrefix(changes, index), runHelper.getConsole()),
+        new Metadata(change.getMessage(), change.getAuthor()),
+        new ComputedChanges(ImmutableList.of(change), changes.subList(0, index).reverse()),
+        /*destinationBaseline=*/ null);
+  }
+
   /**
    * An implementation of {@link Changes} that compute the list of changes lazily. Only when
    * a transformer request it.
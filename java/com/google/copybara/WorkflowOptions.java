@@ -20,8 +20,12 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.copybara.util.ContentCache;
+import com.google.copybara.util.DirectoryCleaner;
 import com.google.copybara.util.console.Console;
+import java.nio.file.Paths;
 import java.util.Objects;
+import javax.annotation.Nullable;
 
 /**
  * Arguments for {@link Workflow} components.
@@ -46,6 +50,68 @@ public class WorkflowOptions implements Option {
           + " directories, etc.")
   public boolean ignoreNoop = false;
 
+  @Parameter(names = "--replace-skip-binary-files",
+      description = "Don't apply core.replace to binary files. Like git, a file is considered"
+          + " binary if it contains a NUL byte in its first 8000 bytes (This includes UTF-16"
+          + " text).")
+  public boolean replaceSkipBinaryFiles = false;
+
+  @Parameter(names = "--transform-parallelism",
+      description = "Maximum number of threads used by the transformations that process the files"
+          + " of the workdir in parallel (For example core.replace). Defaults to the number of"
+          + " available processors.")
+  int transformParallelism = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = "--copy-parallelism",
+      description = "Maximum number of threads used to copy files between folders (For example"
+          + " by folder.origin and folder.destination).")
+  int copyParallelism = 4;
+
+  @Parameter(names = "--transform-cache",
+      description = "Cache the results of the transformations that process each file"
+          + " independently (For example core.replace), so that the files that don't change"
+          + " between migrations are not transformed again. Useful when migrating many changes"
+          + " of a big repository, for example in ITERATIVE mode.")
+  public boolean useTransformCache = false;
+
+  @Parameter(names = "--transform-cache-dir",
+      description = "Directory where the results of the transformations are cached when using"
+          + " --transform-cache. Defaults to $HOME/.copybara/transform_cache")
+  String transformCacheDir;
+
+  @Parameter(names = "--transform-cache-max-size-mb",
+      description = "Maximum size of the cache of transformation results, in megabytes. When it"
+          + " grows bigger, the least recently used results are deleted.")
+  int transformCacheMaxSizeMb = 512;
+
+  private ContentCache transformCache;
+
+  @Parameter(names = "--no-async-workdir-cleanup",
+      description = "Delete the contents of the working directory in place before every migration."
+          + " By default they are moved next to the working directory and deleted in the"
+          + " background, so that the migration can start right away.")
+  boolean noAsyncWorkdirCleanup = false;
+
+  private DirectoryCleaner workdirCleaner;
+
+  @Parameter(names = "--iterative-incremental-checkout",
+      description = "In ITERATIVE mode, update the checkout of the previous change instead of"
+          + " checking out every change from scratch, so that only the files that differ are"
+          + " written. Only supported by some origins, like git.origin.")
+  boolean incrementalCheckout = false;
+
+  @Parameter(names = "--iterative-full-checkout-interval",
+      description = "When using --iterative-incremental-checkout, check out from scratch every"
+          + " this number of changes, as a guard against the checkout drifting from the origin.")
+  int fullCheckoutInterval = 50;
+
+  @Parameter(names = "--iterative-look-ahead",
+      description = "In ITERATIVE mode, maximum number of changes that are checked out and"
+          + " transformed in the background while the current change is written to the"
+          + " destination. Every change in flight uses its own working directory, so"
+          + " --iterative-incremental-checkout doesn't apply. 0 migrates the changes one by one.")
+  int iterativeLookAhead = 0;
+
   /**
    * Reports that some operation is a no-op. This will either throw an exception or report the
    * incident to the console, depending on the options.
@@ -63,6 +129,14 @@ public class WorkflowOptions implements Option {
   public WorkflowOptions() {
   }
 
+  /**
+   * Creates the options for a user with home directory {@code homeDir}, that is used for the
+   * default location of the caches.
+   */
+  public WorkflowOptions(String homeDir) {
+    this.transformCacheDir = homeDir + "/.copybara/transform_cache";
+  }
+
   @VisibleForTesting
   public WorkflowOptions(String changeBaseline, String lastRevision, String workflowName) {
     this.changeBaseline = changeBaseline;
@@ -87,6 +161,66 @@ public class WorkflowOptions implements Option {
     return changeBaseline;
   }
 
+  /**
+   * Returns the maximum number of threads to use for processing the files of the workdir in
+   * parallel. Always greater than zero.
+   */
+  public int getTransformParallelism() {
+    return Math.max(1, transformParallelism);
+  }
+
+  /**
+   * Returns the maximum number of threads to use for copying files between folders. Always
+   * greater than zero.
+   */
+  public int getCopyParallelism() {
+    return Math.max(1, copyParallelism);
+  }
+
+  public boolean isIncrementalCheckout() {
+    return incrementalCheckout;
+  }
+
+  /**
+   * Returns after how many incremental checkouts a full checkout is done. Always greater than zero.
+   */
+  public int getFullCheckoutInterval() {
+    return Math.max(1, fullCheckoutInterval);
+  }
+
+  /**
+   * Returns how many changes are prepared in advance in ITERATIVE mode. Zero or greater.
+   */
+  public int getIterativeLookAhead() {
+    return Math.max(0, iterativeLookAhead);
+  }
+
+  /**
+   * Returns the cache for the results of transformations, or null if it shouldn't be used. The
+   * cache is only used if enabled with {@code --transform-cache}.
+   */
+  @Nullable
+  public synchronized ContentCache getTransformCache() {
+    if (!useTransformCache || transformCacheDir == null) {
+      return null;
+    }
+    if (transformCache == null) {
+      transformCache = new ContentCache(Paths.get(transformCacheDir),
+          Math.max(0, transformCacheMaxSizeMb) * 1024L * 1024L);
+    }
+    return transformCache;
+  }
+
+  /**
+   * Returns the cleaner to use for emptying the working directory.
+   */
+  public synchronized DirectoryCleaner getWorkdirCleaner() {
+    if (workdirCleaner == null) {
+      workdirCleaner = new DirectoryCleaner(!noAsyncWorkdirCleanup);
+    }
+    return workdirCleaner;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
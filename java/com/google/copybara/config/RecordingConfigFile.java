@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.config;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ConfigFile} that records the content of the config files read through it, including
+ * the ones resolved from it (Like the files loaded by a config), so that it can be checked later
+ * whether any of them changed.
+ */
+public final class RecordingConfigFile extends ConfigFile<ConfigFile> {
+
+  private final ConfigFile delegate;
+  // Hash of the content of the files read, by path. Shared by all the resolved files.
+  private final Map<String, Read> reads;
+
+  private static final class Read {
+
+    private final ConfigFile file;
+    private final HashCode hash;
+
+    private Read(ConfigFile file, HashCode hash) {
+      this.file = file;
+      this.hash = hash;
+    }
+  }
+
+  public RecordingConfigFile(ConfigFile delegate) {
+    this(delegate, new LinkedHashMap<String, Read>());
+  }
+
+  private RecordingConfigFile(ConfigFile delegate, Map<String, Read> reads) {
+    super(delegate.path());
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.reads = reads;
+  }
+
+  @Override
+  public byte[] content() throws IOException {
+    byte[] content = delegate.content();
+    synchronized (reads) {
+      reads.put(path(), new Read(delegate, Hashing.sha256().hashBytes(content)));
+    }
+    return content;
+  }
+
+  /**
+   * Returns true if every config file read so far still has the same content.
+   */
+  public boolean isUpToDate() {
+    List<Read> toCheck;
+    synchronized (reads) {
+      toCheck = new ArrayList<>(reads.values());
+    }
+    for (Read read : toCheck) {
+      try {
+        if (!Hashing.sha256().hashBytes(read.file.content()).equals(read.hash)) {
+          return false;
+        }
+      } catch (IOException e) {
+        // For example the file was deleted
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  protected ConfigFile relativeToRoot(String label) throws CannotResolveLabel {
+    return delegate.resolve("//" + label);
+  }
+
+  @Override
+  protected ConfigFile relativeToCurrentPath(String label) throws CannotResolveLabel {
+    return delegate.resolve(label);
+  }
+
+  @Override
+  protected ConfigFile createConfigFile(String label, ConfigFile resolved) {
+    return new RecordingConfigFile(resolved, reads);
+  }
+}
@@ -21,9 +21,15 @@ import static com.google.copybara.ValidationException.checkNotMissing;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.copybara.Authoring;
 import com.google.copybara.Config;
 import com.google.copybara.Core;
@@ -47,22 +53,50 @@ import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkSignatureProcessor;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
  * Loads Copybara configs out of Skylark files.
+ *
+ * <p>The parsed files are cached by content, so that loading a config again (For example for
+ * another workflow of a batch) only parses the files that changed. Library files (The files loaded
+ * by a config) that don't use any module that depends on the options or on the config file are
+ * also evaluated once, and reused while neither them nor any of the files that they load change.
+ * The environment of a reused library is frozen.
  */
 public class SkylarkParser {
 
   private static final Logger logger = Logger.getLogger(SkylarkParser.class.getName());
   private static final String BARA_SKY = ".bara.sky";
+  private static final int MAX_CACHED_FILES = 1000;
   // For now all the modules are namespaces. We don't use variables except for 'core'.
   private final Iterable<Class<?>> modules;
+  /**
+   * Matches the names of the modules that depend on the options or on the config file. Libraries
+   * that contain them, even in comments or strings, are not reused.
+   */
+  @Nullable
+  private final Pattern contextDependentModules;
+
+  // By path and content hash
+  private final Cache<String, BuildFileAST> parsedFiles =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_FILES).build();
+  // By path and hash of the contents of the file and of all the files that it loads
+  private final Cache<String, Environment> evaluatedLibraries =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_FILES).build();
+  private final AtomicLong parseCount = new AtomicLong();
+  private final AtomicLong evalCount = new AtomicLong();
 
   public SkylarkParser(Set<Class<?>> modules) {
     this.modules = ImmutableSet.<Class<?>>builder()
@@ -80,6 +114,33 @@ public class SkylarkParser {
         throw new RuntimeException("Cannot register module " + module.getName(), e);
       }
     }
+
+    List<String> names = new ArrayList<>();
+    for (Class<?> module : this.modules) {
+      if (OptionsAwareModule.class.isAssignableFrom(module)
+          || LabelsAwareModule.class.isAssignableFrom(module)) {
+        names.add(Pattern.quote(module.getAnnotation(SkylarkModule.class).name()));
+      }
+    }
+    contextDependentModules = names.isEmpty()
+        ? null
+        : Pattern.compile("\\b(" + Joiner.on('|').join(names) + ")\\b");
+  }
+
+  /**
+   * Number of config files parsed by this parser, that were not in the cache.
+   */
+  @VisibleForTesting
+  long parseCount() {
+    return parseCount.get();
+  }
+
+  /**
+   * Number of config files evaluated by this parser, that were not reused.
+   */
+  @VisibleForTesting
+  long evalCount() {
+    return evalCount.get();
   }
 
   public Config loadConfig(ConfigFile content, Options options)
@@ -99,7 +160,7 @@ public class SkylarkParser {
   @VisibleForTesting
   public Environment executeSkylark(ConfigFile content, Options options)
       throws IOException, ValidationException, InterruptedException {
-    return new Evaluator(options).eval(content);
+    return new Evaluator(options).eval(content, /*library=*/false);
   }
 
   /**
@@ -109,6 +170,10 @@ public class SkylarkParser {
 
     private final LinkedHashSet<String> pending = new LinkedHashSet<>();
     private final Map<String, Environment> loaded = new HashMap<>();
+    // Hash of the contents of every loaded file and of all the files that it loads, by path
+    private final Map<String, HashCode> transitiveHashes = new HashMap<>();
+    // Loaded files that can be reused by other evaluations
+    private final Set<String> reusable = new HashSet<>();
     private final Options options;
     private final Console console;
     private final EventHandler eventHandler;
@@ -119,7 +184,10 @@ public class SkylarkParser {
       eventHandler = new ConsoleEventHandler(console);
     }
 
-    private Environment eval(ConfigFile content)
+    /**
+     * @param library true if {@code content} is loaded by another config file
+     */
+    private Environment eval(ConfigFile content, boolean library)
         throws IOException, ValidationException, InterruptedException {
       if (pending.contains(content.path())) {
         throw throwCycleError(content.path());
@@ -128,23 +196,61 @@ public class SkylarkParser {
       }
       pending.add(content.path());
 
-      Frame globals = createGlobals(eventHandler, options, content);
-
-      BuildFileAST buildFileAST = BuildFileAST.parseSkylarkFileWithoutImports(
-          new InputSourceForConfigFile(content), eventHandler);
+      byte[] bytes = content.content();
+      HashCode contentHash = Hashing.sha256().hashBytes(bytes);
+      BuildFileAST buildFileAST = parse(content.path(), bytes, contentHash);
 
+      Hasher transitiveHash = Hashing.sha256().newHasher()
+          .putString(content.path(), UTF_8)
+          .putBytes(contentHash.asBytes());
+      boolean reuse = library && (contextDependentModules == null
+          || !contextDependentModules.matcher(new String(bytes, UTF_8)).find());
       Map<String, Extension> imports = new HashMap<>();
       for (String anImport : buildFileAST.getRawImports()) {
-        imports.put(anImport, new Extension(eval(content.resolve(anImport + BARA_SKY))));
+        ConfigFile imported = content.resolve(anImport + BARA_SKY);
+        imports.put(anImport, new Extension(eval(imported, /*library=*/true)));
+        transitiveHash
+            .putString(imported.path(), UTF_8)
+            .putBytes(transitiveHashes.get(imported.path()).asBytes());
+        reuse &= reusable.contains(imported.path());
+      }
+      String key = content.path() + " " + transitiveHash.hash();
+
+      Environment env = reuse ? evaluatedLibraries.getIfPresent(key) : null;
+      if (env == null) {
+        evalCount.incrementAndGet();
+        Frame globals = createGlobals(eventHandler, options, content);
+        env = createEnvironment(eventHandler, globals, imports);
+        checkCondition(buildFileAST.exec(env, eventHandler), "Error loading config file");
+        if (reuse) {
+          // Other evaluations can import it
+          env.mutability().close();
+          evaluatedLibraries.put(key, env);
+        }
       }
-      Environment env = createEnvironment(eventHandler, globals, imports);
-
-      checkCondition(buildFileAST.exec(env, eventHandler), "Error loading config file");
       pending.remove(content.path());
       loaded.put(content.path(), env);
+      transitiveHashes.put(content.path(), transitiveHash.hash());
+      if (reuse) {
+        reusable.add(content.path());
+      }
       return env;
     }
 
+    private BuildFileAST parse(String path, byte[] content, HashCode contentHash) {
+      String key = path + " " + contentHash;
+      BuildFileAST buildFileAST = parsedFiles.getIfPresent(key);
+      if (buildFileAST == null) {
+        parseCount.incrementAndGet();
+        buildFileAST = BuildFileAST.parseSkylarkFileWithoutImports(
+            new InputSourceForConfigFile(path, content), eventHandler);
+        if (!buildFileAST.containsErrors()) {
+          parsedFiles.put(key, buildFileAST);
+        }
+      }
+      return buildFileAST;
+    }
+
     private ValidationException throwCycleError(String cycleElement)
         throws ValidationException {
       StringBuilder sb = new StringBuilder();
@@ -274,10 +380,9 @@ public class SkylarkParser {
     private final String content;
     private final String path;
 
-    private InputSourceForConfigFile(ConfigFile content) throws IOException {
-
-      this.content = Preconditions.checkNotNull(new String(content.content(), UTF_8));
-      path = Preconditions.checkNotNull(content.path());
+    private InputSourceForConfigFile(String path, byte[] content) {
+      this.content = new String(content, UTF_8);
+      this.path = Preconditions.checkNotNull(path);
     }
 
     @Override
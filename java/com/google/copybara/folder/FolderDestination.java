@@ -38,9 +38,11 @@ public class FolderDestination implements Destination {
   private static final String FOLDER_DESTINATION_NAME = "!FolderDestination";
 
   private final Path localFolder;
+  private final int copyParallelism;
 
-  FolderDestination(Path localFolder) {
+  FolderDestination(Path localFolder, int copyParallelism) {
     this.localFolder = Preconditions.checkNotNull(localFolder);
+    this.copyParallelism = copyParallelism;
   }
 
   @Override
@@ -79,7 +81,7 @@ public class FolderDestination implements Destination {
       FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
 
       console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
-      FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder);
+      FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder, copyParallelism);
       return WriterResult.OK;
     }
   }
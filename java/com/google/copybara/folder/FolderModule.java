@@ -6,6 +6,7 @@ import com.google.copybara.Core;
 import com.google.copybara.Destination;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
+import com.google.copybara.WorkflowOptions;
 import com.google.copybara.config.base.OptionsAwareModule;
 import com.google.copybara.doc.annotations.UsesFlags;
 import com.google.devtools.build.lib.events.Location;
@@ -43,7 +44,7 @@ public class FolderModule implements OptionsAwareModule {
           @Param(name = "self", type = FolderModule.class, doc = "this object"),
       },
       objectType = FolderModule.class, useLocation = true, useEnvironment = true)
-  @UsesFlags(FolderDestinationOptions.class)
+  @UsesFlags({FolderDestinationOptions.class, WorkflowOptions.class})
   public static final BuiltinFunction DESTINATION = new BuiltinFunction(DESTINATION_VAR) {
     @SuppressWarnings("unused")
     public Destination invoke(FolderModule self, Location location, Environment env)
@@ -70,7 +71,8 @@ public class FolderModule implements OptionsAwareModule {
           localFolder = generalOptions.getCwd().resolve(localFolder);
         }
       }
-      return new FolderDestination(localFolder);
+      return new FolderDestination(localFolder,
+          self.options.get(WorkflowOptions.class).getCopyParallelism());
     }
   };
 
@@ -81,7 +83,7 @@ public class FolderModule implements OptionsAwareModule {
           @Param(name = "self", type = FolderModule.class, doc = "this object"),
       },
       objectType = FolderModule.class, useLocation = true, useEnvironment = true)
-  @UsesFlags(FolderOriginOptions.class)
+  @UsesFlags({FolderOriginOptions.class, WorkflowOptions.class})
   public static final BuiltinFunction ORIGIN = new BuiltinFunction("origin") {
     @SuppressWarnings("unused")
     public FolderOrigin invoke(FolderModule self, Location location, Environment env)
@@ -92,7 +94,8 @@ public class FolderModule implements OptionsAwareModule {
       FileSystem fs = generalOptions.getFileSystem();
       return new FolderOrigin(fs,
           Author.parse(location, self.options.get(FolderOriginOptions.class).author),
-          self.options.get(FolderOriginOptions.class).message);
+          self.options.get(FolderOriginOptions.class).message,
+          self.options.get(WorkflowOptions.class).getCopyParallelism());
     }
   };
 
@@ -30,11 +30,13 @@ public class FolderOrigin implements Origin<FolderReference> {
   private final FileSystem fs;
   private final Author author;
   private final String message;
+  private final int copyParallelism;
 
-  FolderOrigin(FileSystem fs, Author author, String message) {
+  FolderOrigin(FileSystem fs, Author author, String message, int copyParallelism) {
     this.fs = Preconditions.checkNotNull(fs);
     this.author = author;
     this.message = message;
+    this.copyParallelism = copyParallelism;
   }
 
   @Override
@@ -62,7 +64,7 @@ public class FolderOrigin implements Origin<FolderReference> {
       @Override
       public void checkout(FolderReference ref, Path workdir) throws RepoException {
         try {
-          FileUtil.copyFilesRecursively(ref.path, workdir);
+          FileUtil.copyFilesRecursively(ref.path, workdir, copyParallelism);
         } catch (IOException e) {
           throw new RepoException(String.format("Cannot copy files into the workdir:\n"
                       + "  origin folder: %s\n"
@@ -16,11 +16,14 @@
 
 package com.google.copybara.git;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.RepoException;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -28,19 +31,27 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A walker which adds all files not matching a glob to the index of a Git repo using
  * {@code git add}.
+ *
+ * <p>The paths are collected during the walk and added with a single {@code git add}. Directories
+ * that are not inside or above any root of the glob cannot contain files matching it, so they are
+ * added as a whole instead of being walked.
  */
 final class AddExcludedFilesToIndexVisitor extends SimpleFileVisitor<Path> {
   private final GitRepository repo;
   private final PathMatcher destinationFiles;
+  private final ImmutableSet<String> roots;
+  private final List<String> excludedPaths = new ArrayList<>();
   private ArrayList<String> addBackSubmodules;
 
   AddExcludedFilesToIndexVisitor(GitRepository repo, Glob destinationFilesGlob) {
     this.repo = repo;
     this.destinationFiles = destinationFilesGlob.relativeTo(repo.getWorkTree());
+    this.roots = destinationFilesGlob.roots();
   }
 
   /**
@@ -69,26 +80,59 @@ final class AddExcludedFilesToIndexVisitor extends SimpleFileVisitor<Path> {
     if (dir.equals(repo.getGitDir())) {
       return FileVisitResult.SKIP_SUBTREE;
     }
+    String path = repo.getWorkTree().relativize(dir).toString();
+    if (!path.isEmpty() && !isInsideOrAboveRoot(path)) {
+      // Empty directories are skipped: git fails for pathspecs that don't match any file
+      if (containsFiles(dir)) {
+        excludedPaths.add(path);
+      }
+      return FileVisitResult.SKIP_SUBTREE;
+    }
     return FileVisitResult.CONTINUE;
   }
 
   @Override
   public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
     if (!destinationFiles.matches(file)) {
-      try {
-        repo.simpleCommand("add", "--", file.toString());
-      } catch (RepoException e) {
-        throw new IOException(e);
-      }
+      excludedPaths.add(repo.getWorkTree().relativize(file).toString());
     }
     return FileVisitResult.CONTINUE;
   }
 
+  private boolean isInsideOrAboveRoot(String path) {
+    for (String root : roots) {
+      if (root.isEmpty() || root.equals(path)
+          || path.startsWith(root + "/") || root.startsWith(path + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean containsFiles(Path dir) throws IOException {
+    final boolean[] found = {false};
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        found[0] = true;
+        return FileVisitResult.TERMINATE;
+      }
+    });
+    return found[0];
+  }
+
   /**
    * Adds all the excluded files and submodules.
    */
   void add() throws RepoException, IOException {
     Files.walkFileTree(repo.getWorkTree(), this);
+    if (!excludedPaths.isEmpty()) {
+      // Read the paths from stdin, so that the number of paths is not limited by the maximum
+      // length of a command line, and don't interpret them as patterns.
+      repo.simpleCommandWithInput(
+          (Joiner.on('\0').join(excludedPaths) + '\0').getBytes(StandardCharsets.UTF_8),
+          "--literal-pathspecs", "add", "--pathspec-from-file=-", "--pathspec-file-nul");
+    }
     for (String addBackSubmodule : addBackSubmodules) {
       repo.simpleCommand("reset", "--", "--quiet", addBackSubmodule);
       repo.simpleCommand("add", "--", addBackSubmodule);
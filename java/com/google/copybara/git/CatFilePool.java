@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Long-lived {@code git cat-file --batch-check} and {@code git cat-file --batch} processes for a
+ * git directory.
+ *
+ * <p>Resolving references and reading objects through these pipes avoids forking a new
+ * {@code git} process for every query. There is at most one pool per git directory in the JVM,
+ * shared by all the {@link GitRepository} instances that point to it.
+ *
+ * <p>Only the {@link #MAX_POOLS} most recently used pools are kept. The processes of the pools
+ * that are evicted, or whose git directory is discarded with {@link #evict}, are stopped.
+ *
+ * <p>The pool never fails the caller: if a process cannot be started or the pipe breaks, the pool
+ * disables itself and returns {@code null}, so that the caller falls back to a regular git
+ * invocation that will report the error properly.
+ */
+final class CatFilePool {
+
+  private static final Logger logger = Logger.getLogger(CatFilePool.class.getName());
+
+  /**
+   * Maximum number of pools, so that the number of processes doesn't grow with the number of git
+   * directories used by a long-running JVM (For example the worktrees of every run in a batch).
+   */
+  @VisibleForTesting
+  static final int MAX_POOLS = 32;
+
+  // In access order. Guarded by itself.
+  private static final Map<Path, CatFilePool> POOLS =
+      new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true);
+  private static final AtomicLong TOTAL_FORKS_AVOIDED = new AtomicLong();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread("CatFilePool shutdown") {
+      @Override
+      public void run() {
+        closeAll();
+      }
+    });
+  }
+
+  private final Path gitDir;
+  private final String gitBinary;
+  private final Map<String, String> environment;
+  private final AtomicLong forksAvoided = new AtomicLong();
+
+  @Nullable private BatchProcess batchCheck;
+  @Nullable private BatchProcess batch;
+  private boolean disabled;
+
+  private CatFilePool(Path gitDir, String gitBinary, Map<String, String> environment) {
+    this.gitDir = Preconditions.checkNotNull(gitDir);
+    this.gitBinary = Preconditions.checkNotNull(gitBinary);
+    this.environment = Preconditions.checkNotNull(environment);
+  }
+
+  /**
+   * Returns the pool for {@code gitDir}, creating it if needed. Processes are started lazily on
+   * first use.
+   */
+  static CatFilePool forGitDir(Path gitDir, String gitBinary, Map<String, String> environment) {
+    Path key = gitDir.toAbsolutePath().normalize();
+    CatFilePool pool;
+    CatFilePool evicted = null;
+    synchronized (POOLS) {
+      pool = POOLS.get(key);
+      if (pool == null) {
+        pool = new CatFilePool(key, gitBinary, environment);
+        POOLS.put(key, pool);
+        if (POOLS.size() > MAX_POOLS) {
+          Iterator<CatFilePool> leastRecentlyUsed = POOLS.values().iterator();
+          evicted = leastRecentlyUsed.next();
+          leastRecentlyUsed.remove();
+        }
+      }
+    }
+    // Stopping waits for the processes to exit, so it is done without holding the lock
+    if (evicted != null) {
+      evicted.stop();
+    }
+    return pool;
+  }
+
+  /**
+   * Stops the processes of the pool for {@code gitDir}, if any, and forgets it. Call it when the
+   * git directory is deleted or not going to be used anymore.
+   */
+  static void evict(Path gitDir) {
+    CatFilePool pool;
+    synchronized (POOLS) {
+      pool = POOLS.remove(gitDir.toAbsolutePath().normalize());
+    }
+    if (pool != null) {
+      pool.stop();
+    }
+  }
+
+  /**
+   * Number of pools in the JVM.
+   */
+  @VisibleForTesting
+  static int size() {
+    synchronized (POOLS) {
+      return POOLS.size();
+    }
+  }
+
+  /**
+   * Number of {@code git} processes that were not forked thanks to all the pools in this JVM.
+   */
+  static long totalForksAvoided() {
+    return TOTAL_FORKS_AVOIDED.get();
+  }
+
+  /**
+   * Closes all the processes of all the pools. Pools can still be used after this, they will
+   * restart the processes on demand.
+   */
+  static void closeAll() {
+    List<CatFilePool> pools;
+    synchronized (POOLS) {
+      pools = Lists.newArrayList(POOLS.values());
+    }
+    for (CatFilePool pool : pools) {
+      pool.close();
+    }
+  }
+
+  /**
+   * Number of {@code git} processes that were not forked thanks to this pool.
+   */
+  long forksAvoided() {
+    return forksAvoided.get();
+  }
+
+  /**
+   * Resolves {@code ref} to a complete SHA-1 using {@code git cat-file --batch-check}.
+   *
+   * <p>Returns {@code null} if the reference doesn't exist, is ambiguous, or the pipe is not
+   * available.
+   */
+  @Nullable
+  synchronized String resolve(String ref) {
+    if (!isValidQuery(ref)) {
+      return null;
+    }
+    try {
+      if (batchCheck == null) {
+        batchCheck = new BatchProcess("--batch-check");
+      }
+      List<String> header = batchCheck.query(ref);
+      if (header == null) {
+        return null;
+      }
+      recordForkAvoided();
+      return header.get(0);
+    } catch (IOException e) {
+      disable(e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the contents of the object {@code ref} using {@code git cat-file --batch}.
+   *
+   * <p>Returns {@code null} if the object doesn't exist, is ambiguous, is not of type
+   * {@code expectedType}, or the pipe is not available.
+   */
+  @Nullable
+  synchronized byte[] read(String ref, String expectedType) {
+    if (!isValidQuery(ref)) {
+      return null;
+    }
+    try {
+      if (batch == null) {
+        batch = new BatchProcess("--batch");
+      }
+      List<String> header = batch.query(ref);
+      if (header == null) {
+        return null;
+      }
+      byte[] content = batch.readContent(Integer.parseInt(header.get(2)));
+      if (!header.get(1).equals(expectedType)) {
+        return null;
+      }
+      recordForkAvoided();
+      return content;
+    } catch (IOException | NumberFormatException e) {
+      disable(e);
+      return null;
+    }
+  }
+
+  /**
+   * Stops the running processes, if any.
+   */
+  synchronized void close() {
+    if (batchCheck != null) {
+      batchCheck.close();
+      batchCheck = null;
+    }
+    if (batch != null) {
+      batch.close();
+      batch = null;
+    }
+    if (forksAvoided.get() > 0) {
+      logger.log(Level.INFO,
+          String.format("git cat-file pool for %s avoided %d forks", gitDir, forksAvoided.get()));
+    }
+  }
+
+  /**
+   * Closes the processes of a pool that is not in {@link #POOLS} anymore. Callers that still have
+   * a reference to it fall back to regular git invocations instead of starting new processes that
+   * nobody would stop.
+   */
+  private synchronized void stop() {
+    disabled = true;
+    close();
+  }
+
+  private void recordForkAvoided() {
+    forksAvoided.incrementAndGet();
+    TOTAL_FORKS_AVOIDED.incrementAndGet();
+  }
+
+  private boolean isValidQuery(String ref) {
+    // cat-file reads one object name per line. Anything else is delegated to the regular command
+    // so that errors are reported in the usual way. Same for repositories not initialized yet.
+    return !disabled && !ref.isEmpty() && ref.indexOf('\n') == -1 && ref.indexOf('\r') == -1
+        && Files.isDirectory(gitDir);
+  }
+
+  private void disable(Exception e) {
+    logger.log(Level.WARNING,
+        "git cat-file pipe for " + gitDir + " failed. Falling back to one process per command", e);
+    disabled = true;
+    close();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("gitDir", gitDir)
+        .add("forksAvoided", forksAvoided.get())
+        .toString();
+  }
+
+  /**
+   * A running {@code git cat-file} process in one of the batch modes.
+   */
+  private class BatchProcess {
+
+    private final Process process;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+
+    private BatchProcess(String mode) throws IOException {
+      ProcessBuilder builder = new ProcessBuilder(
+          ImmutableList.of(gitBinary, "--git-dir=" + gitDir, "cat-file", mode));
+      builder.environment().clear();
+      builder.environment().putAll(environment);
+      builder.directory(gitDir.toFile());
+      process = builder.start();
+      stdin = process.getOutputStream();
+      stdout = new BufferedInputStream(process.getInputStream());
+      drainStderr(process.getErrorStream(), mode);
+      logger.log(Level.INFO, String.format("Started git cat-file %s for %s", mode, gitDir));
+    }
+
+    /**
+     * Sends a query and returns the header fields ({@code sha1 type size}), or null if the object
+     * is missing or ambiguous.
+     */
+    @Nullable
+    private List<String> query(String ref) throws IOException {
+      stdin.write((ref + "\n").getBytes(UTF_8));
+      stdin.flush();
+      String line = readLine();
+      if (line.endsWith(" missing") || line.endsWith(" ambiguous")) {
+        return null;
+      }
+      List<String> fields = Splitter.on(' ').splitToList(line);
+      if (fields.size() != 3) {
+        throw new IOException("Unexpected git cat-file output: " + line);
+      }
+      return fields;
+    }
+
+    private byte[] readContent(int size) throws IOException {
+      byte[] content = new byte[size];
+      ByteStreams.readFully(stdout, content);
+      if (stdout.read() != '\n') {
+        throw new IOException("Unexpected git cat-file output: missing object terminator");
+      }
+      return content;
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = stdout.read()) != '\n') {
+        if (b == -1) {
+          throw new EOFException("git cat-file exited unexpectedly");
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), UTF_8);
+    }
+
+    private void close() {
+      try {
+        stdin.close();
+        process.waitFor();
+      } catch (IOException e) {
+        process.destroy();
+      } catch (InterruptedException e) {
+        process.destroy();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void drainStderr(final InputStream stderr, final String mode) {
+    Thread thread = new Thread("git cat-file " + mode + " stderr") {
+      @Override
+      public void run() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            logger.log(Level.WARNING, "git cat-file " + mode + " STDERR: " + line);
+          }
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Error reading git cat-file stderr", e);
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.net.PercentEscaper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent index of the last commit pushed to a git destination that contains a label.
+ *
+ * <p>Every line of the index file records, for a label and a set of destination roots, the SHA-1
+ * of the last commit pushed with that label and its value. The history of the destination can
+ * change after the push, so callers must check that the commit is still an ancestor of the
+ * destination head before using the entry. The index is an optimization: any I/O error is logged
+ * and ignored.
+ */
+final class DestinationLabelIndex {
+
+  private static final Logger logger = Logger.getLogger(DestinationLabelIndex.class.getName());
+
+  private static final PercentEscaper PERCENT_ESCAPER = new PercentEscaper(
+      "-_", /*plusForSpace=*/ true);
+
+  /**
+   * Maximum number of entries kept. Older entries are discarded first.
+   */
+  static final int MAX_ENTRIES = 1000;
+
+  private static final char SEPARATOR = '\t';
+
+  private final Path file;
+
+  private DestinationLabelIndex(Path file) {
+    this.file = Preconditions.checkNotNull(file);
+  }
+
+  /**
+   * Returns the index for the destination {@code url}, stored under {@code repoStorage}.
+   */
+  static DestinationLabelIndex forUrl(Path repoStorage, String url) {
+    return new DestinationLabelIndex(
+        repoStorage.resolve("destination_labels").resolve(PERCENT_ESCAPER.escape(url)));
+  }
+
+  /**
+   * Returns the last commit recorded for {@code labelName} and {@code roots}, or null if there is
+   * none.
+   */
+  @Nullable
+  synchronized Entry lookup(String labelName, Set<String> roots) {
+    String key = key(labelName, roots);
+    for (String line : readLines()) {
+      if (line.startsWith(key)) {
+        int separator = line.indexOf(SEPARATOR, key.length());
+        if (separator != -1) {
+          return new Entry(line.substring(key.length(), separator),
+              line.substring(separator + 1));
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Records that {@code commit}, created for {@code roots}, is the last commit that contains
+   * {@code labelName}, with {@code value}.
+   */
+  synchronized void record(String commit, String labelName, String value, Set<String> roots) {
+    if (!isValidField(commit) || !isValidField(labelName) || !isValidField(value)) {
+      return;
+    }
+    for (String root : roots) {
+      if (!isValidField(root) || root.indexOf(',') != -1) {
+        return;
+      }
+    }
+    String key = key(labelName, roots);
+    List<String> lines = new ArrayList<>();
+    for (String line : readLines()) {
+      if (!line.startsWith(key)) {
+        lines.add(line);
+      }
+    }
+    lines.add(key + commit + SEPARATOR + value);
+    if (lines.size() > MAX_ENTRIES) {
+      lines = lines.subList(lines.size() - MAX_ENTRIES, lines.size());
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      Files.write(tmp, lines, UTF_8);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot update destination label index " + file, e);
+    }
+  }
+
+  private List<String> readLines() {
+    try {
+      return Files.readAllLines(file, UTF_8);
+    } catch (NoSuchFileException e) {
+      return new ArrayList<>();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot read destination label index " + file, e);
+      return new ArrayList<>();
+    }
+  }
+
+  private static String key(String labelName, Set<String> roots) {
+    return Joiner.on(SEPARATOR).join(labelName,
+        Joiner.on(',').join(ImmutableSortedSet.copyOf(roots))) + SEPARATOR;
+  }
+
+  private static boolean isValidField(String field) {
+    return field.indexOf('\n') == -1 && field.indexOf('\r') == -1
+        && field.indexOf(SEPARATOR) == -1;
+  }
+
+  /**
+   * A commit recorded in the index and the value of the label in it.
+   */
+  static final class Entry {
+
+    final String commit;
+    final String value;
+
+    private Entry(String commit, String value) {
+      this.commit = commit;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * How a git origin fetches from its repository URL.
+ */
+final class FetchOptions {
+
+  static final FetchOptions DEFAULT =
+      new FetchOptions(ImmutableList.<String>of(), /*depth=*/0, /*partialClone=*/false);
+
+  /**
+   * Source refspecs (without destination) fetched for resolving SHA-1 references. If empty, the
+   * remote HEAD is fetched.
+   */
+  final ImmutableList<String> sha1Refspecs;
+
+  /**
+   * If greater than 0, the first fetch is shallow and only contains this number of commits. The
+   * history is deepened on demand when resolving older SHA-1 references.
+   */
+  final int depth;
+
+  /**
+   * If true, blobs are not fetched until a checkout needs them.
+   */
+  final boolean partialClone;
+
+  FetchOptions(ImmutableList<String> sha1Refspecs, int depth, boolean partialClone) {
+    Preconditions.checkArgument(depth >= 0, "Negative depth: %s", depth);
+    for (String refspec : sha1Refspecs) {
+      Preconditions.checkArgument(!refspec.isEmpty() && !refspec.contains(":"),
+          "Invalid refspec '%s'. Only source refspecs are allowed", refspec);
+    }
+    this.sha1Refspecs = Preconditions.checkNotNull(sha1Refspecs);
+    this.depth = depth;
+    this.partialClone = partialClone;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("sha1Refspecs", sha1Refspecs)
+        .add("depth", depth)
+        .add("partialClone", partialClone)
+        .toString();
+  }
+}
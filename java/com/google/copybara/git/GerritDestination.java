@@ -131,6 +131,7 @@ public final class GerritDestination implements Destination {
             url, fetch,
             "refs/for/" + pushToRefsFor,
             options.get(GitDestinationOptions.class),
+            options.get(GitOptions.class),
             generalOptions.isVerbose(),
             new CommitGenerator(options.get(GerritOptions.class)),
             new GerritProcessPushOutput(generalOptions.console()),
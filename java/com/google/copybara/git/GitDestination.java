@@ -20,6 +20,7 @@ import static com.google.copybara.git.GitDestinationOptions.FIRST_COMMIT_FLAG;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -28,11 +29,18 @@ import com.google.copybara.Destination;
 import com.google.copybara.RepoException;
 import com.google.copybara.TransformResult;
 import com.google.copybara.util.DiffUtil;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -44,6 +52,11 @@ public final class GitDestination implements Destination {
 
   private static final ImmutableSet<String> SINGLE_ROOT_WITHOUT_FOLDER = ImmutableSet.of("");
 
+  /**
+   * Prefix of the references where the destination cache keeps the fetched heads.
+   */
+  private static final String DESTINATION_FETCH_REF_PREFIX = "refs/copybara/destination/";
+
   interface CommitGenerator {
     /**
      * Generates a commit message based on the uncommitted index stored in the given repository.
@@ -73,10 +86,13 @@ public final class GitDestination implements Destination {
   private final CommitGenerator commitGenerator;
   private final ProcessPushOutput processPushOutput;
   private final Map<String, String> environment;
+  private final GitOptions gitOptions;
+  private final DestinationLabelIndex labelIndex;
 
   GitDestination(String repoUrl, String fetch, String push,
-      GitDestinationOptions destinationOptions, boolean verbose, CommitGenerator commitGenerator,
-      ProcessPushOutput processPushOutput, Map<String, String> environment) {
+      GitDestinationOptions destinationOptions, GitOptions gitOptions, boolean verbose,
+      CommitGenerator commitGenerator, ProcessPushOutput processPushOutput,
+      Map<String, String> environment) {
     this.repoUrl = Preconditions.checkNotNull(repoUrl);
     this.fetch = Preconditions.checkNotNull(fetch);
     this.push = Preconditions.checkNotNull(push);
@@ -85,16 +101,20 @@ public final class GitDestination implements Destination {
     this.commitGenerator = Preconditions.checkNotNull(commitGenerator);
     this.processPushOutput = Preconditions.checkNotNull(processPushOutput);
     this.environment = environment;
+    this.gitOptions = Preconditions.checkNotNull(gitOptions);
+    this.labelIndex = DestinationLabelIndex.forUrl(
+        FileSystems.getDefault().getPath(gitOptions.repoStorage), repoUrl);
   }
 
   /**
-   * Throws an exception if the user.email or user.name Git configuration settings are not set. This
-   * helps ensure that the committer field of generated commits is correct.
+   * Throws an exception if the user.email or user.name Git configuration settings are not set and
+   * they are not overridden with flags. This helps ensure that the committer field of generated
+   * commits is correct.
    */
   private void verifyUserInfoConfigured(GitRepository repo) throws RepoException {
     String output = repo.simpleCommand("config", "-l").getStdout();
-    boolean nameConfigured = false;
-    boolean emailConfigured = false;
+    boolean nameConfigured = !Strings.isNullOrEmpty(destinationOptions.committerName);
+    boolean emailConfigured = !Strings.isNullOrEmpty(destinationOptions.committerEmail);
     for (String line : output.split("\n")) {
       if (line.startsWith("user.name=")) {
         nameConfigured = true;
@@ -113,15 +133,33 @@ public final class GitDestination implements Destination {
     return new WriterImpl(destinationFiles);
   }
 
-  private class WriterImpl implements Writer {
+  private class WriterImpl implements Destination.BufferedWriter {
 
+    /**
+     * Worktree of the destination cache, shared by {@link #getPreviousRef} and {@link #write}, and
+     * removed by {@link #flush}.
+     */
     @Nullable private GitRepository scratchClone;
+    // Whether scratchClone is checked out and configured for committing
+    private boolean prepared;
+    @Nullable private String fetchHead;
     private final Glob destinationFiles;
+    /**
+     * Commits created in the scratch clone but not pushed yet, oldest first.
+     */
+    private final List<PendingCommit> unpushed = new ArrayList<>();
 
     WriterImpl(Glob destinationFiles) {
       this.destinationFiles = Preconditions.checkNotNull(destinationFiles);
     }
 
+    /**
+     * Returns the value of {@code labelName} in the body of the newest commit of the fetch
+     * reference that affects the destination roots, using a single streaming {@code git log} that
+     * stops as soon as the label is found. If the last commit pushed with the label, recorded in
+     * the {@link DestinationLabelIndex}, is still in the history, only the commits after it are
+     * read.
+     */
     @Nullable
     @Override
     public String getPreviousRef(String labelName) throws RepoException {
@@ -129,41 +167,50 @@ public final class GitDestination implements Destination {
         return null;
       }
       ImmutableSet<String> roots = destinationFiles.roots();
-      GitRepository gitRepository = cloneBaseline();
-      String commit = gitRepository.revParse("FETCH_HEAD");
+      GitRepository gitRepository = scratchClone();
+      String head = gitRepository.revParse("HEAD");
+      DestinationLabelIndex.Entry indexed = labelIndex.lookup(labelName, roots);
+      if (indexed != null && !gitRepository.isAncestor(indexed.commit, head)) {
+        // For example, the destination was rewritten after the push
+        indexed = null;
+      }
       String labelPrefix = labelName + ": ";
-      // Look at commits in reverse chronological order, starting from FETCH_HEAD.
-      while (!commit.isEmpty()) {
-        // Get commit message body.
-        String body = gitRepository.simpleCommand(
-            createPreviousRefLogCommand(roots, commit, "--format=%b")).getStdout();
-        for (String line : body.split("\n")) {
-          if (line.startsWith(labelPrefix)) {
-            return line.substring(labelPrefix.length());
+      // Look at commits in reverse chronological order, starting from the fetched head.
+      try (GitLogStream log = gitRepository.log(createPreviousRefLogParams(roots, head,
+          indexed == null ? null : indexed.commit))) {
+        GitLogStream.Entry entry;
+        while ((entry = log.next()) != null) {
+          for (String line : messageBody(entry.body).split("\n")) {
+            if (line.startsWith(labelPrefix)) {
+              return line.substring(labelPrefix.length());
+            }
+          }
+          if (entry.parents.size() > 1) {
+            throw new RepoException(
+                "Found commit with multiple parents (merge commit) when looking for "
+                + labelName + ". Please invoke Copybara with the --last-rev flag.");
           }
-        }
-
-        // Get parent hash.
-        commit = gitRepository.simpleCommand(
-            createPreviousRefLogCommand(roots, commit, "--format=%P")).getStdout().trim();
-        if (commit.indexOf(' ') != -1) {
-          throw new RepoException(
-              "Found commit with multiple parents (merge commit) when looking for "
-              + labelName + ". Please invoke Copybara with the --last-rev flag.");
         }
       }
-
-      return null;
+      // No other commit added the label after the indexed one
+      return indexed == null ? null : indexed.value;
     }
 
-    private String[] createPreviousRefLogCommand(ImmutableSet<String> roots, String commit,
-        String format) {
-      List<String> args = Lists.newArrayList("log", "--no-color", format, commit, "-1");
+    /**
+     * Returns the parameters of a {@code git log} of the commits of {@code commit} that affect
+     * {@code roots}, excluding {@code excludedCommit} and its ancestors if not null.
+     */
+    private List<String> createPreviousRefLogParams(ImmutableSet<String> roots, String commit,
+        @Nullable String excludedCommit) {
+      List<String> params = Lists.newArrayList("--no-color", commit);
+      if (excludedCommit != null) {
+        params.add("^" + excludedCommit);
+      }
       if (!roots.isEmpty() && !roots.equals(SINGLE_ROOT_WITHOUT_FOLDER)) {
-        args.add("--");
-        args.addAll(roots);
+        params.add("--");
+        params.addAll(roots);
       }
-      return args.toArray(new String[args.size()]);
+      return params;
     }
 
     @Override
@@ -172,29 +219,38 @@ public final class GitDestination implements Destination {
       logger.log(Level.INFO, "Exporting from " + transformResult.getPath() + " to: " + this);
 
       String baseline = transformResult.getBaseline();
-      if (scratchClone == null) {
-        console.progress("Git Destination: Fetching " + repoUrl);
-
-        scratchClone = cloneBaseline();
+      if (!prepared) {
+        if (scratchClone == null) {
+          console.progress("Git Destination: Fetching " + repoUrl);
+        }
+        scratchClone = scratchClone();
         if (destinationOptions.firstCommit && baseline != null) {
           throw new RepoException(
               "Cannot use " + FIRST_COMMIT_FLAG + " and a previous baseline (" + baseline
               + "). Migrate some code to " + repoUrl + ":" + repoUrl + " first.");
         }
         if (!destinationOptions.firstCommit) {
+          fetchHead = scratchClone.revParse("HEAD");
           console.progress("Git Destination: Checking out " + fetch);
           // If baseline is not null we sync first to the baseline and apply the changes on top of
-          // that. Then we will rebase the new change to FETCH_HEAD.
-          scratchClone.simpleCommand("checkout", "-q", baseline != null ? baseline : "FETCH_HEAD");
+          // that. Then we will rebase the new change to the fetched head.
+          scratchClone.simpleCommand("checkout", "-q", baseline != null ? baseline : fetchHead);
         }
 
+        // The configuration of the worktree is shared with the destination cache, so the committer
+        // is overridden using the environment instead of 'git config'.
+        Map<String, String> committerEnvironment = new HashMap<>(environment);
         if (!Strings.isNullOrEmpty(destinationOptions.committerName)) {
-          scratchClone.simpleCommand("config", "user.name", destinationOptions.committerName);
+          committerEnvironment.put("GIT_AUTHOR_NAME", destinationOptions.committerName);
+          committerEnvironment.put("GIT_COMMITTER_NAME", destinationOptions.committerName);
         }
         if (!Strings.isNullOrEmpty(destinationOptions.committerEmail)) {
-          scratchClone.simpleCommand("config", "user.email", destinationOptions.committerEmail);
+          committerEnvironment.put("GIT_AUTHOR_EMAIL", destinationOptions.committerEmail);
+          committerEnvironment.put("GIT_COMMITTER_EMAIL", destinationOptions.committerEmail);
         }
+        scratchClone = scratchClone.withEnvironment(committerEnvironment);
         verifyUserInfoConfigured(scratchClone);
+        prepared = true;
       }
 
       // Get the submodules before we stage them for deletion with
@@ -205,15 +261,26 @@ public final class GitDestination implements Destination {
 
       console.progress("Git Destination: Creating a local commit");
       GitRepository alternate = scratchClone.withWorkTree(transformResult.getPath());
-      alternate.simpleCommand("add", "--all");
+      // The index built directly doesn't have stat data, so it cannot be rebased in the workdir
+      boolean directIndex = destinationOptions.directIndex && baseline == null
+          && IndexBuilder.stage(alternate, Runtime.getRuntime().availableProcessors());
+      if (!directIndex) {
+        alternate.simpleCommand("add", "--all");
+      }
 
       excludedAdder.add();
 
-      alternate.commit(alternate, transformResult.getAuthor().toString(),
-          transformResult.getTimestamp(), commitGenerator.message(transformResult, alternate));
+      String message = commitGenerator.message(transformResult, alternate);
+      if (directIndex) {
+        alternate.commitIndex(transformResult.getAuthor(), transformResult.getTimestamp(),
+            message);
+      } else {
+        alternate.commit(alternate, transformResult.getAuthor().toString(),
+            transformResult.getTimestamp(), message);
+      }
 
       if (baseline != null) {
-        alternate.rebase("FETCH_HEAD");
+        alternate.rebase(fetchHead);
       }
 
       if (transformResult.isAskForConfirmation()) {
@@ -227,28 +294,243 @@ public final class GitDestination implements Destination {
               "User aborted execution: did not confirm diff changes.");
         }
       }
-      console.progress(String.format("Git Destination: Pushing to %s %s", repoUrl, push));
-      // Git push writes to Stderr
-      processPushOutput.process(
-          alternate.simpleCommand("push", repoUrl, "HEAD:" + GitDestination.this.push).getStderr());
+      unpushed.add(new PendingCommit(alternate.revParse("HEAD"), transformResult, message));
+      int batchSize = destinationOptions.pushBatchSize;
+      // A confirmed change is pushed right away: the user confirmed a push, not a local commit.
+      if (transformResult.isAskForConfirmation()
+          || (batchSize > 0 && unpushed.size() >= batchSize)) {
+        pushUnpushed(console);
+      } else {
+        console.progress(String.format(
+            "Git Destination: %d commits waiting to be pushed", unpushed.size()));
+      }
       return WriterResult.OK;
     }
+
+    /**
+     * Pushes the pending commits and removes the worktree of the writer. A later write would create
+     * a new one.
+     */
+    @Override
+    public void flush(Console console) throws RepoException {
+      try {
+        if (!unpushed.isEmpty()) {
+          pushUnpushed(console);
+        }
+      } finally {
+        removeScratchClone();
+      }
+    }
+
+    /**
+     * Returns the worktree of the writer, fetching the destination and creating it on first use.
+     */
+    private GitRepository scratchClone() throws RepoException {
+      if (scratchClone == null) {
+        scratchClone = cloneBaseline();
+      }
+      return scratchClone;
+    }
+
+    private void removeScratchClone() {
+      if (scratchClone == null) {
+        return;
+      }
+      GitRepository clone = scratchClone;
+      scratchClone = null;
+      prepared = false;
+      fetchHead = null;
+      try {
+        if (destinationOptions.firstCommit) {
+          // A scratch repository, see cloneBaseline()
+          clone.closeCatFilePool();
+          FileUtil.deleteRecursively(clone.getWorkTree());
+        } else {
+          GitRepository cache = destinationCache();
+          Lock lock = cache.gitDirLock();
+          lock.lock();
+          try {
+            cache.removeWorktree(clone);
+          } finally {
+            lock.unlock();
+          }
+        }
+      } catch (RepoException | IOException e) {
+        logger.log(Level.WARNING, "Cannot remove " + clone.getWorkTree(), e);
+      }
+    }
+
+    /**
+     * Pushes all the commits created since the last push at once. If that fails, the commits that
+     * the remote didn't accept are pushed one by one, so that all the commits before the first one
+     * that fails are pushed.
+     */
+    private void pushUnpushed(Console console) throws RepoException {
+      List<PendingCommit> commits = new ArrayList<>(unpushed);
+      // Never try to push these commits again, even if the push fails
+      unpushed.clear();
+      console.progress(commits.size() == 1
+          ? String.format("Git Destination: Pushing to %s %s", repoUrl, push)
+          : String.format("Git Destination: Pushing %d commits to %s %s",
+              commits.size(), repoUrl, push));
+      try {
+        pushCommit(commits.get(commits.size() - 1));
+      } catch (RepoException e) {
+        if (commits.size() == 1) {
+          throw e;
+        }
+        resumePush(commits, e, console);
+        return;
+      }
+      for (PendingCommit commit : commits) {
+        recordPushedLabel(commit);
+      }
+    }
+
+    private void resumePush(List<PendingCommit> commits, RepoException pushError,
+        Console console) throws RepoException {
+      String remoteHead;
+      try {
+        remoteHead = remotePushHead();
+      } catch (RepoException e) {
+        pushError.addSuppressed(e);
+        throw pushError;
+      }
+      int accepted = 0;
+      for (int i = 0; i < commits.size(); i++) {
+        if (commits.get(i).sha.equals(remoteHead)) {
+          accepted = i + 1;
+        }
+      }
+      for (PendingCommit commit : commits.subList(0, accepted)) {
+        recordPushedLabel(commit);
+      }
+      if (accepted == commits.size()) {
+        logger.log(Level.WARNING, "Push reported an error but the remote contains all the commits",
+            pushError);
+        return;
+      }
+      logger.log(Level.WARNING, "Push of " + commits.size() + " commits failed", pushError);
+      console.warn(String.format(
+          "Pushing %d commits to %s %s failed. Pushing the remaining %d commits one by one.",
+          commits.size(), repoUrl, push, commits.size() - accepted));
+      for (PendingCommit commit : commits.subList(accepted, commits.size())) {
+        console.progress(String.format("Git Destination: Pushing %s to %s %s",
+            commit.transformResult.getOriginRef().asString(), repoUrl, push));
+        pushCommit(commit);
+        recordPushedLabel(commit);
+      }
+    }
+
+    private void pushCommit(PendingCommit commit) throws RepoException {
+      // Git push writes to Stderr
+      processPushOutput.process(scratchClone.simpleCommand(
+          "push", repoUrl, commit.sha + ":" + GitDestination.this.push).getStderr());
+    }
+
+    /**
+     * Returns the commit that the push reference points to in the remote, or null if it doesn't
+     * exist.
+     */
+    @Nullable
+    private String remotePushHead() throws RepoException {
+      String ref = push.startsWith("refs/") ? push : "refs/heads/" + push;
+      String output = scratchClone.simpleCommand("ls-remote", repoUrl, ref).getStdout();
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(output)) {
+        List<String> fields = Splitter.on('\t').splitToList(line);
+        if (fields.size() == 2 && fields.get(1).equals(ref)) {
+          return fields.get(0);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Adds the origin label of a commit that was pushed to the label index, so that the next
+     * {@link #getPreviousRef(String)} doesn't need to read the history.
+     */
+    private void recordPushedLabel(PendingCommit commit) {
+      String labelName = commit.transformResult.getOriginRef().getLabelName();
+      String value = commit.transformResult.getOriginRef().asString();
+      if (("\n" + messageBody(commit.message)).contains("\n" + labelName + ": " + value + "\n")) {
+        labelIndex.record(commit.sha, labelName, value, destinationFiles.roots());
+      }
+    }
+  }
+
+  /**
+   * Returns the body of a commit message, like the {@code %b} format of git: the message without
+   * the subject, that is its first paragraph. Labels are only looked for in the body.
+   */
+  private static String messageBody(String message) {
+    int endOfSubject = message.indexOf("\n\n");
+    return endOfSubject == -1 ? "" : message.substring(endOfSubject + 2);
+  }
+
+  /**
+   * A commit created in the scratch clone that is not known to be in the remote yet.
+   */
+  private static final class PendingCommit {
+
+    private final String sha;
+    private final TransformResult transformResult;
+    private final String message;
+
+    private PendingCommit(String sha, TransformResult transformResult, String message) {
+      this.sha = Preconditions.checkNotNull(sha);
+      this.transformResult = Preconditions.checkNotNull(transformResult);
+      this.message = Preconditions.checkNotNull(message);
+    }
   }
 
+  /**
+   * Returns a repository with a new work tree, whose HEAD is detached at the head of the fetch
+   * reference.
+   *
+   * <p>The destination history is kept in a bare repository under the git repo storage, shared by
+   * all the runs. Only the new commits are fetched, and each call creates a cheap worktree of it
+   * instead of cloning the destination. If the fetch reference doesn't exist yet and
+   * {@link GitDestinationOptions#firstCommit} is set, an empty scratch repository is returned.
+   */
   private GitRepository cloneBaseline() throws RepoException {
-    GitRepository scratchClone = GitRepository.initScratchRepo(verbose, environment);
+    GitRepository cache = destinationCache();
+    String cacheRef = DESTINATION_FETCH_REF_PREFIX + fetch;
+    // Other workflows can be writing to the same destination repository, maybe to a different
+    // reference, and concurrent fetches race on FETCH_HEAD and on the reference locks.
+    Lock lock = cache.gitDirLock();
+    lock.lock();
     try {
-      scratchClone.simpleCommand("fetch", repoUrl, fetch);
-      if (destinationOptions.firstCommit) {
-        throw new RepoException("'" + fetch + "' already exists in '" + repoUrl + "'.");
+      if (!Files.isDirectory(cache.getGitDir())) {
+        cache.initGitDir();
       }
-    } catch (CannotFindReferenceException e) {
-      if (!destinationOptions.firstCommit) {
-        throw new RepoException("'" + fetch + "' doesn't exist in '" + repoUrl
-            + "'. Use --git-first-commit flag if you want to push anyway");
+      try {
+        // Keeping the fetched commits in a reference makes the next fetches incremental
+        cache.simpleCommand("fetch", "-f", repoUrl, "+" + fetch + ":" + cacheRef);
+        if (destinationOptions.firstCommit) {
+          throw new RepoException("'" + fetch + "' already exists in '" + repoUrl + "'.");
+        }
+      } catch (CannotFindReferenceException e) {
+        if (!destinationOptions.firstCommit) {
+          throw new RepoException("'" + fetch + "' doesn't exist in '" + repoUrl
+              + "'. Use --git-first-commit flag if you want to push anyway");
+        }
+        return GitRepository.initScratchRepo(verbose, environment);
       }
+      Path worktree;
+      try {
+        worktree = Files.createTempDirectory("copybara-destination");
+      } catch (IOException e) {
+        throw new RepoException("Could not make temporary directory for destination worktree", e);
+      }
+      return cache.addWorktree(worktree, cacheRef);
+    } finally {
+      lock.unlock();
     }
-    return scratchClone;
+  }
+
+  private GitRepository destinationCache() {
+    return GitRepository.cachedBareRepo(
+        FileSystems.getDefault().getPath(gitOptions.repoStorage), repoUrl, verbose, environment);
   }
 
   @Override
@@ -42,6 +42,20 @@ public final class GitDestinationOptions implements Option {
       description = "Ignore that the fetch reference doesn't exist when pushing to destination")
   boolean firstCommit = false;
 
+  @Parameter(names = "--git-push-batch-size",
+      description = "Number of commits that git destination creates locally before pushing them"
+          + " at once. 0 pushes all the commits at the end of the migration. If a push of several"
+          + " commits fails, the commits that the remote didn't accept are pushed one by one.")
+  int pushBatchSize = 1;
+
+  @Parameter(names = "--git-destination-direct-index",
+      description = "Stage the files of the destination commits by hashing them in parallel and"
+          + " writing only the new blobs, instead of using 'git add', and create the commits with"
+          + " 'git commit-tree'. .gitattributes filters and end of line conversions are not"
+          + " applied, so it is not used for trees that contain .gitattributes files, nor when"
+          + " the commits have to be rebased.")
+  boolean directIndex = false;
+
   @Parameter(names = "--git-destination-url",
       description = "If set, overrides the git destination URL.")
   String url = null;
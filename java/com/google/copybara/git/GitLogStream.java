@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.RepoException;
+import com.google.devtools.build.lib.shell.ShellUtils;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Streaming reader for the output of a {@code git log} invocation.
+ *
+ * <p>The log is requested in a machine-friendly format where every field is terminated by a NUL
+ * byte, and commits are parsed one at a time as {@link #next()} is called. Only the commit being
+ * parsed is kept in memory, independently of the number of commits in the log.
+ *
+ * <p>Closing the stream before reaching the end kills the {@code git} process.
+ */
+final class GitLogStream implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(GitLogStream.class.getName());
+
+  /**
+   * Format passed to {@code git log}. Every field is terminated by NUL, and tformat adds a newline
+   * after every commit. Commit messages cannot contain NUL.
+   */
+  static final String FORMAT = "--format=tformat:%H %P%x00%an <%ae>%x00%ad%x00%B%x00";
+
+  private final Process process;
+  private final InputStream stdout;
+  private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+  private final Thread stderrCollector;
+  private final String commandLine;
+  private boolean finished;
+
+  private GitLogStream(Process process, String commandLine) {
+    this.process = Preconditions.checkNotNull(process);
+    this.commandLine = commandLine;
+    this.stdout = new BufferedInputStream(process.getInputStream());
+    this.stderrCollector = new Thread("git log stderr") {
+      @Override
+      public void run() {
+        try {
+          ByteStreams.copy(GitLogStream.this.process.getErrorStream(), stderr);
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Error reading git log stderr", e);
+        }
+      }
+    };
+    stderrCollector.setDaemon(true);
+    stderrCollector.start();
+  }
+
+  /**
+   * Starts {@code git} with {@code argv}. The arguments must include {@link #FORMAT}.
+   */
+  static GitLogStream start(List<String> argv, Map<String, String> environment, Path cwd)
+      throws RepoException {
+    String commandLine = ShellUtils.prettyPrintArgv(argv);
+    logger.log(Level.INFO, "Executing [" + commandLine + "]");
+    ProcessBuilder builder = new ProcessBuilder(argv);
+    builder.environment().clear();
+    builder.environment().putAll(environment);
+    builder.directory(cwd.toFile());
+    try {
+      Process process = builder.start();
+      // We don't write anything to git log
+      process.getOutputStream().close();
+      return new GitLogStream(process, commandLine);
+    } catch (IOException e) {
+      throw new RepoException("Error executing 'git': " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the next commit in the log or {@code null} if there are no more commits.
+   *
+   * @throws RepoException if git exited with an error or the output cannot be parsed
+   */
+  @Nullable
+  Entry next() throws RepoException {
+    if (finished) {
+      return null;
+    }
+    try {
+      String commitAndParents = readField();
+      if (commitAndParents == null) {
+        finish();
+        return null;
+      }
+      // tformat adds a newline between commits.
+      if (commitAndParents.startsWith("\n")) {
+        commitAndParents = commitAndParents.substring(1);
+      }
+      String author = readField();
+      String date = readField();
+      String body = readField();
+      if (author == null || date == null || body == null) {
+        throw new RepoException("Unexpected end of 'git log' output after commit "
+            + commitAndParents);
+      }
+      Iterator<String> references = Splitter.on(' ').omitEmptyStrings()
+          .split(commitAndParents).iterator();
+      String commit = references.next();
+      return new Entry(commit, ImmutableList.copyOf(references), author, date, body);
+    } catch (IOException e) {
+      close();
+      throw new RepoException("Error reading 'git log' output: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads the bytes up to the next NUL, or returns null if the end of the stream is reached
+   * without reading any (non-newline) byte.
+   */
+  @Nullable
+  private String readField() throws IOException {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    int b;
+    while ((b = stdout.read()) != 0) {
+      if (b == -1) {
+        String rest = new String(field.toByteArray(), UTF_8);
+        if (!rest.trim().isEmpty()) {
+          throw new IOException("Truncated field in 'git log' output: " + rest);
+        }
+        return null;
+      }
+      field.write(b);
+    }
+    return new String(field.toByteArray(), UTF_8);
+  }
+
+  private void finish() throws RepoException {
+    finished = true;
+    int exitCode;
+    try {
+      exitCode = process.waitFor();
+      stderrCollector.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new RepoException("Interrupted while waiting for 'git log'", e);
+    }
+    if (exitCode != 0) {
+      String stderrText = new String(stderr.toByteArray(), UTF_8);
+      logger.log(Level.SEVERE, "Command [" + commandLine + "] failed with exit code " + exitCode
+          + ". Stderr: " + stderrText);
+      throw GitRepository.errorFromStderr(stderrText,
+          "Error executing 'git': exit code " + exitCode + ". Stderr: \n" + stderrText,
+          /*cause=*/ null);
+    }
+  }
+
+  /**
+   * Stops reading the log. If git is still running, it is killed.
+   */
+  @Override
+  public void close() {
+    if (!finished) {
+      finished = true;
+      process.destroy();
+    }
+  }
+
+  /**
+   * A commit as printed by {@link #FORMAT}.
+   */
+  static final class Entry {
+
+    final String commit;
+    final ImmutableList<String> parents;
+    final String author;
+    final String date;
+    final String body;
+
+    private Entry(String commit, ImmutableList<String> parents, String author, String date,
+        String body) {
+      this.commit = commit;
+      this.parents = parents;
+      this.author = author;
+      this.date = date;
+      this.body = body;
+    }
+  }
+}
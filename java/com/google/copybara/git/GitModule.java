@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.copybara.config.base.SkylarkUtil.checkNotEmpty;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
 import com.google.copybara.config.base.OptionsAwareModule;
@@ -33,7 +34,9 @@ import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature;
 import com.google.devtools.build.lib.syntax.BuiltinFunction;
 import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.Type;
+import java.util.List;
 
 /**
  * Main module that groups all the functions that create Git origins and destinations.
@@ -55,7 +58,8 @@ public class GitModule implements OptionsAwareModule {
           + "<ul>"
           + "<li>**Branch name:** For example `master`</li>"
           + "<li>**An arbitrary reference:** `refs/changes/20/50820/1`</li>"
-          + "<li>**A SHA-1:** Note that currently it has to be reachable from the default refspec</li>"
+          + "<li>**A SHA-1:** Note that it has to be reachable from `fetch_refspecs` (The remote"
+          + " HEAD by default)</li>"
           + "<li>**A Git repository URL and reference:** `http://github.com/foo master`</li>"
           + "<li>**A GitHub pull request URL:** `https://github.com/some_project/pull/1784`</li>"
           + "</ul><br>"
@@ -69,14 +73,30 @@ public class GitModule implements OptionsAwareModule {
           @Param(name = "ref", type = String.class, noneable = true, defaultValue = "None",
               doc = "Represents the default reference that will be used for reading the revision "
                   + "from the git repository. For example: 'master'"),
+          @Param(name = "fetch_refspecs", type = SkylarkList.class, generic1 = String.class,
+              doc = "Source refspecs fetched for resolving SHA-1 references, for example "
+                  + "`['refs/heads/master']`. By default the remote HEAD is fetched. Narrowing it "
+                  + "avoids downloading unrelated branches.",
+              defaultValue = "[]", named = true, positional = false),
+          @Param(name = "depth", type = Integer.class,
+              doc = "If greater than 0, the first fetch only downloads this number of commits. "
+                  + "The history is deepened on demand when an older SHA-1 reference (like the "
+                  + "last migrated revision) is resolved, so `fetch_refspecs` should include the "
+                  + "branches that contain them.",
+              defaultValue = "0", named = true, positional = false),
+          @Param(name = "partial_clone", type = Boolean.class,
+              doc = "Do not download file contents until a checkout needs them "
+                  + "(`--filter=blob:none`). Requires a server that supports partial clones.",
+              defaultValue = "False", named = true, positional = false),
       },
-      objectType = GitModule.class)
+      objectType = GitModule.class, useLocation = true)
   public static final BuiltinFunction ORIGIN = new BuiltinFunction("origin") {
-    public GitOrigin invoke(GitModule self, String url, Object ref)
-        throws EvalException {
+    public GitOrigin invoke(GitModule self, String url, Object ref, SkylarkList fetchRefspecs,
+        Integer depth, Boolean partialClone, Location location) throws EvalException {
       return GitOrigin.newGitOrigin(
           self.options, url, Type.STRING.convertOptional(ref, "ref"), GitRepoType.GIT,
-          self.options.get(GeneralOptions.class).getEnvironment());
+          self.options.get(GeneralOptions.class).getEnvironment(),
+          fetchOptions(fetchRefspecs, depth, partialClone, location));
     }
   };
 
@@ -110,21 +130,52 @@ public class GitModule implements OptionsAwareModule {
           @Param(name = "ref", type = String.class, noneable = true, defaultValue = "None",
               doc = "Represents the default reference that will be used for reading the revision "
                   + "from the git repository. For example: 'master'"),
+          @Param(name = "fetch_refspecs", type = SkylarkList.class, generic1 = String.class,
+              doc = "Source refspecs fetched for resolving SHA-1 references, for example "
+                  + "`['refs/heads/master']`. By default the remote HEAD is fetched. Narrowing it "
+                  + "avoids downloading unrelated branches.",
+              defaultValue = "[]", named = true, positional = false),
+          @Param(name = "depth", type = Integer.class,
+              doc = "If greater than 0, the first fetch only downloads this number of commits. "
+                  + "The history is deepened on demand when an older SHA-1 reference (like the "
+                  + "last migrated revision) is resolved, so `fetch_refspecs` should include the "
+                  + "branches that contain them.",
+              defaultValue = "0", named = true, positional = false),
+          @Param(name = "partial_clone", type = Boolean.class,
+              doc = "Do not download file contents until a checkout needs them "
+                  + "(`--filter=blob:none`). Requires a server that supports partial clones.",
+              defaultValue = "False", named = true, positional = false),
       },
       objectType = GitModule.class, useLocation = true)
   public static final BuiltinFunction GITHUB_ORIGIN = new BuiltinFunction("github_origin") {
-    public GitOrigin invoke(GitModule self, String url, Object ref, Location location)
-        throws EvalException {
+    public GitOrigin invoke(GitModule self, String url, Object ref, SkylarkList fetchRefspecs,
+        Integer depth, Boolean partialClone, Location location) throws EvalException {
       if (!url.contains("github.com")) {
         throw new EvalException(location, "Invalid Github URL: " + url);
       }
 
       return GitOrigin.newGitOrigin(
           self.options, url, Type.STRING.convertOptional(ref, "ref"), GitRepoType.GITHUB,
-          self.options.get(GeneralOptions.class).getEnvironment());
+          self.options.get(GeneralOptions.class).getEnvironment(),
+          fetchOptions(fetchRefspecs, depth, partialClone, location));
     }
   };
 
+  private static FetchOptions fetchOptions(SkylarkList fetchRefspecs, Integer depth,
+      Boolean partialClone, Location location) throws EvalException {
+    List<String> refspecs = Type.STRING_LIST.convert(fetchRefspecs, "fetch_refspecs");
+    for (String refspec : refspecs) {
+      if (refspec.isEmpty() || refspec.contains(":")) {
+        throw new EvalException(location, "Invalid fetch_refspecs element '" + refspec
+            + "'. Only source refspecs are allowed, for example 'refs/heads/master'");
+      }
+    }
+    if (depth < 0) {
+      throw new EvalException(location, "depth cannot be negative: " + depth);
+    }
+    return new FetchOptions(ImmutableList.copyOf(refspecs), depth, partialClone);
+  }
+
   @SkylarkSignature(name = "destination", returnType = GitDestination.class,
       doc = "Creates a commit in a git repository using the transformed worktree",
       parameters = {
@@ -148,6 +199,7 @@ public class GitModule implements OptionsAwareModule {
           checkNotEmpty(fetch, "fetch", location),
           checkNotEmpty(push, "push", location),
           destinationOptions,
+          self.options.get(GitOptions.class),
           self.options.get(GeneralOptions.class).isVerbose(),
           new DefaultCommitGenerator(),
           new ProcessPushOutput(),
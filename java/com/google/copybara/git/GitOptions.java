@@ -18,13 +18,14 @@ package com.google.copybara.git;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
-import com.google.copybara.Option;
+import com.google.copybara.BatchOption;
+import javax.annotation.Nullable;
 
 /**
  * Common arguments for {@link GitDestination}, {@link GitOrigin}, and other Git components.
  */
 @Parameters(separators = "=")
-public final class GitOptions implements Option {
+public final class GitOptions implements BatchOption {
 
   // Not used by git.destination but it will be at some point to make fetches more efficient.
   @Parameter(names = "--git-repo-storage",
@@ -38,7 +39,41 @@ public final class GitOptions implements Option {
           + " after the checkout.", hidden = true)
   String originCheckoutHook = null;
 
+  @Parameter(names = "--git-origin-visit-batch-size",
+      description = "Number of commits read by each 'git log' invocation when walking the history"
+          + " of a git origin, for example for finding the baseline of a change request.",
+      hidden = true)
+  int visitChangesBatchSize = 500;
+
+  // Shared by all the jobs of a batch. Null if the options don't belong to a batch.
+  @Nullable
+  private OriginFetches originFetches;
+
   public GitOptions(String homeDir) {
     this.repoStorage = homeDir + "/.copybara/repos";
   }
+
+  @Override
+  public void shareBatchState(BatchOption batchOption) {
+    GitOptions batchGitOptions = (GitOptions) batchOption;
+    OriginFetches fetches;
+    synchronized (batchGitOptions) {
+      if (batchGitOptions.originFetches == null) {
+        batchGitOptions.originFetches = new OriginFetches();
+      }
+      fetches = batchGitOptions.originFetches;
+    }
+    synchronized (this) {
+      originFetches = fetches;
+    }
+  }
+
+  /**
+   * Returns the references resolved by the origins of the batch that these options belong to,
+   * or null if they don't belong to a batch.
+   */
+  @Nullable
+  synchronized OriginFetches getOriginFetches() {
+    return originFetches;
+  }
 }
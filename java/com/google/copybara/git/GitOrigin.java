@@ -22,8 +22,9 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.net.PercentEscaper;
+import com.google.common.collect.Lists;
 import com.google.copybara.Author;
 import com.google.copybara.Authoring;
 import com.google.copybara.Change;
@@ -40,15 +41,19 @@ import com.google.copybara.util.console.Console;
 import com.google.copybara.util.console.Consoles;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Nullable;
 
 /**
@@ -56,10 +61,6 @@ import javax.annotation.Nullable;
  */
 public final class GitOrigin implements Origin<GitReference> {
 
-  private static final PercentEscaper PERCENT_ESCAPER = new PercentEscaper(
-      "-_", /*plusForSpace=*/ true);
-
-  private static final String GIT_LOG_COMMENT_PREFIX = "    ";
   private final GitRepository repository;
 
   /**
@@ -78,10 +79,11 @@ public final class GitOrigin implements Origin<GitReference> {
   private final boolean verbose;
   @Nullable
   private final Map<String, String> environment;
+  private final FetchOptions fetchOptions;
 
   private GitOrigin(Console console, GitRepository repository, String repoUrl,
       @Nullable String configRef, GitRepoType repoType, GitOptions gitOptions, boolean verbose,
-      @Nullable Map<String, String> environment) {
+      @Nullable Map<String, String> environment, FetchOptions fetchOptions) {
     this.console = Preconditions.checkNotNull(console);
     this.repository = Preconditions.checkNotNull(repository);
     this.repoUrl = Preconditions.checkNotNull(repoUrl);
@@ -90,31 +92,178 @@ public final class GitOrigin implements Origin<GitReference> {
     this.gitOptions = gitOptions;
     this.verbose = verbose;
     this.environment = environment;
+    this.fetchOptions = Preconditions.checkNotNull(fetchOptions);
   }
 
+  /**
+   * Maximum number of paths passed in a single git command line.
+   */
+  private static final int DELETE_BATCH_SIZE = 1000;
+
   public GitRepository getRepository() {
     return repository;
   }
 
-  private class ReaderImpl implements Reader<GitReference> {
+  private class ReaderImpl implements Origin.IncrementalReader<GitReference> {
 
     final Authoring authoring;
+    final ImmutableSet<String> roots;
 
-    ReaderImpl(Authoring authoring) {
+    /**
+     * Index file used by {@link #checkoutIncremental}. It describes the files written to
+     * {@link #incrementalWorkdir}, so that git can detect the ones that need to be written again.
+     */
+    @Nullable
+    private Path incrementalIndex;
+    @Nullable
+    private Path incrementalWorkdir;
+    @Nullable
+    private GitReference incrementalRef;
+
+    ReaderImpl(Authoring authoring, ImmutableSet<String> roots) {
       this.authoring = Preconditions.checkNotNull(authoring);
+      this.roots = Preconditions.checkNotNull(roots);
     }
 
     /**
      * Creates a worktree with the contents of the git reference
      *
-     * <p>Any content in the workdir is removed/overwritten.
+     * <p>Any content in the workdir is removed/overwritten. Only the files under the roots of
+     * {@code origin_files} are written.
      */
     @Override
     public void checkout(GitReference ref, Path workdir) throws RepoException {
-      repository.withWorkTree(workdir).simpleCommand("checkout", "-q", "-f", ref.asString());
+      GitRepository worktree = repository.withWorkTree(workdir);
+      // The checkout moves HEAD and uses the default index of the repository
+      Lock lock = repository.gitDirLock();
+      lock.lock();
+      try {
+        if (roots.isEmpty() || roots.contains("")) {
+          worktree.simpleCommand("checkout", "-q", "-f", ref.asString());
+        } else {
+          List<String> paths = existingRoots(ref);
+          // Otherwise there is nothing to check out
+          if (!paths.isEmpty()) {
+            List<String> argv = Lists.newArrayList(
+                "--literal-pathspecs", "checkout", "-q", "-f", ref.asString(), "--");
+            argv.addAll(paths);
+            worktree.simpleCommand(argv.toArray(new String[argv.size()]));
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (!Strings.isNullOrEmpty(gitOptions.originCheckoutHook)) {
+        runCheckoutOrigin(workdir);
+      }
+    }
+
+    /**
+     * Updates the checkout of the previous call using a dedicated index: files not in the index
+     * (for example created by transformations) are removed with {@code git clean}, files deleted
+     * since the previous reference are found with {@code git diff-tree} and removed, and
+     * {@code git checkout} only writes the files that are new, changed or don't match the index
+     * anymore.
+     */
+    @Override
+    public synchronized void checkoutIncremental(GitReference ref, Path workdir)
+        throws RepoException {
+      try {
+        if (incrementalIndex == null) {
+          Path indexDir = Files.createTempDirectory("copybara-checkout-index");
+          indexDir.toFile().deleteOnExit();
+          incrementalIndex = indexDir.resolve("index");
+          incrementalIndex.toFile().deleteOnExit();
+        }
+        if (!workdir.equals(incrementalWorkdir)) {
+          // With an empty index, 'git clean' removes everything
+          Files.deleteIfExists(incrementalIndex);
+          incrementalRef = null;
+        }
+      } catch (IOException e) {
+        throw new RepoException("Cannot create the index for " + workdir, e);
+      }
+      // Forget the previous state until this checkout succeeds
+      GitReference previousRef = incrementalRef;
+      incrementalWorkdir = null;
+      incrementalRef = null;
+
+      GitRepository worktree = repository.withWorkTree(workdir).withIndexFile(incrementalIndex);
+      worktree.simpleCommand("clean", "-q", "-f", "-f", "-d", "-x");
+      if (previousRef != null) {
+        removeDeletedFiles(worktree, previousRef, ref, workdir);
+      }
+      List<String> paths = roots.isEmpty() || roots.contains("")
+          ? ImmutableList.of(".")
+          : existingRoots(ref);
+      if (!paths.isEmpty()) {
+        // Hard links to the files, like the snapshots of the workdir, change their ctime but not
+        // their content. Otherwise git would write again every file that was linked.
+        List<String> argv = Lists.newArrayList("--literal-pathspecs", "-c", "core.trustctime=false",
+            "checkout", "-q", "-f", ref.asString(), "--");
+        argv.addAll(paths);
+        worktree.simpleCommand(argv.toArray(new String[argv.size()]));
+      }
       if (!Strings.isNullOrEmpty(gitOptions.originCheckoutHook)) {
         runCheckoutOrigin(workdir);
       }
+      incrementalWorkdir = workdir;
+      incrementalRef = ref;
+    }
+
+    /**
+     * Removes from the index and from {@code workdir} the files under the roots that exist in
+     * {@code previousRef} but not in {@code ref}, and the directories that become empty, like
+     * {@code git rm}. Otherwise checking out {@code ref} would keep them.
+     */
+    private void removeDeletedFiles(GitRepository worktree, GitReference previousRef,
+        GitReference ref, Path workdir) throws RepoException {
+      List<String> argv = Lists.newArrayList("--literal-pathspecs", "diff-tree", "-r", "-z",
+          "--no-renames", "--name-only", "--diff-filter=D", previousRef.asString(),
+          ref.asString(), "--");
+      if (!roots.contains("")) {
+        argv.addAll(roots);
+      }
+      List<String> deleted = Splitter.on('\0').omitEmptyStrings().splitToList(
+          repository.simpleCommand(argv.toArray(new String[argv.size()])).getStdout());
+      for (List<String> batch : Lists.partition(deleted, DELETE_BATCH_SIZE)) {
+        List<String> rmArgv = Lists.newArrayList(
+            "--literal-pathspecs", "rm", "-q", "--cached", "--ignore-unmatch", "--");
+        rmArgv.addAll(batch);
+        worktree.simpleCommand(rmArgv.toArray(new String[rmArgv.size()]));
+      }
+      try {
+        for (String path : deleted) {
+          Path file = workdir.resolve(path);
+          Files.deleteIfExists(file);
+          for (Path dir = file.getParent(); !dir.equals(workdir) && isEmptyDirectory(dir);
+              dir = dir.getParent()) {
+            Files.delete(dir);
+          }
+        }
+      } catch (IOException e) {
+        throw new RepoException("Cannot delete files from " + workdir, e);
+      }
+    }
+
+    private boolean isEmptyDirectory(Path path) throws IOException {
+      if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        return false;
+      }
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+        return !entries.iterator().hasNext();
+      }
+    }
+
+    /**
+     * Returns the roots that exist in {@code ref}. Checking out a path that doesn't exist fails.
+     */
+    private List<String> existingRoots(GitReference ref) throws RepoException {
+      List<String> argv = Lists.newArrayList(
+          "--literal-pathspecs", "ls-tree", "-z", "--name-only", ref.asString(), "--");
+      argv.addAll(roots);
+      return Splitter.on('\0').omitEmptyStrings().splitToList(
+          repository.simpleCommand(argv.toArray(new String[argv.size()])).getStdout());
     }
 
     @Override
@@ -125,39 +274,105 @@ public final class GitOrigin implements Origin<GitReference> {
           ? toRef.asString()
           : fromRef.asString() + ".." + toRef.asString();
 
-      return asChanges(new QueryChanges(authoring).run(refRange));
+      for (int attempt = 0; ; attempt++) {
+        ImmutableList<Change<GitReference>> changes = new QueryChanges(authoring).run(refRange);
+        if (!reachesShallowRoot(changes)) {
+          return changes;
+        }
+        // The log stopped at the boundary of a shallow fetch instead of at fromRef
+        deepen(attempt);
+      }
+    }
+
+    private boolean reachesShallowRoot(List<Change<GitReference>> changes)
+        throws RepoException {
+      ImmutableSet<String> shallowRoots = repository.getShallowRoots();
+      for (Change<GitReference> change : changes) {
+        if (shallowRoots.contains(change.getReference().asString())) {
+          return true;
+        }
+      }
+      return false;
     }
 
     @Override
     public Change<GitReference> change(GitReference ref) throws RepoException {
       // The limit=1 flag guarantees that only one change is returned
-      return Iterables
-          .getOnlyElement(asChanges(new QueryChanges(authoring).limit(1).run(ref.asString())));
+      return Iterables.getOnlyElement(new QueryChanges(authoring).limit(1).run(ref.asString()));
     }
 
+    /**
+     * Walks the first-parent history of {@code start} in batches of
+     * {@link GitOptions#visitChangesBatchSize} commits, so that the number of git invocations
+     * depends on the number of batches and not on the number of commits visited. The current
+     * {@code git log} is killed as soon as the visitor asks to terminate.
+     */
     @Override
     public void visitChanges(GitReference start, ChangesVisitor visitor) throws RepoException {
-      QueryChanges queryChanges = new QueryChanges(authoring).limit(1);
-
-      ImmutableList<GitChange> result = queryChanges.run(start.asString());
-      if (result.isEmpty()) {
-        throw new CannotFindReferenceException("Cannot find reference " + start.asString());
+      int batchSize = gitOptions.visitChangesBatchSize;
+      if (batchSize <= 0) {
+        throw new RepoException(
+            "--git-origin-visit-batch-size should be greater than 0. Was: " + batchSize);
       }
-      GitChange current = Iterables.getOnlyElement(result);
-      while (current != null) {
-        if (visitor.visit(current.change) == VisitResult.TERMINATE
-            || current.parents.isEmpty()) {
-          break;
+      QueryChanges queryChanges = new QueryChanges(authoring).limit(batchSize).newestFirst();
+
+      String next = start.asString();
+      boolean firstBatch = true;
+      int deepenAttempt = 0;
+      while (next != null) {
+        GitChange last = null;
+        int count = 0;
+        try (GitLogStream log = queryChanges.stream(next)) {
+          GitLogStream.Entry entry;
+          while ((entry = log.next()) != null) {
+            last = queryChanges.parseChange(entry);
+            count++;
+            if (visitor.visit(last.change) == VisitResult.TERMINATE) {
+              return;
+            }
+          }
+        }
+        if (last == null) {
+          if (firstBatch) {
+            throw new CannotFindReferenceException("Cannot find reference " + start.asString());
+          }
+          return;
+        }
+        firstBatch = false;
+        String lastSha1 = last.change.getReference().asString();
+        if (last.parents.isEmpty() && repository.getShallowRoots().contains(lastSha1)) {
+          // Not the root commit: the parents were not fetched yet. Continue after deepening.
+          deepen(deepenAttempt++);
+          next = lastSha1 + "^";
+        } else {
+          // A short batch means that we reached the root commit.
+          next = count < batchSize || last.parents.isEmpty()
+              ? null
+              : last.parents.get(0).asString();
         }
-        current = Iterables.getOnlyElement(queryChanges.run(current.parents.get(0).asString()));
       }
     }
   }
 
+  /**
+   * Fetches older commits into the shallow history of the cached repository, when a walk of the
+   * history reaches a commit whose parents were not fetched. See
+   * {@link GitRepository#deepen(String, FetchOptions, int)}.
+   */
+  private void deepen(int attempt) throws RepoException {
+    console.progress("Git Origin: Fetching older history of " + repoUrl);
+    Lock lock = repository.gitDirLock();
+    lock.lock();
+    try {
+      repository.deepen(repoUrl, fetchOptions, attempt);
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public Reader<GitReference> newReader(Glob originFiles, Authoring authoring) {
-    // TODO(matvore): Use originFiles to determine the depot trees from which to read.
-    return new ReaderImpl(authoring);
+    return new ReaderImpl(authoring, originFiles.roots());
   }
 
   private void runCheckoutOrigin(Path workdir) throws RepoException {
@@ -180,8 +395,6 @@ public final class GitOrigin implements Origin<GitReference> {
 
   @Override
   public GitReference resolve(@Nullable String reference) throws RepoException {
-    console.progress("Git Origin: Initializing local repo");
-    repository.initGitDir();
     String ref;
     if (Strings.isNullOrEmpty(reference)) {
       if (configRef == null) {
@@ -192,7 +405,31 @@ public final class GitOrigin implements Origin<GitReference> {
     } else {
       ref = reference;
     }
-    return repoType.resolveRef(repository, repoUrl, ref, console);
+    OriginFetches fetches = gitOptions == null ? null : gitOptions.getOriginFetches();
+    if (fetches == null) {
+      return initAndResolve(ref);
+    }
+    final String finalRef = ref;
+    return fetches.resolve(repository, repoType + " " + repoUrl + " " + ref + " " + fetchOptions,
+        new OriginFetches.Resolver() {
+          @Override
+          public GitReference resolve() throws RepoException {
+            return initAndResolve(finalRef);
+          }
+        });
+  }
+
+  private GitReference initAndResolve(String ref) throws RepoException {
+    console.progress("Git Origin: Initializing local repo");
+    // Fetches race on FETCH_HEAD
+    Lock lock = repository.gitDirLock();
+    lock.lock();
+    try {
+      repository.initGitDir();
+      return repoType.resolveRef(repository, repoUrl, ref, console, fetchOptions);
+    } finally {
+      lock.unlock();
+    }
   }
 
   private class QueryChanges {
@@ -204,6 +441,7 @@ public final class GitOrigin implements Origin<GitReference> {
     }
 
     private int limit = -1;
+    private boolean reverse = true;
 
     /**
      * Limit the number of results
@@ -214,10 +452,42 @@ public final class GitOrigin implements Origin<GitReference> {
       return this;
     }
 
-    public ImmutableList<GitChange> run(String refExpression)
+    /**
+     * Return the newer commit first. By default the older commit is returned first.
+     */
+    QueryChanges newestFirst() {
+      this.reverse = false;
+      return this;
+    }
+
+    /**
+     * Returns the changes for {@code refExpression}, older commit first unless
+     * {@link #newestFirst()} was called.
+     *
+     * <p>{@link Origin.Reader#changes} returns all the changes at once, since the workflows need
+     * the whole list, so they are collected here while the log is parsed. Walking the history
+     * without keeping the changes is done by {@link ReaderImpl#visitChanges} using
+     * {@link #stream}.
+     */
+    public ImmutableList<Change<GitReference>> run(String refExpression)
         throws RepoException {
+      ImmutableList.Builder<Change<GitReference>> builder = ImmutableList.builder();
+      try (GitLogStream log = stream(refExpression)) {
+        GitLogStream.Entry entry;
+        while ((entry = log.next()) != null) {
+          builder.add(parseChange(entry).change);
+        }
+      }
+      return builder.build();
+    }
+
+    /**
+     * Starts a {@code git log} for {@code refExpression}. Entries can be converted to changes
+     * with {@link #parseChange(GitLogStream.Entry)}.
+     */
+    GitLogStream stream(String refExpression) throws RepoException {
       List<String> params = new ArrayList<>(
-          Arrays.asList("log", "--no-color", "--date=iso-strict"));
+          Arrays.asList("--no-color", "--date=iso-strict"));
 
       if (limit != -1) {
         params.add("-" + limit);
@@ -225,84 +495,50 @@ public final class GitOrigin implements Origin<GitReference> {
 
       params.add("--parents");
       params.add("--first-parent");
+      if (reverse) {
+        // Let git return the older commit first. The limit is applied before reversing.
+        params.add("--reverse");
+      }
 
       params.add(refExpression);
-      return parseChanges(
-          repository.simpleCommand(params.toArray(new String[params.size()])).getStdout());
+      return repository.log(params);
     }
 
-    private ImmutableList<GitChange> parseChanges(String log) {
-      // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
-      if (log.isEmpty()) {
-        return ImmutableList.of();
+    private GitChange parseChange(GitLogStream.Entry entry) {
+      GitReference ref = repository.createReferenceFromCompleteSha1(entry.commit);
+      ImmutableList.Builder<GitReference> parents = ImmutableList.builder();
+      for (String parent : entry.parents) {
+        parents.add(repository.createReferenceFromCompleteSha1(parent));
       }
-
-      Iterator<String> rawLines = Splitter.on('\n').split(log).iterator();
-      ImmutableList.Builder<GitChange> builder = ImmutableList.builder();
-
-      while (rawLines.hasNext()) {
-        String rawCommitLine = rawLines.next();
-        Iterator<String> commitReferences = Splitter.on(" ")
-            .split(removePrefix(log, rawCommitLine, "commit")).iterator();
-
-        GitReference ref = repository.createReferenceFromCompleteSha1(commitReferences.next());
-        ImmutableList.Builder<GitReference> parents = ImmutableList.builder();
-        while (commitReferences.hasNext()) {
-          parents.add(repository.createReferenceFromCompleteSha1(commitReferences.next()));
-        }
-        String line = rawLines.next();
-        Author author = null;
-        ZonedDateTime dateTime = null;
-        while (!line.isEmpty()) {
-          if (line.startsWith("Author: ")) {
-            String authorStr = line.substring("Author: ".length()).trim();
-            Author parsedUser = GitAuthorParser.parse(authorStr);
-            author = authoring.useAuthor(parsedUser.getEmail())
-                ? parsedUser
-                : authoring.getDefaultAuthor();
-          } else if (line.startsWith("Date: ")) {
-            dateTime = ZonedDateTime.parse(line.substring("Date: ".length()).trim());
+      Author parsedUser = GitAuthorParser.parse(entry.author);
+      Author author = authoring.useAuthor(parsedUser.getEmail())
+          ? parsedUser
+          : authoring.getDefaultAuthor();
+      ZonedDateTime dateTime = ZonedDateTime.parse(entry.date.trim());
+
+      StringBuilder message = new StringBuilder();
+      // Maintain labels in order just in case we print them back in the destination.
+      Map<String, String> labels = new LinkedHashMap<>();
+      for (String line : Splitter.on('\n').split(entry.body)) {
+        LabelFinder labelFinder = new LabelFinder(line);
+        if (labelFinder.isLabel()) {
+          String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
+          if (previous != null) {
+            console.warn(String.format("Possible duplicate label '%s' happening multiple times"
+                    + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
+                labelFinder.getName(), labelFinder.getValue(), previous));
           }
-          line = rawLines.next();
         }
-        Preconditions.checkState(author != null || dateTime != null,
-            "Could not find author and/or date for commitReferences %s in log\n:%s", rawCommitLine,
-            log);
-        StringBuilder message = new StringBuilder();
-        // Maintain labels in order just in case we print them back in the destination.
-        Map<String, String> labels = new LinkedHashMap<>();
-        while (rawLines.hasNext()) {
-          String s = rawLines.next();
-          if (!s.startsWith(GIT_LOG_COMMENT_PREFIX)) {
-            break;
-          }
-          LabelFinder labelFinder = new LabelFinder(
-              s.substring(GIT_LOG_COMMENT_PREFIX.length()));
-          if (labelFinder.isLabel()) {
-            String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
-            if (previous != null) {
-              console.warn(String.format("Possible duplicate label '%s' happening multiple times"
-                      + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
-                  labelFinder.getName(), labelFinder.getValue(), previous));
-            }
-          }
-          message.append(s, GIT_LOG_COMMENT_PREFIX.length(), s.length()).append("\n");
-        }
-        Change<GitReference> change = new Change<>(
-            ref, author, message.toString(), dateTime, ImmutableMap.copyOf(labels));
-        builder.add(new GitChange(change, parents.build()));
       }
-      // Return older commit first.
-      return builder.build().reverse();
-    }
-  }
-
-  private ImmutableList<Change<GitReference>> asChanges(ImmutableList<GitChange> gitChanges) {
-    ImmutableList.Builder<Change<GitReference>> result = ImmutableList.builder();
-    for (GitChange gitChange : gitChanges) {
-      result.add(gitChange.change);
+      message.append(entry.body);
+      // git log always printed a newline after the last line of the message
+      if (message.length() > 0 && message.charAt(message.length() - 1) != '\n') {
+        message.append('\n');
+      }
+      Change<GitReference> change = new Change<>(
+          ref, author, message.toString(), dateTime, ImmutableMap.copyOf(labels));
+      return new GitChange(change, parents.build());
     }
-    return result.build();
   }
 
   @Override
@@ -310,17 +546,13 @@ public final class GitOrigin implements Origin<GitReference> {
     return GitRepository.GIT_ORIGIN_REV_ID;
   }
 
-  private String removePrefix(String log, String line, String prefix) {
-    Preconditions.checkState(line.startsWith(prefix), "Cannot find '%s' in:\n%s", prefix, log);
-    return line.substring(prefix.length()).trim();
-  }
-
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
         .add("repoUrl", repoUrl)
         .add("ref", configRef)
         .add("repoType", repoType)
+        .add("fetchOptions", fetchOptions)
         .toString();
   }
 
@@ -329,17 +561,27 @@ public final class GitOrigin implements Origin<GitReference> {
    */
   static GitOrigin newGitOrigin(Options options, String url, String ref, GitRepoType type,
       Map<String, String> environment) {
+    return newGitOrigin(options, url, ref, type, environment, FetchOptions.DEFAULT);
+  }
+
+  /**
+   * Builds a new {@link GitOrigin} that fetches from {@code url} using {@code fetchOptions}.
+   */
+  static GitOrigin newGitOrigin(Options options, String url, String ref, GitRepoType type,
+      Map<String, String> environment, FetchOptions fetchOptions) {
     GitOptions gitConfig = options.get(GitOptions.class);
 
     Path gitRepoStorage = FileSystems.getDefault().getPath(gitConfig.repoStorage);
-    Path gitDir = gitRepoStorage.resolve(PERCENT_ESCAPER.escape(url));
     Console console = options.get(GeneralOptions.class).console();
+    boolean verbose = options.get(GeneralOptions.class).isVerbose();
 
     return new GitOrigin(
-        console, GitRepository.bareRepo(gitDir, options, environment), url, ref, type,
+        console, GitRepository.cachedBareRepo(gitRepoStorage, url, verbose, environment), url,
+        ref, type,
         options.get(GitOptions.class),
-        options.get(GeneralOptions.class).isVerbose(),
-        environment);
+        verbose,
+        environment,
+        fetchOptions);
   }
 
   /**
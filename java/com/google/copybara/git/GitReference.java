@@ -17,9 +17,12 @@
 package com.google.copybara.git;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.copybara.Origin.Reference;
 import com.google.copybara.RepoException;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -28,6 +31,7 @@ import java.util.regex.Pattern;
 public final class GitReference implements Reference {
 
   private static final Pattern COMPLETE_SHA1_PATTERN = Pattern.compile("[a-f0-9]{40}");
+  private static final String AUTHOR_HEADER = "author ";
 
   private final GitRepository repository;
   private final String reference;
@@ -48,14 +52,23 @@ public final class GitReference implements Reference {
 
   @Override
   public Long readTimestamp() throws RepoException {
-    // -s suppresses diff output
-    // --format=%at indicates show the author timestamp as the number of seconds from UNIX epoch
-    String stdout = repository.simpleCommand("show", "-s", "--format=%at", reference).getStdout();
-    try {
-      return Long.parseLong(stdout.trim());
-    } catch (NumberFormatException e) {
-      throw new RepoException("Output of git show not a valid long", e);
+    // The author line of a raw commit looks like: 'author Name <email> 1467227425 +0200'. The
+    // timestamp is the number of seconds from UNIX epoch.
+    String rawCommit = new String(repository.readCommit(reference), StandardCharsets.UTF_8);
+    for (String line : Splitter.on('\n').split(rawCommit)) {
+      if (line.isEmpty()) {
+        break;
+      }
+      if (line.startsWith(AUTHOR_HEADER)) {
+        List<String> fields = Splitter.on(' ').splitToList(line);
+        try {
+          return Long.parseLong(fields.get(fields.size() - 2));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+          throw new RepoException("Cannot parse author timestamp from: " + line, e);
+        }
+      }
     }
+    throw new RepoException("Cannot find author in commit " + reference);
   }
 
   @Override
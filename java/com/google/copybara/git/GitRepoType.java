@@ -48,12 +48,12 @@ public enum GitRepoType {
      * </ul>
      */
     @Override
-    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console)
-        throws RepoException {
+    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console,
+        FetchOptions fetchOptions) throws RepoException {
       logger.log(Level.INFO, "Resolving " + repoUrl + " reference: " + ref);
       if (!GIT_URL.matcher(ref).matches() && !FILE_URL.matcher(ref).matches()) {
         // If ref is not an url try a normal fetch of repoUrl and ref
-        return repository.fetch(repoUrl, ref);
+        return repository.fetch(repoUrl, ref, fetchOptions);
       }
       String msg = "Git origin URL overwritten in the command line as " + ref;
       console.warn(msg);
@@ -80,24 +80,24 @@ public enum GitRepoType {
      * it to a valid git fetch of the equivalent ref.
      */
     @Override
-    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console)
-        throws RepoException {
+    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console,
+        FetchOptions fetchOptions) throws RepoException {
       if (ref.startsWith("https://github.com") && ref.startsWith(repoUrl)) {
         GitReference ghPullRequest = maybeFetchGithubPullRequest(repository, ref);
         if (ghPullRequest != null) {
           return ghPullRequest;
         }
       }
-      return GIT.resolveRef(repository, repoUrl, ref, console);
+      return GIT.resolveRef(repository, repoUrl, ref, console, fetchOptions);
     }
   },
   @DocField(description = "A Gerrit code review repository")
   GERRIT {
     @Override
-    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console)
-        throws RepoException {
+    GitReference resolveRef(GitRepository repository, String repoUrl, String ref, Console console,
+        FetchOptions fetchOptions) throws RepoException {
       // TODO(copybara-team): if ref is gerrit url, resolve it properly
-      return GIT.resolveRef(repository, repoUrl, ref, console);
+      return GIT.resolveRef(repository, repoUrl, ref, console, fetchOptions);
     }
   };
 
@@ -125,6 +125,19 @@ public enum GitRepoType {
 
   private static final Pattern FILE_URL = Pattern.compile("file://(.*)");
 
+  /**
+   * Resolves {@code ref} for an origin of {@code repoUrl}, fetching it with the default
+   * {@link FetchOptions}.
+   */
+  GitReference resolveRef(GitRepository repository, String repoUrl, String ref,
+      Console console) throws RepoException {
+    return resolveRef(repository, repoUrl, ref, console, FetchOptions.DEFAULT);
+  }
+
+  /**
+   * Resolves {@code ref} for an origin of {@code repoUrl}. {@code fetchOptions} are used when
+   * fetching from {@code repoUrl}.
+   */
   abstract GitReference resolveRef(GitRepository repository, String repoUrl, String ref,
-      Console console) throws RepoException;
+      Console console, FetchOptions fetchOptions) throws RepoException;
 }
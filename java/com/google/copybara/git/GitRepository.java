@@ -17,12 +17,19 @@
 package com.google.copybara.git;
 
 import static com.google.copybara.util.CommandUtil.executeCommand;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.net.PercentEscaper;
+import com.google.common.util.concurrent.Striped;
+import com.google.copybara.Author;
 import com.google.copybara.EmptyChangeException;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
@@ -35,11 +42,14 @@ import com.google.devtools.build.lib.shell.CommandException;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
@@ -59,6 +69,37 @@ public class GitRepository {
               "ambiguous argument '(.+)': unknown revision or path not in the working tree"),
           Pattern.compile("fatal: Couldn't find remote ref ([^\n]+)\n"));
 
+  private static final PercentEscaper PERCENT_ESCAPER = new PercentEscaper(
+      "-_", /*plusForSpace=*/ true);
+
+  private static final String GITDIR_PREFIX = "gitdir: ";
+
+  /**
+   * Prefix of the references where a cached origin keeps the fetched heads.
+   */
+  static final String ORIGIN_FETCH_REF_PREFIX = "refs/copybara/origin/";
+
+  private static final String PROMISOR_REMOTE = "copybara-origin";
+
+  /**
+   * Number of times that a shallow history is deepened before fetching the whole history.
+   */
+  private static final int MAX_DEEPEN_ATTEMPTS = 5;
+
+  private static final byte[] NO_INPUT = new byte[0];
+
+  /**
+   * SHA-1 of the tree without entries.
+   */
+  private static final String EMPTY_TREE = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+
+  /**
+   * Locks of the git directories, see {@link #gitDirLock()}.
+   */
+  private static final Striped<Lock> GIT_DIR_LOCKS = Striped.lazyWeakLock(256);
+
+  private static final CharMatcher GIT_WHITESPACE = CharMatcher.anyOf(" \t\n\u000B\f\r");
+
   /**
    * Label to be used for marking the original revision id (Git SHA-1) for migrated commits.
    */
@@ -89,6 +130,18 @@ public class GitRepository {
         gitDir,/*workTree=*/null, options.get(GeneralOptions.class).isVerbose(), environment);
   }
 
+  /**
+   * Returns the bare repository used for caching {@code url} under {@code repoStorage}. The same
+   * repository is shared by the origins and destinations that use {@code url}.
+   *
+   * <p>The repository is not initialized.
+   */
+  static GitRepository cachedBareRepo(Path repoStorage, String url, boolean verbose,
+      Map<String, String> environment) {
+    return new GitRepository(repoStorage.resolve(PERCENT_ESCAPER.escape(url)),
+        /*workTree=*/null, verbose, environment);
+  }
+
   /**
    * Initializes a new repository in a temporary directory using the given environment vars.
    *
@@ -126,17 +179,14 @@ public class GitRepository {
    * "refs/foo" is allowed but not "refs/foo:remote/origin/foo". Wildcards are also not allowed.
    */
   public GitReference fetch(String url, String ref) throws RepoException {
-    if (ref.contains(":") || ref.contains("*")) {
-      throw new CannotFindReferenceException("Fetching refspecs that"
-          + " contain local ref path locations or wildcards is not supported. Invalid ref: " + ref);
-    }
+    checkFetchableRef(ref);
     // This is not strictly necessary for some Git repos that allow fetching from any sha1 ref, like
     // servers configured with 'git config uploadpack.allowReachableSHA1InWant true'. Unfortunately,
     // Github doesn't support it. So what we do is fetch the default refspec (see the comment
     // bellow) and hope the sha1 is reachable from heads.
     if (isSha1Reference(ref)) {
-      // TODO(copybara-team): For now we get the default refspec, but we should make this
-      // configurable. Otherwise it is not going to work with Gerrit.
+      // For the url of an origin the refspecs are configurable, see
+      // fetch(String, String, FetchOptions).
       simpleCommand("fetch", "-f", url);
       return resolveReference(ref);
     }
@@ -144,6 +194,191 @@ public class GitRepository {
     return resolveReference("FETCH_HEAD");
   }
 
+  /**
+   * Fetch a reference from {@code url}, the url of the origin cached by this repository, using
+   * {@code options}.
+   *
+   * <p>The fetched heads are kept under {@value #ORIGIN_FETCH_REF_PREFIX} so that the next fetches
+   * only transfer new objects. SHA-1 references are resolved by fetching
+   * {@link FetchOptions#sha1Refspecs}, and shallow histories are deepened until the commit is
+   * found.
+   */
+  GitReference fetch(String url, String ref, FetchOptions options) throws RepoException {
+    checkFetchableRef(ref);
+    boolean sha1 = isSha1Reference(ref);
+    // Only the first fetch is shallow. Later fetches download the new commits on top of the
+    // history that we already have.
+    fetchToOriginRefs(url, options,
+        options.depth > 0 && !hasOriginFetchRefs() ? "--depth=" + options.depth : null,
+        sha1 ? sha1Sources(options) : ImmutableList.of(ref));
+    if (!sha1) {
+      return resolveReference("FETCH_HEAD");
+    }
+
+    // Typically the last migrated revision. Deepen the history until we have it.
+    for (int attempt = 0; isShallow() && !isFetched(ref); attempt++) {
+      deepen(url, options, attempt);
+    }
+    return resolveReference(ref);
+  }
+
+  /**
+   * Fetches older commits of {@code url} into this shallow repository, cached by
+   * {@link #fetch(String, String, FetchOptions)}. Every shallow root is deepened by
+   * {@code depth * 2^attempt} commits, and the whole history is fetched after
+   * {@value #MAX_DEEPEN_ATTEMPTS} attempts, so that callers can loop until the commits that they
+   * need are no longer shallow roots.
+   *
+   * @throws RepoException if the history is not shallow, since it cannot be deepened
+   */
+  void deepen(String url, FetchOptions options, int attempt) throws RepoException {
+    if (!isShallow()) {
+      throw new RepoException("Cannot deepen the history of " + url + ": it is not shallow");
+    }
+    // Deepening is not limited to the fetched refspecs: git deepens every shallow root.
+    fetchToOriginRefs(url, options,
+        attempt < MAX_DEEPEN_ATTEMPTS
+            ? "--deepen=" + (Math.max(options.depth, 1) << attempt)
+            : "--unshallow",
+        sha1Sources(options));
+  }
+
+  /**
+   * Returns the commits of this repository whose parents were not fetched because the history is
+   * shallow. Empty if the history is complete.
+   */
+  ImmutableSet<String> getShallowRoots() throws RepoException {
+    Path shallow = gitDir.resolve("shallow");
+    try {
+      return ImmutableSet.copyOf(Files.readAllLines(shallow, UTF_8));
+    } catch (NoSuchFileException e) {
+      return ImmutableSet.of();
+    } catch (IOException e) {
+      throw new RepoException("Cannot read the shallow roots in " + shallow, e);
+    }
+  }
+
+  /**
+   * Fetches the source refspecs {@code sources} from {@code url} to the references under
+   * {@value #ORIGIN_FETCH_REF_PREFIX}.
+   *
+   * @param historyArg argument that changes the history fetched, like {@code --depth}, or null
+   */
+  private void fetchToOriginRefs(String url, FetchOptions options, @Nullable String historyArg,
+      List<String> sources) throws RepoException {
+    List<String> args = new ArrayList<>(Arrays.asList("fetch", "-f"));
+    String remote = url;
+    if (options.partialClone) {
+      remote = configurePromisorRemote(url);
+      args.add("--filter=blob:none");
+    }
+    if (historyArg != null) {
+      args.add(historyArg);
+    }
+    args.add(remote);
+    for (String source : sources) {
+      args.add("+" + source + ":" + ORIGIN_FETCH_REF_PREFIX + source);
+    }
+    simpleCommand(args.toArray(new String[args.size()]));
+  }
+
+  /**
+   * Source refspecs fetched for resolving SHA-1 references.
+   */
+  private static List<String> sha1Sources(FetchOptions options) {
+    return options.sha1Refspecs.isEmpty() ? ImmutableList.of("HEAD") : options.sha1Refspecs;
+  }
+
+  private static void checkFetchableRef(String ref) throws CannotFindReferenceException {
+    if (ref.contains(":") || ref.contains("*")) {
+      throw new CannotFindReferenceException("Fetching refspecs that"
+          + " contain local ref path locations or wildcards is not supported. Invalid ref: " + ref);
+    }
+  }
+
+  /**
+   * Configures {@code url} as the promisor remote of a partial clone, so that git can fetch the
+   * missing blobs when they are needed. Returns the name of the remote.
+   */
+  private String configurePromisorRemote(String url) throws RepoException {
+    simpleCommand("config", "remote." + PROMISOR_REMOTE + ".url", url);
+    simpleCommand("config", "remote." + PROMISOR_REMOTE + ".promisor", "true");
+    simpleCommand("config", "remote." + PROMISOR_REMOTE + ".partialclonefilter", "blob:none");
+    simpleCommand("config", "extensions.partialClone", PROMISOR_REMOTE);
+    return PROMISOR_REMOTE;
+  }
+
+  private boolean hasOriginFetchRefs() throws RepoException {
+    return !simpleCommand("for-each-ref", "--count=1", ORIGIN_FETCH_REF_PREFIX)
+        .getStdout().trim().isEmpty();
+  }
+
+  private boolean isShallow() {
+    return Files.exists(gitDir.resolve("shallow"));
+  }
+
+  /**
+   * Returns true if {@code sha1} is reachable from the fetched heads. Note that checking that the
+   * object exists is not enough: in a shallow repository it could be outside of the history that
+   * we have, and in a partial clone git fetches missing objects on demand.
+   */
+  private boolean isFetched(String sha1) {
+    try {
+      return !simpleCommand("for-each-ref", "--count=1", "--contains", sha1,
+          ORIGIN_FETCH_REF_PREFIX).getStdout().trim().isEmpty();
+    } catch (RepoException e) {
+      // Unknown commit
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if {@code ancestor} is {@code commit} or one of its ancestors. Returns false if
+   * any of them is not a known commit.
+   */
+  boolean isAncestor(String ancestor, String commit) {
+    try {
+      // Exits with 1 if it is not an ancestor
+      simpleCommand("merge-base", "--is-ancestor", ancestor, commit);
+      return true;
+    } catch (RepoException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a new worktree of this repository in {@code path}, with a detached HEAD pointing to
+   * {@code ref}. Files are not checked out.
+   *
+   * <p>The worktree shares the objects and references of this repository, so it is cheap to create
+   * independently of the size of the history. Worktrees whose directory was deleted are pruned.
+   */
+  GitRepository addWorktree(Path path, String ref) throws RepoException {
+    simpleCommand("worktree", "prune");
+    simpleCommand("worktree", "add", "--detach", "--no-checkout", path.toString(), ref);
+    String dotGit;
+    try {
+      dotGit = new String(Files.readAllBytes(path.resolve(".git")), UTF_8).trim();
+    } catch (IOException e) {
+      throw new RepoException("Cannot read the git directory of worktree " + path, e);
+    }
+    if (!dotGit.startsWith(GITDIR_PREFIX)) {
+      throw new RepoException("Unexpected .git file in worktree " + path + ": " + dotGit);
+    }
+    return new GitRepository(
+        path.resolve(dotGit.substring(GITDIR_PREFIX.length())), path, verbose, environment);
+  }
+
+  /**
+   * Removes {@code worktree}, created by {@link #addWorktree}, including its directory, and stops
+   * its long-lived processes.
+   */
+  void removeWorktree(GitRepository worktree) throws RepoException {
+    Path path = Preconditions.checkNotNull(worktree.getWorkTree());
+    worktree.closeCatFilePool();
+    simpleCommand("worktree", "remove", "--force", path.toString());
+  }
+
   /**
    * Returns an instance equivalent to this one but with a different work tree. This does not
    * initialize or alter the given work tree.
@@ -152,6 +387,23 @@ public class GitRepository {
     return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment);
   }
 
+  /**
+   * Returns an instance equivalent to this one but that runs git with a different environment.
+   */
+  GitRepository withEnvironment(Map<String, String> newEnvironment) {
+    return new GitRepository(this.gitDir, this.workTree, this.verbose, newEnvironment);
+  }
+
+  /**
+   * Returns an instance equivalent to this one but that uses {@code indexFile} as the index file
+   * instead of the default one.
+   */
+  GitRepository withIndexFile(Path indexFile) {
+    Map<String, String> newEnvironment = new HashMap<>(environment);
+    newEnvironment.put("GIT_INDEX_FILE", indexFile.toString());
+    return withEnvironment(newEnvironment);
+  }
+
   /**
    * The Git work tree - in a typical Git repo, this is the directory containing the {@code .git}
    * directory. Returns {@code null} for bare repos.
@@ -164,14 +416,64 @@ public class GitRepository {
     return gitDir;
   }
 
+  /**
+   * Returns the lock of the git directory of this repository, shared by all the instances that
+   * use the same directory in this JVM.
+   *
+   * <p>Workflows that run concurrently (For example in a batch or in the server) can share the
+   * cached repository of an origin or a destination. The commands that modify the state of the git
+   * directory that is not per command, like {@code HEAD}, the default index or
+   * {@code FETCH_HEAD}, need to hold this lock.
+   */
+  Lock gitDirLock() {
+    return GIT_DIR_LOCKS.get(gitDir.toAbsolutePath().normalize());
+  }
+
   /**
    * Resolves a git reference to the SHA-1 reference
    */
   public String revParse(String ref) throws RepoException {
-    // Runs rev-parse on the reference and remove the extra newline from the output.
+    String sha1 = catFilePool().resolve(ref);
+    if (sha1 != null) {
+      return sha1;
+    }
+    // The pipe cannot resolve it. Run rev-parse so that we get the usual error handling and remove
+    // the extra newline from the output.
     return simpleCommand("rev-parse", ref).getStdout().trim();
   }
 
+  /**
+   * Returns the raw content of the commit object {@code ref}, in the same format as
+   * {@code git cat-file commit ref}.
+   */
+  byte[] readCommit(String ref) throws RepoException {
+    byte[] content = catFilePool().read(ref, "commit");
+    if (content != null) {
+      return content;
+    }
+    return simpleCommand("cat-file", "commit", ref).getStdoutBytes();
+  }
+
+  /**
+   * Number of {@code git} processes that were not forked for this git directory because the
+   * query was answered by a long-lived {@code git cat-file} process.
+   */
+  public long forksAvoided() {
+    return catFilePool().forksAvoided();
+  }
+
+  /**
+   * Stops the long-lived {@code git cat-file} processes of this git directory. Call it when the
+   * repository is discarded. Using the repository afterwards starts them again.
+   */
+  void closeCatFilePool() {
+    CatFilePool.evict(gitDir);
+  }
+
+  private CatFilePool catFilePool() {
+    return CatFilePool.forGitDir(gitDir, resolveGitBinary(environment), environment);
+  }
+
   public void rebase(String newBaseline) throws RepoException {
     try {
       simpleCommand("rebase", Preconditions.checkNotNull(newBaseline));
@@ -186,13 +488,102 @@ public class GitRepository {
   void commit(GitRepository alternate, String author,
       long timestamp, String message)
       throws RepoException {
-    CommandOutput status = alternate.simpleCommand("diff", "--staged");
-    if (status.getStdout().trim().isEmpty()) {
+    alternate.writeChangedTree(alternate.headOrNull());
+    alternate.simpleCommand("commit", "--author", author, "--date", timestamp + " +0000",
+        "-m", message);
+  }
+
+  /**
+   * Creates a commit with the tree of the index and the current HEAD as parent, and moves HEAD to
+   * it. Unlike {@link #commit}, the work tree is not used, so the index doesn't need to have valid
+   * stat information for the files.
+   *
+   * <p>The message is cleaned up like {@code git commit -m} does.
+   */
+  void commitIndex(Author author, long timestamp, String message) throws RepoException {
+    String parent = headOrNull();
+    String tree = writeChangedTree(parent);
+    Map<String, String> authorEnvironment = new HashMap<>(environment);
+    authorEnvironment.put("GIT_AUTHOR_NAME", author.getName());
+    authorEnvironment.put("GIT_AUTHOR_EMAIL", author.getEmail());
+    authorEnvironment.put("GIT_AUTHOR_DATE", timestamp + " +0000");
+    List<String> argv = new ArrayList<>(Arrays.asList("commit-tree", tree));
+    if (parent != null) {
+      argv.add("-p");
+      argv.add(parent);
+    }
+    argv.add("-F");
+    argv.add("-");
+    String cleanMessage = cleanUpMessage(message);
+    String commit = withEnvironment(authorEnvironment)
+        .simpleCommandWithInput(cleanMessage.getBytes(UTF_8), argv.toArray(new String[0]))
+        .getStdout().trim();
+    List<String> updateRef = new ArrayList<>(Arrays.asList(
+        "update-ref", "-m", "commit: " + cleanMessage.split("\n", 2)[0], "HEAD", commit));
+    // Fail if HEAD moved in the meantime
+    updateRef.add(parent != null ? parent : "");
+    simpleCommand(updateRef.toArray(new String[0]));
+  }
+
+  /**
+   * Writes the tree of the index to the object store and returns its SHA-1.
+   *
+   * <p>Comparing the tree ids detects an empty change in constant memory and without producing
+   * the text of the diff, since the tree of the index is the one that the commit would have.
+   *
+   * @param parent the commit that would be the parent, or null if there is none
+   * @throws EmptyChangeException if the tree is the same as the tree of {@code parent}
+   */
+  private String writeChangedTree(@Nullable String parent) throws RepoException {
+    String tree = simpleCommand("write-tree").getStdout().trim();
+    String parentTree = parent == null
+        ? EMPTY_TREE
+        : simpleCommand("rev-parse", parent + "^{tree}").getStdout().trim();
+    if (tree.equals(parentTree)) {
       throw new EmptyChangeException("Migration of the revision resulted in an empty change. "
           + "Is the change already migrated?");
     }
-    alternate.simpleCommand("commit", "--author", author, "--date", timestamp + " +0000",
-        "-m", message);
+    return tree;
+  }
+
+  /**
+   * Returns the SHA-1 of HEAD, or null if the current branch doesn't have any commit yet.
+   */
+  @Nullable
+  private String headOrNull() throws RepoException {
+    String sha1 = catFilePool().resolve("HEAD");
+    if (sha1 != null) {
+      return sha1;
+    }
+    try {
+      return simpleCommand("rev-parse", "--verify", "--quiet", "HEAD").getStdout().trim();
+    } catch (RepoException e) {
+      // --verify --quiet only fails if HEAD doesn't point to a commit
+      return null;
+    }
+  }
+
+  /**
+   * Cleans up a commit message like {@code git commit -m} does: removes trailing whitespace from
+   * the lines, consecutive empty lines and empty lines at the beginning and the end.
+   */
+  @VisibleForTesting
+  static String cleanUpMessage(String message) {
+    StringBuilder sb = new StringBuilder();
+    boolean pendingEmptyLine = false;
+    for (String line : Splitter.on('\n').split(message)) {
+      line = GIT_WHITESPACE.trimTrailingFrom(line);
+      if (line.isEmpty()) {
+        pendingEmptyLine = sb.length() > 0;
+        continue;
+      }
+      if (pendingEmptyLine) {
+        sb.append('\n');
+        pendingEmptyLine = false;
+      }
+      sb.append(line).append('\n');
+    }
+    return sb.toString();
   }
 
   /**
@@ -205,21 +596,56 @@ public class GitRepository {
    * @param argv the arguments to pass to {@code git}, starting with the sub-command name
    */
   public CommandOutput simpleCommand(String... argv) throws RepoException {
+    return git(commandCwd(), repositoryArgs(Arrays.asList(argv)));
+  }
+
+  /**
+   * Like {@link #simpleCommand(String...)}, but writing {@code input} to the standard input of the
+   * command.
+   */
+  CommandOutput simpleCommandWithInput(byte[] input, String... argv) throws RepoException {
+    return git(commandCwd(), repositoryArgs(Arrays.asList(argv)), input);
+  }
+
+  /**
+   * Runs {@code git log} with the given arguments and returns a stream that parses the commits
+   * incrementally, as git prints them. The caller must close the stream.
+   *
+   * @param params the arguments to pass to {@code git log}, excluding the format, that is always
+   *     {@link GitLogStream#FORMAT}
+   */
+  GitLogStream log(Iterable<String> params) throws RepoException {
+    List<String> logArgv = new ArrayList<>();
+    logArgv.add("log");
+    logArgv.add(GitLogStream.FORMAT);
+    Iterables.addAll(logArgv, params);
+    List<String> allArgv = new ArrayList<>();
+    allArgv.add(resolveGitBinary(environment));
+    allArgv.addAll(repositoryArgs(logArgv));
+    return GitLogStream.start(allArgv, environment, commandCwd());
+  }
+
+  private Path commandCwd() {
+    return workTree != null ? workTree : gitDir;
+  }
+
+  /**
+   * Returns {@code argv} prefixed with the {@code --git-dir} and (if non-bare)
+   * {@code --work-tree} args.
+   */
+  private List<String> repositoryArgs(List<String> argv) {
     Preconditions.checkState(Files.isDirectory(gitDir),
         "git repository dir '%s' doesn't exist or is not a directory", gitDir);
 
     List<String> allArgv = new ArrayList<>();
 
     allArgv.add("--git-dir=" + gitDir);
-    Path cwd = gitDir;
     if (workTree != null) {
-      cwd = workTree;
       allArgv.add("--work-tree=" + workTree);
     }
 
-    allArgv.addAll(Arrays.asList(argv));
-
-    return git(cwd, allArgv);
+    allArgv.addAll(argv);
+    return allArgv;
   }
 
   /**
@@ -263,13 +689,18 @@ public class GitRepository {
    * @param params params the argv to pass to Git, excluding the initial {@code git}
    */
   public CommandOutput git(Path cwd, Iterable<String> params) throws RepoException {
+    return git(cwd, params, NO_INPUT);
+  }
+
+  private CommandOutput git(Path cwd, Iterable<String> params, byte[] input)
+      throws RepoException {
     List<String> allParams = new ArrayList<>();
     allParams.add(resolveGitBinary(environment));
     Iterables.addAll(allParams, params);
     try {
       CommandOutputWithStatus commandOutputWithStatus =
           executeCommand(new Command(allParams.toArray(new String[0]), environment, cwd.toFile()),
-              verbose);
+              input, verbose);
       if (commandOutputWithStatus.getTerminationStatus().success()) {
         return commandOutputWithStatus;
       }
@@ -282,21 +713,30 @@ public class GitRepository {
         throw new RebaseConflictException(output.getStdout());
       }
 
-      for (Pattern error : REF_NOT_FOUND_ERRORS) {
-        Matcher matcher = error.matcher(output.getStderr());
-        if (matcher.find()) {
-          throw new CannotFindReferenceException(
-              "Cannot find reference '" + matcher.group(1) + "'", e);
-        }
-      }
-
-      throw new RepoException(
+      throw errorFromStderr(output.getStderr(),
           "Error executing 'git': " + e.getMessage() + ". Stderr: \n" + output.getStderr(), e);
     } catch (CommandException e) {
       throw new RepoException("Error executing 'git': " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Returns the exception that better describes a failed git command, given its stderr.
+   *
+   * @param message the message to use if the error is not a well known one
+   */
+  static RepoException errorFromStderr(String stderr, String message,
+      @Nullable Exception cause) {
+    for (Pattern error : REF_NOT_FOUND_ERRORS) {
+      Matcher matcher = error.matcher(stderr);
+      if (matcher.find()) {
+        return new CannotFindReferenceException(
+            "Cannot find reference '" + matcher.group(1) + "'", cause);
+      }
+    }
+    return new RepoException(message, cause);
+  }
+
   /**
    * Returns a String representing the git binary to be executed.
    *
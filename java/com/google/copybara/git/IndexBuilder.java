@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.copybara.RepoException;
+import com.google.copybara.util.ParallelTreeWalker;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Stages the files of a directory in the index of a git repository, replacing its contents,
+ * without using the directory as the work tree of the index.
+ *
+ * <p>{@code git add --all} has to stat and hash every file of a directory that is not the one
+ * that the index was created from, since none of the stat data in the index matches. Instead the
+ * blobs are hashed in parallel in the JVM, only the ones that are not in the object store yet are
+ * written with {@code git hash-object --stdin-paths}, and the index is replaced with
+ * {@code git update-index --index-info}. The index doesn't have stat data for the files, so it
+ * must not be used with the directory as the work tree afterwards (For example for a rebase).
+ *
+ * <p>The result is the same as {@code git add --all}, including the files ignored by the
+ * {@code .gitignore} files, with one exception: {@code .gitattributes} filters and end of line
+ * conversions are not applied. Directories that contain {@code .gitattributes} files or nested
+ * repositories, or that are in a file system without POSIX permissions, are not staged, so that
+ * the caller can fall back to {@code git add}.
+ */
+final class IndexBuilder {
+
+  private static final Logger logger = Logger.getLogger(IndexBuilder.class.getName());
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String REGULAR_MODE = "100644";
+  private static final String EXECUTABLE_MODE = "100755";
+  private static final String SYMLINK_MODE = "120000";
+
+  private IndexBuilder() {
+  }
+
+  /**
+   * An entry of the index: a file of the directory and its blob.
+   */
+  private static final class Entry {
+
+    private final Path file;
+    private final String path;
+    private final String mode;
+    private final String sha1;
+    // Content of the blob, for the blobs that are not files (symlinks)
+    @Nullable private final byte[] content;
+
+    private Entry(Path file, String path, String mode, String sha1, @Nullable byte[] content) {
+      this.file = file;
+      this.path = path;
+      this.mode = mode;
+      this.sha1 = sha1;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Replaces the index of {@code repo} with the files of its work tree.
+   *
+   * @return false if the work tree cannot be staged without {@code git add}. In that case the
+   *     index is not modified
+   */
+  static boolean stage(GitRepository repo, int parallelism) throws RepoException, IOException {
+    final Path workTree = Preconditions.checkNotNull(repo.getWorkTree());
+    // The executable bit of the files is read from their POSIX permissions
+    if (!workTree.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      logger.log(Level.INFO, String.format(
+          "Cannot stage %s without 'git add': The file system doesn't support POSIX permissions",
+          workTree));
+      return false;
+    }
+    // Untracked files ignored by the exclude rules, that 'git add --all' wouldn't add either
+    final ImmutableSet<String> ignored = ImmutableSet.copyOf(Splitter.on('\0').omitEmptyStrings()
+        .split(repo.simpleCommand("ls-files", "-z", "--others", "--ignored", "--exclude-standard")
+            .getStdout()));
+    final List<String> unsupported = new ArrayList<>();
+    ImmutableList<Entry> entries = ParallelTreeWalker.walk(workTree,
+        new ParallelTreeWalker.DirectoryProcessor<Entry>() {
+          @Override
+          public void preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            checkSupported(dir);
+          }
+
+          @Override
+          public Entry process(Path file, BasicFileAttributes attrs) throws IOException {
+            if (!checkSupported(file)) {
+              return null;
+            }
+            String path = workTree.relativize(file).toString();
+            if (ignored.contains(path)) {
+              return null;
+            }
+            if (attrs.isSymbolicLink()) {
+              byte[] target = Files.readSymbolicLink(file).toString().getBytes(UTF_8);
+              return new Entry(file, path, SYMLINK_MODE, blobSha1(target), target);
+            }
+            if (!attrs.isRegularFile()) {
+              return null;
+            }
+            String mode = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS)
+                .contains(PosixFilePermission.OWNER_EXECUTE) ? EXECUTABLE_MODE : REGULAR_MODE;
+            return new Entry(file, path, mode, blobSha1(file, attrs.size()), /*content=*/null);
+          }
+
+          private boolean checkSupported(Path path) {
+            String name = path.equals(workTree) ? "" : path.getFileName().toString();
+            if (name.equals(".gitattributes") || name.equals(".git")) {
+              synchronized (unsupported) {
+                unsupported.add(workTree.relativize(path).toString());
+              }
+              return false;
+            }
+            return true;
+          }
+        }, parallelism);
+    if (!unsupported.isEmpty()) {
+      logger.log(Level.INFO, String.format("Cannot stage %s without 'git add': It contains %s",
+          workTree, unsupported.get(0)));
+      return false;
+    }
+
+    writeMissingBlobs(repo, entries);
+
+    StringBuilder indexInfo = new StringBuilder();
+    for (Entry entry : entries) {
+      indexInfo.append(entry.mode).append(' ').append(entry.sha1).append('\t')
+          .append(entry.path).append('\0');
+    }
+    repo.simpleCommand("read-tree", "--empty");
+    repo.simpleCommandWithInput(indexInfo.toString().getBytes(UTF_8),
+        "update-index", "-z", "--index-info");
+    return true;
+  }
+
+  /**
+   * Writes to the object store the blobs of {@code entries} that are not there already.
+   */
+  private static void writeMissingBlobs(GitRepository repo, List<Entry> entries)
+      throws RepoException {
+    // The blobs in the index are known to be in the object store, and usually most of the files
+    // didn't change since the previous commit. The rest are checked with one 'git cat-file'.
+    Set<String> known = new HashSet<>();
+    for (String indexEntry : Splitter.on('\0').omitEmptyStrings()
+        .split(repo.simpleCommand("ls-files", "-z", "--stage").getStdout())) {
+      // <mode> SP <sha1> SP <stage> TAB <path>
+      known.add(indexEntry.substring(7, 47));
+    }
+    List<Entry> unknown = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (!known.contains(entry.sha1)) {
+        unknown.add(entry);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return;
+    }
+    StringBuilder sha1s = new StringBuilder();
+    for (Entry entry : unknown) {
+      sha1s.append(entry.sha1).append('\n');
+    }
+    String batchCheck = repo.simpleCommandWithInput(sha1s.toString().getBytes(UTF_8),
+        "cat-file", "--batch-check=%(objectname)").getStdout();
+    List<Entry> missingFiles = new ArrayList<>();
+    int i = 0;
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(batchCheck)) {
+      Entry entry = unknown.get(i++);
+      if (!line.equals(entry.sha1 + " missing")) {
+        continue;
+      }
+      if (entry.content != null || entry.path.contains("\n")) {
+        // Cannot be passed as a path to --stdin-paths
+        byte[] content = entry.content;
+        if (content == null) {
+          try {
+            content = Files.readAllBytes(entry.file);
+          } catch (IOException e) {
+            throw new RepoException("Cannot read " + entry.file, e);
+          }
+        }
+        checkWritten(entry, repo.simpleCommandWithInput(content,
+            "hash-object", "-w", "--no-filters", "--stdin").getStdout());
+      } else {
+        missingFiles.add(entry);
+      }
+    }
+    if (missingFiles.isEmpty()) {
+      return;
+    }
+    StringBuilder paths = new StringBuilder();
+    for (Entry entry : missingFiles) {
+      paths.append(entry.file.toAbsolutePath()).append('\n');
+    }
+    List<String> written = Splitter.on('\n').omitEmptyStrings().splitToList(
+        repo.simpleCommandWithInput(paths.toString().getBytes(UTF_8),
+            "hash-object", "-w", "--no-filters", "--stdin-paths").getStdout());
+    Preconditions.checkState(written.size() == missingFiles.size(),
+        "Expected %s blobs but git wrote %s", missingFiles.size(), written.size());
+    for (int j = 0; j < written.size(); j++) {
+      checkWritten(missingFiles.get(j), written.get(j));
+    }
+  }
+
+  private static void checkWritten(Entry entry, String writtenSha1) throws RepoException {
+    if (!entry.sha1.equals(writtenSha1.trim())) {
+      // The file changed while it was being staged
+      throw new RepoException(String.format("Blob of %s is %s, but git wrote %s",
+          entry.file, entry.sha1, writtenSha1.trim()));
+    }
+  }
+
+  /**
+   * Returns the SHA-1 of the blob with the content of {@code file}, that is {@code size} bytes
+   * long.
+   */
+  private static String blobSha1(Path file, long size) throws IOException {
+    MessageDigest digest = blobDigest(size);
+    byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(size, 1))];
+    long read = 0;
+    try (InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+        read += n;
+      }
+    }
+    if (read != size) {
+      throw new IOException(String.format(
+          "%s changed while it was being hashed: expected %d bytes but read %d", file, size, read));
+    }
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+
+  /**
+   * Returns the SHA-1 of the blob with {@code content}, as {@code git hash-object} does.
+   */
+  @VisibleForTesting
+  static String blobSha1(byte[] content) {
+    MessageDigest digest = blobDigest(content.length);
+    digest.update(content);
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+
+  private static MessageDigest blobDigest(long size) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is always supported", e);
+    }
+    digest.update(("blob " + size + "\0").getBytes(UTF_8));
+    return digest;
+  }
+}
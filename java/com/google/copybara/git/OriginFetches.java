@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.git;
+
+import com.google.copybara.RepoException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * References of git origins resolved by the jobs of a batch, so that every reference is fetched
+ * once per batch even if several workflows migrate from the same origin.
+ *
+ * <p>The jobs that use the same local repository are serialized while they resolve references,
+ * since concurrent fetches to a repository race on {@code FETCH_HEAD}.
+ */
+final class OriginFetches {
+
+  /**
+   * Resolves a reference, usually fetching it.
+   */
+  interface Resolver {
+    GitReference resolve() throws RepoException;
+  }
+
+  // SHA-1 of the resolved references, by git directory of the local repository
+  private final Map<Path, Map<String, String>> resolved = new HashMap<>();
+
+  /**
+   * Returns the reference of {@code repository} identified by {@code key}, using
+   * {@code resolver} only if no job of the batch has resolved it yet.
+   *
+   * @param key identifies the reference in the repository. It must include everything that
+   *     changes what {@code resolver} returns, like the url and the reference name
+   */
+  GitReference resolve(GitRepository repository, String key, Resolver resolver)
+      throws RepoException {
+    Map<String, String> sha1s;
+    synchronized (resolved) {
+      Path gitDir = repository.getGitDir().toAbsolutePath().normalize();
+      sha1s = resolved.get(gitDir);
+      if (sha1s == null) {
+        sha1s = new HashMap<>();
+        resolved.put(gitDir, sha1s);
+      }
+    }
+    synchronized (sha1s) {
+      String sha1 = sha1s.get(key);
+      if (sha1 != null) {
+        return repository.createReferenceFromCompleteSha1(sha1);
+      }
+      GitReference reference = resolver.resolve();
+      sha1s.put(key, reference.asString());
+      return reference;
+    }
+  }
+}
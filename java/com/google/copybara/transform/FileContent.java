@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * The content of a file read by a content transformation, as bytes.
+ *
+ * <p>Large files of the default file system are memory-mapped instead of copied to the heap.
+ * The content is only decoded (as UTF-8) when requested, so that it can be scanned or skipped
+ * before.
+ */
+final class FileContent {
+
+  /**
+   * Files of at least this size are memory-mapped.
+   */
+  @VisibleForTesting
+  static final long MMAP_THRESHOLD = 1024 * 1024;
+
+  /**
+   * Number of bytes inspected for detecting binary files. Same heuristic as git: a file is binary
+   * if it contains a NUL byte in its first 8000 bytes.
+   */
+  private static final int BINARY_DETECTION_BYTES = 8000;
+
+  private final ByteBuffer bytes;
+
+  private FileContent(ByteBuffer bytes) {
+    this.bytes = Preconditions.checkNotNull(bytes);
+  }
+
+  /**
+   * Reads the content of the regular file {@code file}.
+   */
+  static FileContent read(Path file) throws IOException {
+    if (file.getFileSystem() != FileSystems.getDefault() || Files.size(file) < MMAP_THRESHOLD) {
+      return new FileContent(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new FileContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Returns a read-only view of the bytes of the file.
+   */
+  ByteBuffer bytes() {
+    return bytes.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns true if the content looks like binary data instead of text.
+   */
+  boolean isBinary() {
+    int limit = Math.min(bytes.limit(), BINARY_DETECTION_BYTES);
+    for (int i = 0; i < limit; i++) {
+      if (bytes.get(i) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Decodes the content as UTF-8. Malformed input is replaced with U+FFFD.
+   */
+  String decode() {
+    if (bytes.hasArray()) {
+      return new String(bytes.array(), bytes.arrayOffset(), bytes.limit(), UTF_8);
+    }
+    return UTF_8.decode(bytes()).toString();
+  }
+
+  /**
+   * Returns true if the content is exactly {@code other}.
+   */
+  boolean contentEquals(byte[] other) {
+    return bytes().equals(ByteBuffer.wrap(other));
+  }
+
+  /**
+   * Replaces the content of {@code file} with {@code content}, keeping its permissions.
+   *
+   * <p>The content is written to a temporary file in the same directory that is then renamed, so
+   * that {@code file} always has either the old or the new content. Other hard links to the file,
+   * like the ones created by
+   * {@link com.google.copybara.util.FileUtil#snapshotFilesRecursively(Path, Path)}, keep the old
+   * content.
+   */
+  static void write(Path file, byte[] content) throws IOException {
+    Path tmp = Files.createTempFile(
+        file.getParent(), "." + file.getFileName(), ".copybara.tmp");
+    try {
+      Files.write(tmp, content);
+      PosixFileAttributeView posix =
+          Files.getFileAttributeView(file, PosixFileAttributeView.class);
+      if (posix != null) {
+        Files.setPosixFilePermissions(tmp, posix.readAttributes().permissions());
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
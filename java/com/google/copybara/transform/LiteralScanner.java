@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds which of a set of byte sequences appear in some content, scanning the content only once
+ * (Aho-Corasick automaton).
+ */
+final class LiteralScanner {
+
+  private static final int ALPHABET_SIZE = 256;
+  private static final int[] NO_MATCHES = new int[0];
+
+  private final int patternCount;
+  /** Transition table of the automaton: {@code state * ALPHABET_SIZE + byte -> next state}. */
+  private final int[] transitions;
+  /** Patterns (as indexes) found when reaching each state. */
+  private final int[][] matches;
+
+  LiteralScanner(List<byte[]> patterns) {
+    patternCount = patterns.size();
+    List<int[]> trie = new ArrayList<>();
+    List<int[]> stateMatches = new ArrayList<>();
+    trie.add(newState());
+    stateMatches.add(NO_MATCHES);
+    for (int i = 0; i < patterns.size(); i++) {
+      byte[] pattern = patterns.get(i);
+      Preconditions.checkArgument(pattern.length > 0, "Empty pattern at index %s", i);
+      int state = 0;
+      for (byte b : pattern) {
+        int next = trie.get(state)[b & 0xff];
+        if (next == -1) {
+          next = trie.size();
+          trie.get(state)[b & 0xff] = next;
+          trie.add(newState());
+          stateMatches.add(NO_MATCHES);
+        }
+        state = next;
+      }
+      stateMatches.set(state, append(stateMatches.get(state), i));
+    }
+
+    // Turn the trie into a complete automaton: missing transitions follow the failure links.
+    int[] failure = new int[trie.size()];
+    Queue<Integer> pending = new ArrayDeque<>();
+    for (int c = 0; c < ALPHABET_SIZE; c++) {
+      int next = trie.get(0)[c];
+      if (next == -1) {
+        trie.get(0)[c] = 0;
+      } else {
+        failure[next] = 0;
+        pending.add(next);
+      }
+    }
+    while (!pending.isEmpty()) {
+      int state = pending.remove();
+      stateMatches.set(state, merge(stateMatches.get(state), stateMatches.get(failure[state])));
+      for (int c = 0; c < ALPHABET_SIZE; c++) {
+        int next = trie.get(state)[c];
+        if (next == -1) {
+          trie.get(state)[c] = trie.get(failure[state])[c];
+        } else {
+          failure[next] = trie.get(failure[state])[c];
+          pending.add(next);
+        }
+      }
+    }
+
+    transitions = new int[trie.size() * ALPHABET_SIZE];
+    for (int state = 0; state < trie.size(); state++) {
+      System.arraycopy(trie.get(state), 0, transitions, state * ALPHABET_SIZE, ALPHABET_SIZE);
+    }
+    matches = stateMatches.toArray(new int[stateMatches.size()][]);
+  }
+
+  /**
+   * Returns the indexes of the patterns that appear in {@code content}.
+   */
+  BitSet scan(byte[] content) {
+    return scan(ByteBuffer.wrap(content));
+  }
+
+  /**
+   * Returns the indexes of the patterns that appear in the remaining bytes of {@code content}. The
+   * position of the buffer is not modified.
+   */
+  BitSet scan(ByteBuffer content) {
+    BitSet found = new BitSet(patternCount);
+    if (patternCount == 0) {
+      return found;
+    }
+    int foundCount = 0;
+    int state = 0;
+    for (int i = content.position(); i < content.limit(); i++) {
+      state = transitions[state * ALPHABET_SIZE + (content.get(i) & 0xff)];
+      for (int pattern : matches[state]) {
+        if (!found.get(pattern)) {
+          found.set(pattern);
+          if (++foundCount == patternCount) {
+            return found;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  private static int[] newState() {
+    int[] state = new int[ALPHABET_SIZE];
+    Arrays.fill(state, -1);
+    return state;
+  }
+
+  private static int[] append(int[] array, int value) {
+    int[] result = Arrays.copyOf(array, array.length + 1);
+    result[array.length] = value;
+    return result;
+  }
+
+  private static int[] merge(int[] first, int[] second) {
+    if (second.length == 0) {
+      return first;
+    }
+    int[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Resolves the files visited by a transformation that walks a tree in parallel to the regular
+ * files that have their content. Symlinks to regular files are followed, so that their targets are
+ * transformed, like {@link Files#isRegularFile} does.
+ *
+ * <p>A link and its target (or two links to the same file) resolve to the same regular file, so
+ * the transformations that modify files use {@link #claim} for processing each regular file only
+ * once per walk. Otherwise the file would be processed concurrently and one of the results lost.
+ */
+final class RegularFileResolver {
+
+  private final Path root;
+  private final Path realRoot;
+  private final Set<Path> claimed =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+  /**
+   * @param root the root of the walked tree
+   */
+  RegularFileResolver(Path root) throws IOException {
+    this.root = Preconditions.checkNotNull(root);
+    this.realRoot = root.toRealPath();
+  }
+
+  /**
+   * Returns the real path of the regular file that has the content of {@code file} (with
+   * attributes {@code attrs}): the file itself or, if it is a symlink, its target. Returns null if
+   * there is no such regular file.
+   */
+  @Nullable
+  Path resolve(Path file, BasicFileAttributes attrs) throws IOException {
+    if (attrs.isRegularFile()) {
+      // The walk doesn't follow symlinks, so the parent directories are not symlinks
+      return realRoot.resolve(root.relativize(file).toString());
+    }
+    if (!attrs.isSymbolicLink() || !Files.isRegularFile(file)) {
+      return null;
+    }
+    return file.toRealPath();
+  }
+
+  /**
+   * Returns true if {@code regularFile}, returned by {@link #resolve}, is in the walked tree.
+   * Transformations shouldn't read or modify files outside of it.
+   */
+  boolean isInTree(Path regularFile) {
+    return regularFile.startsWith(realRoot);
+  }
+
+  /**
+   * Returns true the first time that it is called for {@code regularFile}, returned by
+   * {@link #resolve}, and false afterwards.
+   */
+  boolean claim(Path regularFile) {
+    return claimed.add(regularFile);
+  }
+}
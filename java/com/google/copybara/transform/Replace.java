@@ -18,23 +18,30 @@ package com.google.copybara.transform;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
+import com.google.copybara.VoidOperationException;
 import com.google.copybara.WorkflowOptions;
+import com.google.copybara.transform.TemplateTokens.Replacer;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.ParallelTreeWalker;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A source code transformation which replaces a regular expression with some other string.
@@ -58,6 +65,13 @@ import java.util.Map;
  */
 public final class Replace implements Transformation {
 
+  /**
+   * Version of the results stored in the transformation cache. Must be increased whenever a change
+   * to this class, {@link TemplateTokens} or {@link ReplaceVisitor} changes the result of
+   * replacing some content, so that the results of the previous code are not reused.
+   */
+  private static final int CACHE_VERSION = 2;
+
   private final TemplateTokens before;
   private final TemplateTokens after;
   private final ImmutableMap<String, Pattern> regexGroups;
@@ -97,17 +111,82 @@ public final class Replace implements Transformation {
   @Override
   public void transform(TransformWork work, Console console)
       throws IOException, ValidationException {
-    Path checkoutDir = work.getCheckoutDir();
-
-    ReplaceVisitor visitor = new ReplaceVisitor(
-        before.replacer(after, firstOnly, multiline),
-        fileMatcherBuilder.relativeTo(checkoutDir));
-    Files.walkFileTree(checkoutDir, visitor);
-    if (!visitor.somethingWasChanged) {
-      workflowOptions.reportNoop(
-          console,
-          "Transformation '" + toString() + "' was a no-op. It didn't affect the workdir.");
+    if (!applyAll(ImmutableList.of(this), work.getCheckoutDir())[0]) {
+      reportNoop(console);
+    }
+  }
+
+  /**
+   * Returns the replacer that applies this transformation to the content of a file.
+   */
+  Replacer replacer() {
+    return before.replacer(after, firstOnly, multiline);
+  }
+
+  /**
+   * Applies {@code replaces} in order to the files in {@code checkoutDir}, walking the tree and
+   * reading and writing each file only once. The result is the same as applying them one after the
+   * other.
+   *
+   * @return for each replace, whether it changed any file
+   */
+  static boolean[] applyAll(ImmutableList<Replace> replaces, Path checkoutDir)
+      throws IOException {
+    Preconditions.checkArgument(!replaces.isEmpty());
+    ImmutableList.Builder<Replacer> replacers = ImmutableList.builder();
+    ImmutableList.Builder<PathMatcher> pathMatchers = ImmutableList.builder();
+    for (Replace replace : replaces) {
+      replacers.add(replace.replacer());
+      pathMatchers.add(replace.fileMatcherBuilder.relativeTo(checkoutDir));
+    }
+    WorkflowOptions workflowOptions = replaces.get(0).workflowOptions;
+    List<BitSet> changedFiles = ParallelTreeWalker.walk(
+        checkoutDir,
+        new ReplaceVisitor(new RegularFileResolver(checkoutDir), replacers.build(),
+            pathMatchers.build(), workflowOptions.replaceSkipBinaryFiles,
+            workflowOptions.getTransformCache(), fingerprint(replaces)),
+        workflowOptions.getTransformParallelism());
+    BitSet changedBy = new BitSet(replaces.size());
+    for (BitSet changedFile : changedFiles) {
+      changedBy.or(changedFile);
     }
+    boolean[] result = new boolean[replaces.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = changedBy.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a string that identifies the result of applying {@code replaces} to some content.
+   */
+  private static String fingerprint(ImmutableList<Replace> replaces) {
+    StringBuilder fingerprint = new StringBuilder("replace-v").append(CACHE_VERSION);
+    for (Replace replace : replaces) {
+      // Sorted, so that the fingerprint doesn't depend on the order of the groups in the config
+      Map<String, String> regexGroups = new TreeMap<>();
+      for (Map.Entry<String, Pattern> group : replace.regexGroups.entrySet()) {
+        regexGroups.put(group.getKey(),
+            group.getValue().pattern() + "/" + group.getValue().flags());
+      }
+      fingerprint.append('\n')
+          .append("before=").append(replace.before)
+          .append(",after=").append(replace.after)
+          .append(",regexGroups=").append(regexGroups)
+          .append(",firstOnly=").append(replace.firstOnly)
+          .append(",multiline=").append(replace.multiline)
+          .append(",repeatedGroups=").append(replace.repeatedGroups);
+    }
+    return fingerprint.toString();
+  }
+
+  /**
+   * Reports that this transformation didn't change the workdir.
+   */
+  void reportNoop(Console console) throws VoidOperationException {
+    workflowOptions.reportNoop(
+        console,
+        "Transformation '" + toString() + "' was a no-op. It didn't affect the workdir.");
   }
 
   @Override
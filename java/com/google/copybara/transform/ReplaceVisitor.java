@@ -19,45 +19,210 @@ package com.google.copybara.transform;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
 import com.google.copybara.transform.TemplateTokens.Replacer;
+import com.google.copybara.util.ContentCache;
+import com.google.copybara.util.ParallelTreeWalker.FileProcessor;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
-final class ReplaceVisitor extends SimpleFileVisitor<Path> {
+/**
+ * File processor for one or more {@link Replace} transformations.
+ *
+ * <p>The replacers are applied in order to the content of each file, so that the file is read and
+ * written at most once. Binary files can be skipped. Before decoding a file, its bytes are
+ * scanned once for the literals that the replacers require, in order to skip the replacers (and
+ * files) that cannot match. For every modified file it returns the indexes of the replacers that
+ * changed its content.
+ *
+ * <p>Symlinks to regular files in the tree are followed, but every regular file is processed only
+ * once, through the first of its paths that is visited. Symlinks to files outside of the tree are
+ * skipped.
+ *
+ * <p>If a cache is used, the result of processing a file is stored keyed by its content, so that
+ * the same content is not processed again (for example, when migrating the next change).
+ */
+final class ReplaceVisitor implements FileProcessor<BitSet> {
 
   private static final Logger logger = Logger.getLogger(Replace.class.getName());
 
-  private final Replacer replacer;
-  private final PathMatcher pathMatcher;
-
-  boolean somethingWasChanged;
+  private final ImmutableList<Replacer> replacers;
+  private final ImmutableList<PathMatcher> pathMatchers;
+  /**
+   * Scanner for the required literals of the replacers. Pattern {@code i} is the literal of the
+   * replacer {@code literalOwners[i]}.
+   */
+  private final LiteralScanner literalScanner;
+  private final int[] literalOwners;
+  /** Replacers that can modify any file, because they don't have a usable required literal. */
+  private final BitSet withoutLiteral;
+  @Nullable
+  private final ContentCache cache;
+  private final String fingerprint;
+  private final RegularFileResolver files;
+  private final boolean skipBinaryFiles;
 
-  ReplaceVisitor(Replacer replacer, PathMatcher pathMatcher) {
-    this.replacer = Preconditions.checkNotNull(replacer);
-    this.pathMatcher = Preconditions.checkNotNull(pathMatcher);
+  /**
+   * @param files resolver for the files of the walked tree
+   * @param skipBinaryFiles whether to leave binary files unmodified
+   * @param cache cache for the results, or null for not using a cache
+   * @param fingerprint a string that identifies the replacers. Used for the cache keys
+   */
+  ReplaceVisitor(RegularFileResolver files, ImmutableList<Replacer> replacers,
+      ImmutableList<PathMatcher> pathMatchers, boolean skipBinaryFiles,
+      @Nullable ContentCache cache, String fingerprint) {
+    Preconditions.checkArgument(replacers.size() == pathMatchers.size(),
+        "Each replacer needs a path matcher");
+    this.files = Preconditions.checkNotNull(files);
+    this.skipBinaryFiles = skipBinaryFiles;
+    this.replacers = replacers;
+    this.pathMatchers = pathMatchers;
+    this.cache = cache;
+    this.fingerprint = Preconditions.checkNotNull(fingerprint);
+    List<byte[]> literals = new ArrayList<>();
+    List<Integer> owners = new ArrayList<>();
+    withoutLiteral = new BitSet(replacers.size());
+    for (int i = 0; i < replacers.size(); i++) {
+      String literal = replacers.get(i).requiredLiteral();
+      // Invalid UTF-8 is decoded as U+FFFD, so such a literal might not be in the raw bytes.
+      if (literal == null || literal.indexOf('\uFFFD') != -1) {
+        withoutLiteral.set(i);
+      } else {
+        literals.add(literal.getBytes(UTF_8));
+        owners.add(i);
+      }
+    }
+    literalScanner = new LiteralScanner(literals);
+    literalOwners = Ints.toArray(owners);
   }
 
+  @Nullable
   @Override
-  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-    if (!Files.isRegularFile(file) || !pathMatcher.matches(file)) {
-      return FileVisitResult.CONTINUE;
+  public BitSet process(Path file, BasicFileAttributes attrs) throws IOException {
+    BitSet matching = new BitSet(replacers.size());
+    for (int i = 0; i < replacers.size(); i++) {
+      if (pathMatchers.get(i).matches(file)) {
+        matching.set(i);
+      }
+    }
+    if (matching.isEmpty()) {
+      return null;
+    }
+    Path regularFile = files.resolve(file, attrs);
+    if (regularFile == null) {
+      return null;
+    }
+    if (!files.isInTree(regularFile)) {
+      logger.log(Level.WARNING, String.format(
+          "Skipping symlink %s: its target %s is outside of the checkout", file, regularFile));
+      return null;
+    }
+    if (!files.claim(regularFile)) {
+      // Already processed through another path
+      return null;
+    }
+    FileContent content = FileContent.read(regularFile);
+    if (skipBinaryFiles && content.isBinary()) {
+      logger.log(Level.INFO, String.format("Skipping binary file %s", file));
+      return null;
+    }
+    // Replacers that could modify the original content. Files without candidates are not even
+    // decoded.
+    BitSet candidates = (BitSet) withoutLiteral.clone();
+    BitSet foundLiterals = literalScanner.scan(content.bytes());
+    for (int i = foundLiterals.nextSetBit(0); i >= 0; i = foundLiterals.nextSetBit(i + 1)) {
+      candidates.set(literalOwners[i]);
+    }
+    candidates.and(matching);
+    if (candidates.isEmpty()) {
+      return null;
     }
-    logger.log(Level.INFO, String.format("apply %s to %s", replacer, file));
 
-    String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
-    String transformed = replacer.replace(originalFileContent);
-    if (!originalFileContent.equals(transformed)) {
-      somethingWasChanged = true;
-      Files.write(file, transformed.getBytes(UTF_8));
+    String cacheKey = null;
+    if (cache != null) {
+      // The replacers applied depend on the path, so they are part of the key
+      cacheKey = ContentCache.key(fingerprint + matching, content.bytes());
+      byte[] cached = cache.get(cacheKey);
+      if (cached != null) {
+        return restore(regularFile, cached);
+      }
     }
 
-    return FileVisitResult.CONTINUE;
+    String originalFileContent = content.decode();
+    String transformed = originalFileContent;
+    BitSet changedBy = new BitSet(replacers.size());
+    for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+      // Once the content is modified, the result of the scan is no longer valid.
+      if (changedBy.isEmpty() && !candidates.get(i)) {
+        continue;
+      }
+      Replacer replacer = replacers.get(i);
+      logger.log(Level.INFO, String.format("apply %s to %s", replacer, file));
+      String replaced = replacer.replace(transformed);
+      if (!replaced.equals(transformed)) {
+        changedBy.set(i);
+        transformed = replaced;
+      }
+    }
+    if (changedBy.isEmpty()) {
+      // Not cached: it is cheaper to find again that the file doesn't change than to store the
+      // result of every file that is a candidate.
+      return null;
+    }
+    byte[] transformedBytes = transformed.getBytes(UTF_8);
+    // Note that a later replacer could have undone the change of a previous one. We still
+    // report both as not being a no-op, like if they had been applied one after the other.
+    if (content.contentEquals(transformedBytes)) {
+      transformedBytes = null;
+    } else {
+      FileContent.write(regularFile, transformedBytes);
+    }
+    if (cacheKey != null) {
+      cache.put(cacheKey, cacheEntry(changedBy, transformedBytes));
+    }
+    return changedBy;
+  }
+
+  /**
+   * Encodes the result of processing a file: the replacers that changed it and the new content,
+   * if the file needs to be written.
+   */
+  private static byte[] cacheEntry(BitSet changedBy, @Nullable byte[] newContent) {
+    byte[] changedByBytes = changedBy.toByteArray();
+    int newContentLength = newContent == null ? 0 : newContent.length;
+    ByteBuffer entry = ByteBuffer.allocate(5 + changedByBytes.length + newContentLength);
+    entry.put((byte) (newContent == null ? 0 : 1));
+    entry.putInt(changedByBytes.length);
+    entry.put(changedByBytes);
+    if (newContent != null) {
+      entry.put(newContent);
+    }
+    return entry.array();
+  }
+
+  /**
+   * Applies a cached result to {@code file} and returns the replacers that changed it.
+   */
+  private static BitSet restore(Path file, byte[] cached) throws IOException {
+    ByteBuffer entry = ByteBuffer.wrap(cached);
+    boolean write = entry.get() == 1;
+    byte[] changedByBytes = new byte[entry.getInt()];
+    entry.get(changedByBytes);
+    if (write) {
+      byte[] newContent = new byte[entry.remaining()];
+      entry.get(newContent);
+      FileContent.write(file, newContent);
+    }
+    return BitSet.valueOf(changedByBytes);
   }
 }
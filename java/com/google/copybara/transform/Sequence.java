@@ -58,18 +58,64 @@ public class Sequence implements Transformation {
       return;
     }
 
-    for (int i = 0; i < sequence.size(); i++) {
+    for (int i = 0; i < sequence.size(); ) {
+      int replaces = consecutiveReplaces(i);
+      if (replaces > 1) {
+        transformReplaces(i, i + replaces, work, console);
+        i += replaces;
+        continue;
+      }
       Transformation transformation = sequence.get(i);
-      String transformMsg = String.format(
-          "[%2d/%d] Transform %s", i + 1, sequence.size(),
-          transformation.describe());
+      String transformMsg = transformMessage(i);
       logger.log(Level.INFO, transformMsg);
 
       console.progress(transformMsg);
       transformation.transform(work, new ProgressPrefixConsole(transformMsg + ": ", console));
+      i++;
     }
   }
 
+  /**
+   * Returns the number of consecutive {@link Replace} transformations starting at {@code start}.
+   */
+  private int consecutiveReplaces(int start) {
+    int end = start;
+    while (end < sequence.size() && sequence.get(end) instanceof Replace) {
+      end++;
+    }
+    return end - start;
+  }
+
+  /**
+   * Applies the {@link Replace} transformations in {@code [start, end)} in a single pass over the
+   * workdir. No-ops are reported for each transformation, in the same order and with the same
+   * console prefix as if they had been applied one by one.
+   */
+  private void transformReplaces(int start, int end, TransformWork work, Console console)
+      throws IOException, ValidationException {
+    ImmutableList.Builder<Replace> replaces = ImmutableList.builder();
+    for (int i = start; i < end; i++) {
+      replaces.add((Replace) sequence.get(i));
+      logger.log(Level.INFO, transformMessage(i));
+    }
+    String groupMsg = String.format("[%2d-%d/%d] Transform %d replaces",
+        start + 1, end, sequence.size(), end - start);
+    console.progress(groupMsg);
+
+    boolean[] changed = Replace.applyAll(replaces.build(), work.getCheckoutDir());
+    for (int i = start; i < end; i++) {
+      if (!changed[i - start]) {
+        ((Replace) sequence.get(i)).reportNoop(
+            new ProgressPrefixConsole(transformMessage(i) + ": ", console));
+      }
+    }
+  }
+
+  private String transformMessage(int i) {
+    return String.format(
+        "[%2d/%d] Transform %s", i + 1, sequence.size(), sequence.get(i).describe());
+  }
+
   @Override
   public Transformation reverse() throws NonReversibleValidationException {
     ImmutableList.Builder<Transformation> list = ImmutableList.builder();
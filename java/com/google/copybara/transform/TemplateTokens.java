@@ -16,9 +16,7 @@
 
 package com.google.copybara.transform;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
@@ -34,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * A string which is interpolated with named variables. The string is composed of interpolated and
@@ -63,6 +62,8 @@ final class TemplateTokens {
   private final Multimap<String, Integer> groupIndexes;
   private final ImmutableList<Token> tokens;
   private final Set<String> unusedGroups;
+  @Nullable
+  private final String requiredLiteral;
 
   TemplateTokens(Location location, String template, Map<String, Pattern> regexGroups,
       boolean repeatedGroups) throws EvalException {
@@ -76,6 +77,23 @@ final class TemplateTokens {
     this.groupIndexes = ArrayListMultimap.create(builder.groupIndexes);
     this.tokens = ImmutableList.copyOf(builder.tokens);
     this.unusedGroups = Sets.difference(regexGroups.keySet(), groupIndexes.keySet());
+    this.requiredLiteral = longestLiteral(tokens);
+  }
+
+  /**
+   * Returns the longest literal of the template, or null if it doesn't have any. Since the "before"
+   * regex is the concatenation of the tokens, any string that it matches contains that literal.
+   */
+  @Nullable
+  private static String longestLiteral(List<Token> tokens) {
+    String longest = null;
+    for (Token token : tokens) {
+      if (token.type == TokenType.LITERAL && !token.value.isEmpty()
+          && (longest == null || token.value.length() > longest.length())) {
+        longest = token.value;
+      }
+    }
+    return longest;
   }
 
   /**
@@ -112,39 +130,92 @@ final class TemplateTokens {
       this.multiline = multiline;
     }
 
+    /**
+     * Returns a string that is contained in any text that this replacer modifies, or null if
+     * there is no such string. Used for skipping content without running the regex.
+     */
+    @Nullable
+    String requiredLiteral() {
+      return requiredLiteral;
+    }
+
+    /**
+     * Applies the replacement to every line of {@code content} (or to the whole content if
+     * {@code multiline}).
+     *
+     * <p>The content is scanned in place: lines are matched through a view of the content, lines
+     * that don't contain the required literal are skipped without running the regex, and the
+     * result is only built if some line changes. If nothing changes, {@code content} is returned.
+     */
     String replace(String content) {
-      List<String> originalRanges = multiline
-          ? ImmutableList.of(content)
-          : Splitter.on('\n').splitToList(content);
+      if (requiredLiteral != null && !multiline && requiredLiteral.indexOf('\n') != -1) {
+        // Cannot be contained in a single line
+        return content;
+      }
+      // Lazily created when the first range changes. Contains content[0, copied) replaced.
+      StringBuilder result = null;
+      int copied = 0;
+      Matcher matcher = null;
+      ContentRange range = new ContentRange(content);
 
-      List<String> newRanges = new ArrayList<>(originalRanges.size());
-      for (String line : originalRanges) {
-        newRanges.add(replaceLine(line));
+      int rangeStart = 0;
+      while (rangeStart <= content.length()) {
+        if (requiredLiteral != null) {
+          int next = content.indexOf(requiredLiteral, rangeStart);
+          if (next == -1) {
+            break;
+          }
+          if (!multiline) {
+            // Skip directly to the line that contains the literal
+            rangeStart = Math.max(rangeStart, content.lastIndexOf('\n', next) + 1);
+          }
+        }
+        int rangeEnd = multiline ? -1 : content.indexOf('\n', rangeStart);
+        if (rangeEnd == -1) {
+          rangeEnd = content.length();
+        }
+        range.set(rangeStart, rangeEnd);
+        matcher = matcher == null ? before.matcher(range) : matcher.reset(range);
+        StringBuffer replaced = replaceRange(matcher);
+        if (replaced != null) {
+          if (result == null) {
+            result = new StringBuilder(content.length() + replaced.length());
+          }
+          result.append(content, copied, rangeStart).append(replaced);
+          copied = rangeEnd;
+        }
+        rangeStart = rangeEnd + 1;
+      }
+      if (result == null) {
+        return content;
       }
-      return Joiner.on('\n').join(newRanges);
+      return result.append(content, copied, content.length()).toString();
     }
 
-    private String replaceLine(String line) {
-      Matcher matcher = before.matcher(line);
+    /**
+     * Replaces the matches in the input of {@code matcher}. Returns null if there was no change.
+     */
+    @Nullable
+    private StringBuffer replaceRange(Matcher matcher) {
+      if (!matcher.find()) {
+        return null;
+      }
       StringBuffer sb = new StringBuffer();
-      while (matcher.find()) {
+      do {
         for (Collection<Integer> groupIndexes : repeatedGroups.asMap().values()) {
           // Check that all the references of the repeated group match the same string
           Iterator<Integer> iterator = groupIndexes.iterator();
           String value = matcher.group(iterator.next());
           while (iterator.hasNext()) {
             if (!value.equals(matcher.group(iterator.next()))) {
-              return line;
+              return null;
             }
           }
         }
         matcher.appendReplacement(sb, afterReplaceTemplate);
-        if (firstOnly) {
-          break;
-        }
-      }
+      } while (!firstOnly && matcher.find());
       matcher.appendTail(sb);
-      return sb.toString();
+      return sb;
     }
 
     @Override
@@ -188,6 +259,47 @@ final class TemplateTokens {
     return template;
   }
 
+  /**
+   * A view of a range of a string, so that it can be matched without copying it.
+   */
+  private static final class ContentRange implements CharSequence {
+
+    private final String content;
+    private int start;
+    private int end;
+
+    ContentRange(String content) {
+      this.content = content;
+    }
+
+    void set(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      Preconditions.checkElementIndex(index, length());
+      return content.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      Preconditions.checkPositionIndexes(from, to, length());
+      return content.substring(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+      return content.substring(start, end);
+    }
+  }
+
   private static class Builder {
     List<Token> tokens = new ArrayList<>();
     Multimap<String, Integer> groupIndexes = ArrayListMultimap.create();
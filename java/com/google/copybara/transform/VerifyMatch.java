@@ -21,14 +21,15 @@ import com.google.common.base.Preconditions;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
+import com.google.copybara.WorkflowOptions;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.ParallelTreeWalker;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -41,11 +42,14 @@ public final class VerifyMatch implements Transformation {
   private final Pattern pattern;
   private final boolean verifyNoMatch;
   private final Glob fileMatcherBuilder;
+  private final WorkflowOptions workflowOptions;
 
-  private VerifyMatch(Pattern pattern, boolean verifyNoMatch, Glob fileMatcherBuilder) {
+  private VerifyMatch(Pattern pattern, boolean verifyNoMatch, Glob fileMatcherBuilder,
+      WorkflowOptions workflowOptions) {
     this.pattern = Preconditions.checkNotNull(pattern);
     this.verifyNoMatch = verifyNoMatch;
     this.fileMatcherBuilder = Preconditions.checkNotNull(fileMatcherBuilder);
+    this.workflowOptions = Preconditions.checkNotNull(workflowOptions);
   }
 
   @Override
@@ -61,12 +65,12 @@ public final class VerifyMatch implements Transformation {
   public void transform(TransformWork work, Console console)
       throws IOException, ValidationException {
     Path checkoutDir = work.getCheckoutDir();
-    VerifyMatchVisitor visitor = new VerifyMatchVisitor(pattern,
-        fileMatcherBuilder.relativeTo(checkoutDir), verifyNoMatch);
-    Files.walkFileTree(checkoutDir, visitor);
-    List<String> errors = visitor.getErrors();
+    VerifyMatchVisitor visitor = new VerifyMatchVisitor(new RegularFileResolver(checkoutDir),
+        pattern, fileMatcherBuilder.relativeTo(checkoutDir), verifyNoMatch, describe());
+    List<String> errors = ParallelTreeWalker.walk(
+        checkoutDir, visitor, workflowOptions.getTransformParallelism());
     for (String error : errors) {
-      console.error(String.format("File '%s' failed validation '%s'.", error, describe()));
+      console.error(error);
     }
     if (errors.size() != 0) {
       throw new ValidationException(
@@ -85,13 +89,13 @@ public final class VerifyMatch implements Transformation {
   }
 
   public static VerifyMatch create(Location location, String regEx, Glob paths,
-      boolean verifyNoMatch) throws EvalException {
+      boolean verifyNoMatch, WorkflowOptions workflowOptions) throws EvalException {
     Pattern parsed;
     try {
       parsed = Pattern.compile(regEx, Pattern.MULTILINE);
     } catch (PatternSyntaxException e) {
       throw new EvalException(location, String.format("Regex '%s' is invalid.", regEx), e);
     }
-    return new VerifyMatch(parsed, verifyNoMatch, paths);
+    return new VerifyMatch(parsed, verifyNoMatch, paths, workflowOptions);
   }
 }
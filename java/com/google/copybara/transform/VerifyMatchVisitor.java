@@ -16,49 +16,61 @@
 
 package com.google.copybara.transform;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.copybara.util.ParallelTreeWalker.FileProcessor;
 import com.google.re2j.Pattern;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import javax.annotation.Nullable;
 
 /**
- * Visitor for the {@link VerifyMatch} transformation. Verifies that a regular expression matches
- * content in every visited file (or in no visited file, if {@code verifyNoMatch} is set).
+ * File processor for the {@link VerifyMatch} transformation. Verifies that a regular expression
+ * matches content in every visited file (or in no visited file, if {@code verifyNoMatch} is set).
+ * Symlinks to regular files are validated with the content of their target. Returns the error
+ * messages for the files that failed the validation, including the symlinks to files outside of
+ * the tree, that are not read.
  */
-final class VerifyMatchVisitor extends SimpleFileVisitor<Path> {
+final class VerifyMatchVisitor implements FileProcessor<String> {
 
   private final Pattern regEx;
   private final boolean verifyNoMatch;
   private final PathMatcher pathMatcher;
+  private final RegularFileResolver files;
+  private final String description;
 
-  private ImmutableList.Builder<String> errorBuilder = ImmutableList.builder();
-
-  VerifyMatchVisitor(Pattern regEx, PathMatcher pathMatcher, boolean verifyNoMatch) {
+  /**
+   * @param files resolver for the files of the walked tree
+   * @param description description of the transformation, for the error messages
+   */
+  VerifyMatchVisitor(RegularFileResolver files, Pattern regEx, PathMatcher pathMatcher,
+      boolean verifyNoMatch, String description) {
+    this.files = Preconditions.checkNotNull(files);
     this.regEx = Preconditions.checkNotNull(regEx);
     this.pathMatcher = Preconditions.checkNotNull(pathMatcher);
     this.verifyNoMatch = verifyNoMatch;
+    this.description = Preconditions.checkNotNull(description);
   }
 
-  ImmutableList<String> getErrors() {
-    return errorBuilder.build();
-  }
+  @Nullable
   @Override
-  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+  public String process(Path file, BasicFileAttributes attrs) throws IOException {
     if (!pathMatcher.matches(file)) {
-      return FileVisitResult.CONTINUE;
+      return null;
+    }
+    Path regularFile = files.resolve(file, attrs);
+    if (regularFile == null) {
+      return null;
+    }
+    if (!files.isInTree(regularFile)) {
+      return String.format("File '%s' cannot be validated by '%s': it is a symlink to '%s',"
+          + " outside of the checkout.", file, description, regularFile);
     }
-    String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
+    String originalFileContent = FileContent.read(regularFile).decode();
     if (verifyNoMatch == regEx.matcher(originalFileContent).find()) {
-      errorBuilder.add(file.toString());
+      return String.format("File '%s' failed validation '%s'.", file, description);
     }
-    return FileVisitResult.CONTINUE;
+    return null;
   }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressed on-disk cache of the results of processing some content.
+ *
+ * <p>Keys are computed from the content and a fingerprint of the processing, so entries never
+ * become stale. The cache is an optimization: any I/O error is logged and ignored, and the
+ * directory can be deleted at any time. It is safe to use it from several threads.
+ *
+ * <p>The size of the cache is bounded: when the entries written make it bigger than the maximum
+ * size, the least recently used entries (by modification time, that is updated on every hit) are
+ * deleted until it is back to three quarters of the maximum size.
+ */
+public final class ContentCache {
+
+  private static final Logger logger = Logger.getLogger(ContentCache.class.getName());
+
+  private final Path dir;
+  private final long maxSize;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+  /**
+   * Estimated size of the entries in bytes, or -1 if it hasn't been computed yet. Guarded by
+   * {@code this}.
+   */
+  private long size = -1;
+
+  /**
+   * @param maxSize maximum size in bytes of the entries stored in {@code dir}
+   */
+  public ContentCache(Path dir, long maxSize) {
+    this.dir = Preconditions.checkNotNull(dir);
+    Preconditions.checkArgument(maxSize >= 0, "Invalid max size: %s", maxSize);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the key for the result of processing the remaining bytes of {@code content} with the
+   * processing identified by {@code fingerprint}. The position of the buffer is not modified.
+   */
+  public static String key(String fingerprint, ByteBuffer content) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 should be always available", e);
+    }
+    byte[] fingerprintBytes = fingerprint.getBytes(UTF_8);
+    digest.update(ByteBuffer.allocate(4).putInt(fingerprintBytes.length).array());
+    digest.update(fingerprintBytes);
+    digest.update(content.duplicate());
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+
+  /**
+   * Returns the value stored for {@code key}, or null if there is none.
+   */
+  @Nullable
+  public byte[] get(String key) {
+    try {
+      Path entry = entry(key);
+      byte[] value = Files.readAllBytes(entry);
+      hits.incrementAndGet();
+      touch(entry);
+      return value;
+    } catch (NoSuchFileException e) {
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot read cache entry " + key, e);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores {@code value} for {@code key}.
+   */
+  public void put(String key, byte[] value) {
+    Path entry = entry(key);
+    try {
+      Files.createDirectories(entry.getParent());
+      Path tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+      try {
+        Files.write(tmp, value);
+        Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot write cache entry " + key, e);
+      return;
+    }
+    written(value.length);
+  }
+
+  /**
+   * Updates the modification time of {@code entry}, so that it is not the next one to be evicted.
+   */
+  private static void touch(Path entry) {
+    try {
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The entry might have been evicted in the meantime
+      logger.log(Level.FINE, "Cannot update the modification time of " + entry, e);
+    }
+  }
+
+  /**
+   * Accounts for an entry of {@code length} bytes that has been written, and trims the cache if
+   * it grows bigger than the maximum size.
+   */
+  private synchronized void written(long length) {
+    if (size >= 0) {
+      size += length;
+      if (size <= maxSize) {
+        return;
+      }
+    }
+    try {
+      size = trim(maxSize / 4 * 3);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot trim cache " + dir, e);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the entries take at most {@code targetSize}
+   * bytes, if the cache is bigger than the maximum size. Returns the resulting size.
+   */
+  private long trim(long targetSize) throws IOException {
+    final List<Entry> entries = new ArrayList<>();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        // Temporary files of entries being written are not entries yet
+        if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(".tmp")) {
+          entries.add(new Entry(file, attrs.lastModifiedTime(), attrs.size()));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    long total = 0;
+    for (Entry entry : entries) {
+      total += entry.size;
+    }
+    if (total <= maxSize) {
+      return total;
+    }
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return a.lastModified.compareTo(b.lastModified);
+      }
+    });
+    for (Entry entry : entries) {
+      if (total <= targetSize) {
+        break;
+      }
+      if (Files.deleteIfExists(entry.path)) {
+        total -= entry.size;
+      }
+    }
+    logger.log(Level.INFO, String.format("Trimmed cache %s to %d bytes", dir, total));
+    return total;
+  }
+
+  private static final class Entry {
+
+    private final Path path;
+    private final FileTime lastModified;
+    private final long size;
+
+    private Entry(Path path, FileTime lastModified, long size) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  private Path entry(String key) {
+    Preconditions.checkArgument(key.length() > 2, "Invalid key: %s", key);
+    return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Empties directories, like the working directory before every migration, removing both files
+ * and subdirectories.
+ *
+ * <p>In asynchronous mode the contents of the directory are moved to a trash directory next to it
+ * (A rename per entry of the directory, independently of the size of the tree) and deleted in a
+ * background thread, so that the directory can be used right away. If the contents cannot be
+ * moved, they are deleted in place.
+ *
+ * <p>Every process creates its own private trash directory, with a random name, and holds a lock
+ * on a file in it while using it. The trash directory is deleted once it is empty. Trash left
+ * behind by previous processes of the same user (For example because they exited before the
+ * deletion finished) is deleted when a new trash directory is created next to it. Symlinks, the
+ * trash of other users and the trash of live processes are never touched.
+ */
+public final class DirectoryCleaner {
+
+  private static final Logger logger = Logger.getLogger(DirectoryCleaner.class.getName());
+
+  @VisibleForTesting
+  static final String TRASH_DIR_PREFIX = ".copybara.trash-";
+
+  /**
+   * File of the trash directories that is locked by the process that uses the directory.
+   */
+  @VisibleForTesting
+  static final String LOCK_FILE = ".lock";
+
+  /**
+   * The trash directory of this process for each parent directory. Shared by all the cleaners.
+   * Also used for synchronizing the creation and deletion of the trash directories.
+   */
+  private static final Map<Path, Trash> TRASHES = new HashMap<>();
+
+  private final boolean async;
+  private ExecutorService executor;
+
+  /**
+   * @param async if true, delete the contents of the directories in a background thread
+   */
+  public DirectoryCleaner(boolean async) {
+    this.async = async;
+  }
+
+  /**
+   * Deletes all the contents of {@code dir}, that must be a directory.
+   */
+  public void clean(Path dir) throws IOException {
+    clean(dir, ImmutableSet.<Path>of());
+  }
+
+  /**
+   * Deletes all the contents of {@code dir}, that must be a directory, except the entries of the
+   * directory in {@code keep}.
+   */
+  public void clean(Path dir, ImmutableSet<Path> keep) throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path entry : stream) {
+        if (!keep.contains(entry)) {
+          entries.add(entry);
+        }
+      }
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    Path trash = async ? createTrash(dir) : null;
+    for (Path entry : entries) {
+      if (trash != null) {
+        try {
+          Files.move(entry, trash.resolve(entry.getFileName()));
+          continue;
+        } catch (IOException e) {
+          logger.log(Level.WARNING,
+              "Cannot move " + entry + " to " + trash + ". Deleting it in place.", e);
+        }
+      }
+      delete(entry);
+    }
+    if (trash != null) {
+      deleteInBackground(trash);
+    }
+  }
+
+  /**
+   * Waits for the deletions running in the background to finish.
+   */
+  @VisibleForTesting
+  public void awaitBackgroundDeletions() throws InterruptedException {
+    ExecutorService previous;
+    synchronized (this) {
+      previous = executor;
+      executor = null;
+    }
+    if (previous != null) {
+      previous.shutdown();
+      previous.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Returns a new directory, in the same file system as {@code dir} and outside of it, where its
+   * contents can be moved, or null if it cannot be created.
+   */
+  private Path createTrash(Path dir) {
+    Path parent = dir.toAbsolutePath().getParent();
+    if (parent == null) {
+      return null;
+    }
+    try {
+      synchronized (TRASHES) {
+        Trash trash = TRASHES.get(parent);
+        if (trash == null) {
+          trash = Trash.create(parent);
+          TRASHES.put(parent, trash);
+          sweepLeftovers(parent, trash.dir);
+        }
+        return Files.createTempDirectory(trash.dir, dir.getFileName() + "-");
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot create a trash directory in " + parent, e);
+      return null;
+    }
+  }
+
+  /**
+   * Moves to {@code trashDir} the trash directories in {@code parent} that were left behind by
+   * processes of the same user that are not running anymore, and deletes them in the background.
+   */
+  private void sweepLeftovers(Path parent, Path trashDir) throws IOException {
+    UserPrincipal owner;
+    try {
+      owner = Files.getOwner(trashDir);
+    } catch (UnsupportedOperationException e) {
+      logger.log(Level.WARNING, "Cannot check the owner of the trash in " + parent, e);
+      return;
+    }
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(parent, TRASH_DIR_PREFIX + "*")) {
+      for (Path leftover : stream) {
+        if (isInUse(leftover)) {
+          continue;
+        }
+        try {
+          BasicFileAttributes attrs = Files.readAttributes(
+              leftover, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          if (!attrs.isDirectory()
+              || !owner.equals(Files.getOwner(leftover, LinkOption.NOFOLLOW_LINKS))) {
+            continue;
+          }
+          try (FileChannel channel = FileChannel.open(leftover.resolve(LOCK_FILE),
+              StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+            if (channel.tryLock() == null) {
+              continue;
+            }
+            // Not deleted in place, so that no other process sweeps it at the same time
+            Path moved = trashDir.resolve(leftover.getFileName());
+            Files.move(leftover, moved);
+            deleteInBackground(moved);
+          }
+        } catch (OverlappingFileLockException | NoSuchFileException e) {
+          // Locked by this process, or without a lock file yet: it might be in use
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Cannot delete the leftover trash " + leftover, e);
+        }
+      }
+    }
+  }
+
+  private static boolean isInUse(Path trashDir) {
+    for (Trash trash : TRASHES.values()) {
+      if (trash.dir.equals(trashDir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Deletes {@code path}, an entry of a trash directory, in the background. The trash directory is
+   * deleted too if it is empty afterwards.
+   */
+  private synchronized void deleteInBackground(final Path path) {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("copybara-directory-cleaner-%d")
+          .setDaemon(true)
+          .build());
+    }
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          delete(path);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Cannot delete " + path, e);
+        }
+        deleteIfEmpty(path.getParent());
+      }
+    });
+  }
+
+  /**
+   * Deletes the trash directory {@code trashDir} of this process if it doesn't have any entry
+   * other than the lock file. The next clean creates a new one.
+   */
+  private static void deleteIfEmpty(Path trashDir) {
+    synchronized (TRASHES) {
+      Trash trash = TRASHES.get(trashDir.getParent());
+      if (trash == null || !trash.dir.equals(trashDir)) {
+        return;
+      }
+      try {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashDir)) {
+          for (Path entry : stream) {
+            if (!entry.getFileName().toString().equals(LOCK_FILE)) {
+              return;
+            }
+          }
+        }
+        TRASHES.remove(trashDir.getParent());
+        trash.delete();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot delete " + trashDir, e);
+      }
+    }
+  }
+
+  /**
+   * A trash directory of this process. The lock of its lock file is held while it is in use.
+   */
+  private static final class Trash {
+
+    private final Path dir;
+    private final FileChannel lock;
+
+    private Trash(Path dir, FileChannel lock) {
+      this.dir = dir;
+      this.lock = lock;
+    }
+
+    /**
+     * Creates a new trash directory in {@code parent}, only accessible by the current user if the
+     * file system supports POSIX permissions.
+     */
+    static Trash create(Path parent) throws IOException {
+      Path dir = Files.createTempDirectory(parent, TRASH_DIR_PREFIX);
+      FileChannel lock = FileChannel.open(dir.resolve(LOCK_FILE),
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      try {
+        lock.lock();
+      } catch (IOException e) {
+        lock.close();
+        throw e;
+      }
+      return new Trash(dir, lock);
+    }
+
+    void delete() throws IOException {
+      Files.delete(dir.resolve(LOCK_FILE));
+      lock.close();
+      Files.delete(dir);
+    }
+  }
+
+  private static void delete(Path path) throws IOException {
+    if (Files.isDirectory(path) && !Files.isSymbolicLink(path)) {
+      FileUtil.deleteRecursively(path);
+    }
+    Files.delete(path);
+  }
+}
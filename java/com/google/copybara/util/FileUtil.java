@@ -20,14 +20,24 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 /**
@@ -47,6 +57,14 @@ public final class FileUtil {
     }
   };
 
+  private static final Logger logger = Logger.getLogger(FileUtil.class.getName());
+
+  /**
+   * Regular files of at least this size are copied with {@link FileChannel#transferTo}, that
+   * avoids copying the content through the JVM heap when the file system supports it.
+   */
+  private static final long TRANSFER_THRESHOLD = 1024 * 1024;
+
   private FileUtil() {}
 
   private static final Pattern RELATIVISM = Pattern.compile("(.*/)?[.][.]?(/.*)?");
@@ -86,20 +104,114 @@ public final class FileUtil {
    * that "../foo" in the destination. If it points to "/usr/bin/foo" it will point to
    * "/usr/bin/foo"
    */
-  public static void copyFilesRecursively(final Path from, final Path to) throws IOException {
-    Preconditions.checkArgument(Files.isDirectory(from), "%s (from) is not a directory");
-    Preconditions.checkArgument(Files.isDirectory(to), "%s (to) is not a directory");
+  public static void copyFilesRecursively(Path from, Path to) throws IOException {
+    copyFilesRecursively(from, to, /*parallelism=*/1);
+  }
+
+  /**
+   * Like {@link #copyFilesRecursively(Path, Path)} but copying up to {@code parallelism} files at
+   * the same time.
+   */
+  public static void copyFilesRecursively(final Path from, final Path to, int parallelism)
+      throws IOException {
+    Preconditions.checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
+    Preconditions.checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
+    final AtomicInteger files = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+    long start = System.nanoTime();
+    ParallelTreeWalker.walk(from, new ParallelTreeWalker.DirectoryProcessor<Void>() {
+      @Override
+      public void preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        // Files are not visited until their directory has been created
+        Files.createDirectories(to.resolve(from.relativize(dir)));
+      }
+
+      @Override
+      public Void process(Path file, BasicFileAttributes attrs) throws IOException {
+        Path destFile = to.resolve(from.relativize(file));
+        if (attrs.isSymbolicLink()) {
+          Path realDestination = Files.readSymbolicLink(file);
+          Files.createSymbolicLink(destFile, realDestination);
+        } else if (attrs.isRegularFile() && attrs.size() >= TRANSFER_THRESHOLD) {
+          transferFile(file, destFile, attrs);
+        } else {
+          Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        files.incrementAndGet();
+        if (attrs.isRegularFile()) {
+          bytes.addAndGet(attrs.size());
+        }
+        return null;
+      }
+    }, parallelism);
+    long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    logger.log(Level.INFO, String.format(
+        "Copied %d files (%d bytes) from %s to %s in %d ms (%.1f MB/s, %d threads)",
+        files.get(), bytes.get(), from, to, millis,
+        bytes.get() * 1000.0 / millis / (1024 * 1024), parallelism));
+  }
+
+  /**
+   * Copies a big regular file letting the file system move the bytes between the channels, and
+   * then its attributes, like {@link Files#copy} with {@link StandardCopyOption#COPY_ATTRIBUTES}.
+   */
+  private static void transferFile(Path file, Path destFile, BasicFileAttributes attrs)
+      throws IOException {
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(destFile,
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, out);
+      }
+    }
+    PosixFileAttributeView posix = Files.getFileAttributeView(
+        file, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+    PosixFileAttributeView destPosix = Files.getFileAttributeView(
+        destFile, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+    if (posix != null && destPosix != null) {
+      destPosix.setPermissions(posix.readAttributes().permissions());
+    }
+    Files.getFileAttributeView(destFile, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+        .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), attrs.creationTime());
+  }
+
+  /**
+   * Makes a snapshot of the files in {@code from} directory in {@code to} directory, like
+   * {@link #copyFilesRecursively(Path, Path)} but creating hard links to the regular files instead
+   * of copying them when the file system supports it. This makes the cost of the snapshot
+   * independent of the size of the files.
+   *
+   * <p>Both trees share the content and attributes of the regular files, so the files of either
+   * tree must not be modified in place: they can be deleted or replaced (For example by moving a
+   * new file over them), and then the other tree keeps the previous version. If hard links cannot
+   * be created (For example {@code to} is in a different file system), files are copied.
+   */
+  public static void snapshotFilesRecursively(final Path from, final Path to) throws IOException {
+    Preconditions.checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
+    Preconditions.checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
     Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+      private boolean linksSupported = true;
+
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         Path destFile = to.resolve(from.relativize(file));
         Files.createDirectories(destFile.getParent());
 
-        if (Files.isSymbolicLink(file)) {
-          Path realDestination = Files.readSymbolicLink(file);
-          Files.createSymbolicLink(destFile, realDestination);
+        if (attrs.isSymbolicLink()) {
+          Files.createSymbolicLink(destFile, Files.readSymbolicLink(file));
           return FileVisitResult.CONTINUE;
         }
+        if (linksSupported && attrs.isRegularFile()) {
+          try {
+            Files.createLink(destFile, file);
+            return FileVisitResult.CONTINUE;
+          } catch (UnsupportedOperationException | FileSystemException e) {
+            // Don't try again for every file
+            linksSupported = false;
+          }
+        }
         Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
         return FileVisitResult.CONTINUE;
       }
@@ -110,6 +222,31 @@ public final class FileUtil {
     return deleteFilesRecursively(path, ALL_FILES);
   }
 
+  /**
+   * Deletes all the files and directories inside {@code dir}, but not {@code dir} itself.
+   * Symlinks are deleted, not followed.
+   */
+  public static void deleteRecursively(final Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path subdir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        if (!subdir.equals(dir)) {
+          Files.delete(subdir);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
   /**
    * Deletes the files that match the PathMatcher.
    *
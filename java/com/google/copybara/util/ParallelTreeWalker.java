@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import javax.annotation.Nullable;
+
+/**
+ * Walks a file tree processing the files in parallel using a {@link ForkJoinPool}.
+ *
+ * <p>The entries of every directory are visited sorted by name (Symlinks are not followed), and
+ * the results are returned in that order independently of the order in which the files were
+ * processed or listed by the file system. If processing more than one file fails, the exception of
+ * the first file in that order is thrown.
+ *
+ * <p>Every directory is listed completely before its entries are processed, so processors can
+ * create, rename and delete files in the directory of the file that they process (For example for
+ * replacing it atomically) without affecting the walk.
+ *
+ * <p>Processors that implement {@link DirectoryProcessor} are also notified of every directory
+ * before any of its files is processed.
+ */
+public final class ParallelTreeWalker {
+
+  /**
+   * Processes one file of the tree. It is called concurrently from several threads, so it must be
+   * thread-safe.
+   */
+  public interface FileProcessor<T> {
+
+    /**
+     * Processes {@code file}. {@code attrs} are the attributes of the file (or the symlink, if it
+     * is a symlink).
+     *
+     * @return a result to be included in the result of the walk or null
+     */
+    @Nullable
+    T process(Path file, BasicFileAttributes attrs) throws IOException;
+  }
+
+  /**
+   * A {@link FileProcessor} that is also notified of the directories of the tree.
+   */
+  public interface DirectoryProcessor<T> extends FileProcessor<T> {
+
+    /**
+     * Called for every directory, including the root, before any file or directory inside it is
+     * visited. It is called concurrently from several threads, like
+     * {@link #process(Path, BasicFileAttributes)}.
+     */
+    void preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException;
+  }
+
+  private ParallelTreeWalker() {
+  }
+
+  /**
+   * Visits all the files under {@code root} with {@code processor}, using at most
+   * {@code parallelism} threads, and returns the non-null results in tree walking order.
+   */
+  public static <T> ImmutableList<T> walk(Path root, FileProcessor<T> processor, int parallelism)
+      throws IOException {
+    Preconditions.checkArgument(parallelism > 0, "Invalid parallelism: %s", parallelism);
+    BasicFileAttributes attrs = Files.readAttributes(
+        root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    ForkJoinTask<List<T>> task = attrs.isDirectory()
+        ? new DirectoryTask<>(root, attrs, processor)
+        : new FileTask<>(root, attrs, processor);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      return ImmutableList.copyOf(pool.invoke(task));
+    } catch (WalkException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static final class DirectoryTask<T> extends RecursiveTask<List<T>> {
+
+    private final Path dir;
+    private final BasicFileAttributes attrs;
+    private final FileProcessor<T> processor;
+
+    private DirectoryTask(Path dir, BasicFileAttributes attrs, FileProcessor<T> processor) {
+      this.dir = dir;
+      this.attrs = attrs;
+      this.processor = processor;
+    }
+
+    @Override
+    protected List<T> compute() {
+      List<ForkJoinTask<List<T>>> children = new ArrayList<>();
+      try {
+        if (processor instanceof DirectoryProcessor) {
+          ((DirectoryProcessor<T>) processor).preVisitDirectory(dir, attrs);
+        }
+      } catch (IOException e) {
+        throw new WalkException(e);
+      }
+      try {
+        // The stream is closed before any child is processed: the processors could modify the
+        // directory while it is being read, and files could be listed twice or not at all.
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+          for (Path child : stream) {
+            entries.add(child);
+          }
+        }
+        Collections.sort(entries);
+        List<BasicFileAttributes> entryAttrs = new ArrayList<>(entries.size());
+        for (Path child : entries) {
+          entryAttrs.add(Files.readAttributes(
+              child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        }
+        for (int i = 0; i < entries.size(); i++) {
+          Path child = entries.get(i);
+          BasicFileAttributes childAttrs = entryAttrs.get(i);
+          children.add(childAttrs.isDirectory()
+              ? new DirectoryTask<>(child, childAttrs, processor).fork()
+              : new FileTask<>(child, childAttrs, processor).fork());
+        }
+      } catch (IOException e) {
+        throw new WalkException(e);
+      }
+      List<T> result = new ArrayList<>();
+      WalkException firstError = null;
+      // Wait for all the children, so that they don't keep running after we return.
+      for (ForkJoinTask<List<T>> child : children) {
+        try {
+          List<T> childResult = child.join();
+          if (firstError == null) {
+            result.addAll(childResult);
+          }
+        } catch (WalkException e) {
+          if (firstError == null) {
+            firstError = e;
+          }
+        }
+      }
+      if (firstError != null) {
+        throw firstError;
+      }
+      return result;
+    }
+  }
+
+  private static final class FileTask<T> extends RecursiveTask<List<T>> {
+
+    private final Path file;
+    private final BasicFileAttributes attrs;
+    private final FileProcessor<T> processor;
+
+    private FileTask(Path file, BasicFileAttributes attrs, FileProcessor<T> processor) {
+      this.file = file;
+      this.attrs = attrs;
+      this.processor = processor;
+    }
+
+    @Override
+    protected List<T> compute() {
+      T result;
+      try {
+        result = processor.process(file, attrs);
+      } catch (IOException e) {
+        throw new WalkException(e);
+      }
+      return result == null ? ImmutableList.<T>of() : ImmutableList.of(result);
+    }
+  }
+
+  /**
+   * Wraps an {@link IOException} thrown inside the pool.
+   *
+   * <p>There is intentionally no constructor taking a {@link Throwable}, so that the fork-join
+   * framework rethrows the same instance instead of a copy.
+   */
+  private static final class WalkException extends RuntimeException {
+
+    private WalkException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
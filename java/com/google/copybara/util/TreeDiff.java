@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * Compares two directory trees without leaving the JVM.
+ *
+ * <p>Like {@code git diff}, only files are compared (Empty directories are ignored), symlinks are
+ * compared by their target and the executable bit is part of the file. {@link #equal} stops at
+ * the first difference, and {@link #diff} only produces the text of the files that differ, one
+ * file at a time, so that the full diff never needs to be in memory.
+ */
+public final class TreeDiff {
+
+  /**
+   * Receives the diff of every file that differs between the trees.
+   */
+  public interface FileDiffHandler {
+
+    /**
+     * Called with the unified diff of one file, including its git-style header.
+     */
+    void fileDiff(String diff) throws IOException;
+  }
+
+  private static final int CONTEXT_LINES = 3;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int BINARY_DETECTION_BYTES = 8000;
+  /**
+   * Maximum number of line edits computed for a file. The memory needed grows with the square of
+   * the edits, so over this limit the changed region is shown as fully replaced.
+   */
+  @VisibleForTesting
+  static final int MAX_EDITS = 1000;
+
+  private TreeDiff() {
+  }
+
+  /**
+   * Returns true if the files under {@code one} and {@code other} are the same. Returns as soon
+   * as a difference is found.
+   */
+  public static boolean equal(Path one, Path other) throws IOException {
+    Map<String, FileEntry> oneFiles = listFiles(one);
+    Map<String, FileEntry> otherFiles = listFiles(other);
+    if (!oneFiles.keySet().equals(otherFiles.keySet())) {
+      return false;
+    }
+    for (Map.Entry<String, FileEntry> entry : oneFiles.entrySet()) {
+      if (!sameContent(entry.getValue(), otherFiles.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Computes the unified diff between the files under {@code one} and {@code other}, calling
+   * {@code handler} for every file that differs, in path order. Paths are prefixed with
+   * {@code a/<name of one>/} and {@code b/<name of other>/}, like {@code git diff} does when
+   * comparing two sibling directories.
+   *
+   * @return true if any file differs
+   */
+  public static boolean diff(Path one, Path other, FileDiffHandler handler) throws IOException {
+    Map<String, FileEntry> oneFiles = listFiles(one);
+    Map<String, FileEntry> otherFiles = listFiles(other);
+    String onePrefix = "a/" + one.getFileName() + "/";
+    String otherPrefix = "b/" + other.getFileName() + "/";
+    boolean differ = false;
+    for (String path : Sets.newTreeSet(Sets.union(oneFiles.keySet(), otherFiles.keySet()))) {
+      FileEntry oneFile = oneFiles.get(path);
+      FileEntry otherFile = otherFiles.get(path);
+      if (oneFile != null && otherFile != null && sameContent(oneFile, otherFile)) {
+        continue;
+      }
+      differ = true;
+      handler.fileDiff(fileDiff(onePrefix + path, oneFile, otherPrefix + path, otherFile));
+    }
+    return differ;
+  }
+
+  private static Map<String, FileEntry> listFiles(final Path root) throws IOException {
+    Preconditions.checkArgument(Files.isDirectory(root), "%s is not a directory", root);
+    final boolean posix =
+        Files.getFileAttributeView(root, PosixFileAttributeView.class) != null;
+    final Map<String, FileEntry> files = new TreeMap<>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String mode;
+        if (attrs.isSymbolicLink()) {
+          mode = "120000";
+        } else if (posix && Files.getPosixFilePermissions(file)
+            .contains(PosixFilePermission.OWNER_EXECUTE)) {
+          mode = "100755";
+        } else {
+          mode = "100644";
+        }
+        files.put(root.relativize(file).toString(), new FileEntry(file, attrs, mode));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  private static boolean sameContent(FileEntry one, FileEntry other) throws IOException {
+    if (!one.mode.equals(other.mode)) {
+      return false;
+    }
+    if (one.attrs.isSymbolicLink()) {
+      return Files.readSymbolicLink(one.path).equals(Files.readSymbolicLink(other.path));
+    }
+    if (one.attrs.size() != other.attrs.size()) {
+      return false;
+    }
+    // Hard links, like the ones created by FileUtil.snapshotFilesRecursively
+    if (one.attrs.fileKey() != null && one.attrs.fileKey().equals(other.attrs.fileKey())) {
+      return true;
+    }
+    if (one.attrs.size() <= BUFFER_SIZE) {
+      return Arrays.equals(Files.readAllBytes(one.path), Files.readAllBytes(other.path));
+    }
+    try (InputStream oneIn = Files.newInputStream(one.path);
+        InputStream otherIn = Files.newInputStream(other.path)) {
+      byte[] oneBuffer = new byte[BUFFER_SIZE];
+      byte[] otherBuffer = new byte[BUFFER_SIZE];
+      while (true) {
+        int read = readFully(oneIn, oneBuffer);
+        if (read != readFully(otherIn, otherBuffer)) {
+          return false;
+        }
+        if (read == 0) {
+          return true;
+        }
+        for (int i = 0; i < read; i++) {
+          if (oneBuffer[i] != otherBuffer[i]) {
+            return false;
+          }
+        }
+      }
+    }
+  }
+
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int total = 0;
+    int read;
+    while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) > 0) {
+      total += read;
+    }
+    return total;
+  }
+
+  private static String fileDiff(String oneName, @Nullable FileEntry one,
+      String otherName, @Nullable FileEntry other) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("diff --git ").append(oneName).append(' ').append(otherName).append('\n');
+    if (one == null) {
+      sb.append("new file mode ").append(other.mode).append('\n');
+    } else if (other == null) {
+      sb.append("deleted file mode ").append(one.mode).append('\n');
+    } else if (!one.mode.equals(other.mode)) {
+      sb.append("old mode ").append(one.mode).append('\n');
+      sb.append("new mode ").append(other.mode).append('\n');
+    }
+    byte[] oneContent = one == null ? new byte[0] : content(one);
+    byte[] otherContent = other == null ? new byte[0] : content(other);
+    if (Arrays.equals(oneContent, otherContent)) {
+      // Only the mode changed
+      return sb.toString();
+    }
+    String oneHeader = one == null ? "/dev/null" : oneName;
+    String otherHeader = other == null ? "/dev/null" : otherName;
+    if (isBinary(oneContent) || isBinary(otherContent)) {
+      sb.append("Binary files ").append(oneHeader).append(" and ").append(otherHeader)
+          .append(" differ\n");
+      return sb.toString();
+    }
+    sb.append("--- ").append(oneHeader).append('\n');
+    sb.append("+++ ").append(otherHeader).append('\n');
+    appendHunks(sb, splitLines(oneContent), splitLines(otherContent));
+    return sb.toString();
+  }
+
+  private static byte[] content(FileEntry file) throws IOException {
+    return file.attrs.isSymbolicLink()
+        ? Files.readSymbolicLink(file.path).toString().getBytes(UTF_8)
+        : Files.readAllBytes(file.path);
+  }
+
+  private static boolean isBinary(byte[] content) {
+    int limit = Math.min(content.length, BINARY_DETECTION_BYTES);
+    for (int i = 0; i < limit; i++) {
+      if (content[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Splits the content in lines, keeping the line terminator, so that a last line without a line
+   * terminator is different from the same line with it.
+   */
+  private static List<String> splitLines(byte[] content) {
+    String text = new String(content, UTF_8);
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+      end = end == -1 ? text.length() : end + 1;
+      lines.add(text.substring(start, end));
+      start = end;
+    }
+    return lines;
+  }
+
+  private enum Op {
+    EQUAL, DELETE, INSERT
+  }
+
+  /**
+   * Appends the hunks of the unified diff between {@code a} and {@code b} lines.
+   */
+  @VisibleForTesting
+  static void appendHunks(StringBuilder sb, List<String> a, List<String> b) {
+    List<Op> ops = diffLines(a, b);
+    // Line of 'a' and 'b' before every operation
+    int[] aLine = new int[ops.size() + 1];
+    int[] bLine = new int[ops.size() + 1];
+    for (int i = 0; i < ops.size(); i++) {
+      aLine[i + 1] = aLine[i] + (ops.get(i) == Op.INSERT ? 0 : 1);
+      bLine[i + 1] = bLine[i] + (ops.get(i) == Op.DELETE ? 0 : 1);
+    }
+    int hunkEnd = 0;
+    int first;
+    while ((first = nextChange(ops, hunkEnd)) != -1) {
+      int start = Math.max(hunkEnd, first - CONTEXT_LINES);
+      int last = first;
+      int next;
+      // Changes separated by less than twice the context go in the same hunk
+      while ((next = nextChange(ops, last + 1)) != -1 && next - last - 1 <= 2 * CONTEXT_LINES) {
+        last = next;
+      }
+      hunkEnd = Math.min(ops.size(), last + 1 + CONTEXT_LINES);
+      sb.append("@@ -").append(range(aLine[start], aLine[hunkEnd] - aLine[start]))
+          .append(" +").append(range(bLine[start], bLine[hunkEnd] - bLine[start]))
+          .append(" @@\n");
+      for (int i = start; i < hunkEnd; i++) {
+        switch (ops.get(i)) {
+          case EQUAL:
+            appendLine(sb, ' ', a.get(aLine[i]));
+            break;
+          case DELETE:
+            appendLine(sb, '-', a.get(aLine[i]));
+            break;
+          case INSERT:
+            appendLine(sb, '+', b.get(bLine[i]));
+            break;
+        }
+      }
+    }
+  }
+
+  private static int nextChange(List<Op> ops, int from) {
+    for (int i = from; i < ops.size(); i++) {
+      if (ops.get(i) != Op.EQUAL) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String range(int start, int count) {
+    // An empty range refers to the line before it
+    int first = count == 0 ? start : start + 1;
+    return count == 1 ? String.valueOf(first) : first + "," + count;
+  }
+
+  private static void appendLine(StringBuilder sb, char prefix, String line) {
+    sb.append(prefix).append(line);
+    if (!line.endsWith("\n")) {
+      sb.append("\n\\ No newline at end of file\n");
+    }
+  }
+
+  /**
+   * Returns the shortest edit script that transforms {@code a} in {@code b}, using Myers'
+   * algorithm after removing the common prefix and suffix.
+   */
+  private static List<Op> diffLines(List<String> a, List<String> b) {
+    int prefix = 0;
+    while (prefix < a.size() && prefix < b.size() && a.get(prefix).equals(b.get(prefix))) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < a.size() - prefix && suffix < b.size() - prefix
+        && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) {
+      suffix++;
+    }
+    List<Op> ops = new ArrayList<>(a.size() + b.size());
+    ops.addAll(Collections.nCopies(prefix, Op.EQUAL));
+    List<String> aMiddle = a.subList(prefix, a.size() - suffix);
+    List<String> bMiddle = b.subList(prefix, b.size() - suffix);
+    List<Op> middle = myers(aMiddle, bMiddle);
+    if (middle == null) {
+      middle = new ArrayList<>(aMiddle.size() + bMiddle.size());
+      middle.addAll(Collections.nCopies(aMiddle.size(), Op.DELETE));
+      middle.addAll(Collections.nCopies(bMiddle.size(), Op.INSERT));
+    }
+    ops.addAll(middle);
+    ops.addAll(Collections.nCopies(suffix, Op.EQUAL));
+    return ops;
+  }
+
+  /**
+   * Returns the edit script or null if it needs more than {@link #MAX_EDITS} edits.
+   */
+  @Nullable
+  private static List<Op> myers(List<String> a, List<String> b) {
+    int n = a.size();
+    int m = b.size();
+    int offset = n + m + 1;
+    int[] v = new int[2 * offset + 1];
+    // trace.get(d) is the furthest reaching x for every diagonal k in [-d, d] before step d
+    List<int[]> trace = new ArrayList<>();
+    for (int d = 0; d <= Math.min(n + m, MAX_EDITS); d++) {
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+      for (int k = -d; k <= d; k += 2) {
+        int x = (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+            ? v[offset + k + 1]
+            : v[offset + k - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && a.get(x).equals(b.get(y))) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          return backtrack(trace, n, m, d);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static List<Op> backtrack(List<int[]> trace, int n, int m, int edits) {
+    List<Op> ops = new ArrayList<>(n + m);
+    int x = n;
+    int y = m;
+    for (int d = edits; d > 0; d--) {
+      int[] previous = trace.get(d);
+      int k = x - y;
+      boolean insert = k == -d
+          || (k != d && previous[k - 1 + d] < previous[k + 1 + d]);
+      int previousK = insert ? k + 1 : k - 1;
+      int previousX = previous[previousK + d];
+      int previousY = previousX - previousK;
+      while (x > previousX && y > previousY) {
+        ops.add(Op.EQUAL);
+        x--;
+        y--;
+      }
+      ops.add(insert ? Op.INSERT : Op.DELETE);
+      x = previousX;
+      y = previousY;
+    }
+    while (x > 0 && y > 0) {
+      ops.add(Op.EQUAL);
+      x--;
+      y--;
+    }
+    Collections.reverse(ops);
+    return ops;
+  }
+
+  private static final class FileEntry {
+
+    private final Path path;
+    private final BasicFileAttributes attrs;
+    private final String mode;
+
+    private FileEntry(Path path, BasicFileAttributes attrs, String mode) {
+      this.path = path;
+      this.attrs = attrs;
+      this.mode = Preconditions.checkNotNull(mode);
+    }
+  }
+}
@@ -21,8 +21,8 @@ import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 
 import javax.annotation.Nullable;
 
@@ -31,7 +31,9 @@ import javax.annotation.Nullable;
  */
 public class LogConsole implements Console {
 
-  private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS");
+  // Thread-safe, unlike SimpleDateFormat: messages are printed from concurrent threads
+  private static final DateTimeFormatter DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss.SSS");
   @Nullable
   private final InputStream input;
   private final PrintStream output;
@@ -87,7 +89,7 @@ public class LogConsole implements Console {
     return new ConsolePrompt(input, new PromptPrinter() {
       @Override
       public void print(String message) {
-        output.print(dateFormat.format(new Date()) + " WARN: " + message + " [y/n] ");
+        output.print(now() + " WARN: " + message + " [y/n] ");
       }
     }).promptConfirmation(message);
   }
@@ -97,7 +99,11 @@ public class LogConsole implements Console {
     return message;
   }
 
+  private static String now() {
+    return DATE_FORMATTER.format(LocalDateTime.now());
+  }
+
   private void printMessage(final String messageKind, String message) {
-    output.println(dateFormat.format(new Date()) + " " + messageKind + ": " + message);
+    output.println(now() + " " + messageKind + ": " + message);
   }
 }
@@ -30,7 +30,8 @@ import java.util.ArrayList;
 /**
  * A testing console that allows programming the user input and intercepts all the messages.
  *
- * <p>It also writes the output to a {@link LogConsole} for debug.
+ * <p>It also writes the output to a {@link LogConsole} for debug. Messages can be logged from
+ * several threads.
  */
 public final class TestingConsole implements Console {
 
@@ -82,7 +83,7 @@ public final class TestingConsole implements Console {
   /**
    * Returns the list of messages in the original order that they were logged.
    */
-  public ImmutableList<Message> getMessages() {
+  public synchronized ImmutableList<Message> getMessages() {
     return ImmutableList.copyOf(messages);
   }
 
@@ -107,25 +108,25 @@ public final class TestingConsole implements Console {
   }
 
   @Override
-  public void error(String message) {
+  public synchronized void error(String message) {
     messages.add(new Message(MessageType.ERROR, message));
     outputConsole.error(message);
   }
 
   @Override
-  public void warn(String message) {
+  public synchronized void warn(String message) {
     messages.add(new Message(MessageType.WARNING, message));
     outputConsole.warn(message);
   }
 
   @Override
-  public void info(String message) {
+  public synchronized void info(String message) {
     messages.add(new Message(MessageType.INFO, message));
     outputConsole.warn(message);
   }
 
   @Override
-  public void progress(String message) {
+  public synchronized void progress(String message) {
     messages.add(new Message(MessageType.PROGRESS, message));
     outputConsole.progress(message);
   }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.FileSubjects.assertThatPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.BatchRunner.Job;
+import com.google.copybara.BatchRunner.Result;
+import com.google.copybara.config.ConfigFile;
+import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.git.GitOptions;
+import com.google.copybara.git.GitRepository;
+import com.google.copybara.testing.MapConfigFile;
+import com.google.copybara.testing.OptionsBuilder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchRunnerTest {
+
+  private Path home;
+  private ConfigFile config;
+  private Copybara copybara;
+
+  @Before
+  public void setup() throws Exception {
+    home = Files.createTempDirectory("home");
+
+    Path remote = Files.createTempDirectory("remote");
+    GitRepository repo = GitRepository.initScratchRepo(/*verbose=*/true, remote,
+        new OptionsBuilder().setHomeDir(home.toString()).general.getEnvironment());
+    Files.write(remote.resolve("test.txt"), "some content".getBytes(UTF_8));
+    repo.git(remote, "add", "test.txt");
+    repo.git(remote, "commit", "-m", "first file");
+
+    String origin = "git.origin(url = 'file://" + remote.toAbsolutePath() + "', ref = 'master')";
+    config = new MapConfigFile(ImmutableMap.of("copy.bara.sky", (""
+        + "core.project(name = 'batch')\n"
+        + "\n"
+        + "core.workflow(\n"
+        + "   name = 'one',\n"
+        + "   origin = " + origin + ",\n"
+        + "   destination = folder.destination(),\n"
+        + "   authoring = authoring.overwrite('Copybara <no-reply@google.com>'),\n"
+        + ")\n"
+        + "\n"
+        + "core.workflow(\n"
+        + "   name = 'two',\n"
+        + "   origin = " + origin + ",\n"
+        + "   destination = folder.destination(),\n"
+        + "   authoring = authoring.overwrite('Copybara <no-reply@google.com>'),\n"
+        + ")\n").getBytes(UTF_8)), "copy.bara.sky");
+    copybara = new Copybara(new SkylarkParser(Copybara.BASIC_MODULES), home.toString());
+  }
+
+  @Test
+  public void testJobsSharingAnOrigin() throws Exception {
+    GitOptions batchOptions = new GitOptions(home.toString());
+    Path one = Files.createTempDirectory("one");
+    Path two = Files.createTempDirectory("two");
+
+    ImmutableList<Result> results = new BatchRunner(copybara, /*workers=*/2,
+        /*destinationConcurrency=*/1).run(ImmutableList.of(
+            job("one", one, batchOptions),
+            job("two", two, batchOptions)));
+
+    assertThat(results).hasSize(2);
+    for (Result result : results) {
+      assertThat(result.getFailure()).isNull();
+    }
+    assertThat(results.get(0).getJob().toString()).isEqualTo("copy.bara.sky one");
+    assertThatPath(one).containsFile("test.txt", "some content");
+    assertThatPath(two).containsFile("test.txt", "some content");
+  }
+
+  private Job job(String workflowName, Path destinationFolder, GitOptions batchOptions)
+      throws Exception {
+    OptionsBuilder options = new OptionsBuilder()
+        .setWorkdirToRealTempDir()
+        .setHomeDir(home.toString());
+    options.git.shareBatchState(batchOptions);
+    options.localDestination.localFolder = destinationFolder.toString();
+    return new Job(config, workflowName, /*sourceRef=*/null, options.build(),
+        Files.createTempDirectory("workdir"));
+  }
+}
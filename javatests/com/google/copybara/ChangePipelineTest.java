@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ChangePipelineTest {
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+  }
+
+  @Test
+  public void changesArePreparedInOrderWithinTheLookAhead() throws Exception {
+    final AtomicInteger consumed = new AtomicInteger(-1);
+    final List<String> prepared = Collections.synchronizedList(new ArrayList<String>());
+    ChangePipeline.Preparer<String> preparer = new ChangePipeline.Preparer<String>() {
+      @Override
+      public String prepare(int index, Path changeWorkdir) throws IOException {
+        assertThat(index - consumed.get()).isAtMost(2);
+        // The working directory of a change is not shared with other changes in flight
+        assertThat(Files.exists(changeWorkdir.resolve("in_use"))).isFalse();
+        Files.write(changeWorkdir.resolve("in_use"), new byte[0]);
+        prepared.add(index + ":" + changeWorkdir.getFileName());
+        return "change " + index;
+      }
+    };
+    try (ChangePipeline<String> pipeline = new ChangePipeline<>(preparer, 5, 2, workdir)) {
+      for (int i = 0; i < 5; i++) {
+        assertThat(pipeline.get(i)).isEqualTo("change " + i);
+        consumed.set(i);
+        Files.delete(workdir.resolve(String.valueOf(i % 3)).resolve("in_use"));
+      }
+    }
+    assertThat(prepared).containsExactly("0:0", "1:1", "2:2", "3:0", "4:1").inOrder();
+  }
+
+  @Test
+  public void errorsAreThrownWhenTheChangeIsConsumed() throws Exception {
+    ChangePipeline.Preparer<String> preparer = new ChangePipeline.Preparer<String>() {
+      @Override
+      public String prepare(int index, Path changeWorkdir) throws RepoException {
+        if (index == 1) {
+          throw new EmptyChangeException("Empty change " + index);
+        }
+        return "change " + index;
+      }
+    };
+    try (ChangePipeline<String> pipeline = new ChangePipeline<>(preparer, 3, 2, workdir)) {
+      assertThat(pipeline.get(0)).isEqualTo("change 0");
+      try {
+        pipeline.get(1);
+        fail();
+      } catch (EmptyChangeException expected) {
+        assertThat(expected.getMessage()).isEqualTo("Empty change 1");
+      }
+      assertThat(pipeline.get(2)).isEqualTo("change 2");
+    }
+  }
+
+  @Test
+  public void closeWaitsForTheChangeBeingPrepared() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicInteger prepared = new AtomicInteger();
+    ChangePipeline.Preparer<String> preparer = new ChangePipeline.Preparer<String>() {
+      @Override
+      public String prepare(int index, Path changeWorkdir) {
+        if (index == 1) {
+          started.countDown();
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+        prepared.incrementAndGet();
+        return "change " + index;
+      }
+    };
+    ChangePipeline<String> pipeline = new ChangePipeline<>(preparer, 10, 3, workdir);
+    pipeline.get(0);
+    started.await();
+    pipeline.close();
+    // The change that was being prepared finished and no other one was started
+    assertThat(prepared.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void changesMustBeConsumedInOrder() throws Exception {
+    ChangePipeline.Preparer<String> preparer = new ChangePipeline.Preparer<String>() {
+      @Override
+      public String prepare(int index, Path changeWorkdir) {
+        return "change " + index;
+      }
+    };
+    try (ChangePipeline<String> pipeline = new ChangePipeline<>(preparer, 3, 1, workdir)) {
+      thrown.expect(IllegalArgumentException.class);
+      thrown.expectMessage("Changes must be consumed in order. Expected 0 but got 1");
+      pipeline.get(1);
+    }
+  }
+}
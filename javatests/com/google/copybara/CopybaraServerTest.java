@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.config.ConfigFile;
+import com.google.copybara.config.PathBasedConfigFile;
+import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.testing.DummyOrigin;
+import com.google.copybara.testing.OptionsBuilder;
+import com.google.copybara.testing.RecordsProcessCallDestination;
+import com.google.copybara.testing.TestingModule;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CopybaraServerTest {
+
+  private DummyOrigin origin;
+  private RecordsProcessCallDestination destination;
+  private Path config;
+  private Path tokenFile;
+  private CopybaraServer server;
+  private InetSocketAddress address;
+  private String token;
+
+  @Before
+  public void setup() throws Exception {
+    origin = new DummyOrigin().setAuthor(new Author("Foo Bar", "foo@bar.com"));
+    destination = new RecordsProcessCallDestination();
+    config = Files.createTempDirectory("config").resolve("copy.bara.sky");
+    writeConfig("copybara_project");
+    tokenFile = Files.createTempDirectory("token").resolve("server_token");
+
+    Copybara copybara = new Copybara(
+        new SkylarkParser(ImmutableSet.<Class<?>>of(TestingModule.class)), "/nonexistent");
+    server = new CopybaraServer(copybara, new CopybaraServer.Loader() {
+      @Override
+      public ConfigFile configFile(String configPath) {
+        return new PathBasedConfigFile(config.getFileSystem().getPath(configPath),
+            /*rootPath=*/null);
+      }
+
+      @Override
+      public Options newOptions(String workflowName) {
+        OptionsBuilder options = new OptionsBuilder();
+        options.setConsole(new TestingConsole());
+        options.testingOptions.origin = origin;
+        options.testingOptions.destination = destination;
+        return options.build();
+      }
+    }, Files.createTempDirectory("workdir"), new TestingConsole());
+    address = server.start(/*port=*/0, /*workers=*/2, tokenFile);
+    token = new String(Files.readAllBytes(tokenFile), UTF_8);
+  }
+
+  @Test
+  public void testTokenFile() throws Exception {
+    assertThat(token).matches("[0-9a-f]{64}");
+    assertThat(Files.getPosixFilePermissions(tokenFile))
+        .containsExactly(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+  }
+
+  @Test
+  public void testReusesAndReloadsConfig() throws Exception {
+    assertThat(post("/validate", config + " default", token, /*origin=*/null))
+        .matches("200 SUCCESS [0-9]+ ms: Configuration is valid \\(config loaded\\)\n");
+    assertThat(post("/validate", config + " default", token, /*origin=*/null))
+        .matches("200 SUCCESS [0-9]+ ms: Configuration is valid \\(config reused\\)\n");
+
+    writeConfig("other_project");
+    assertThat(post("/validate", config + " default", token, /*origin=*/null))
+        .matches("200 SUCCESS [0-9]+ ms: Configuration is valid \\(config reloaded\\)\n");
+  }
+
+  @Test
+  public void testMigrate() throws Exception {
+    origin.addSimpleChange(/*timestamp=*/42);
+
+    assertThat(post("/migrate", config + " default", token, /*origin=*/null))
+        .matches("200 SUCCESS [0-9]+ ms: Migrated \\(config loaded\\)\n");
+    assertThat(destination.processed).hasSize(1);
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    assertThat(post("/validate", config + " unknown", token, /*origin=*/null))
+        .startsWith("500 CONFIGURATION_ERROR");
+    assertThat(post("/validate", "", token, /*origin=*/null))
+        .startsWith("400 COMMAND_LINE_ERROR");
+    assertThat(request("GET", "/validate", "", token, /*origin=*/null))
+        .isEqualTo("405 Only POST requests are supported\n");
+  }
+
+  @Test
+  public void testRejectsRequestsWithoutToken() throws Exception {
+    assertThat(post("/shutdown", "", /*token=*/null, /*origin=*/null))
+        .isEqualTo("403 Missing or wrong X-Copybara-Token header\n");
+    assertThat(post("/migrate", config + " default", "0" + token.substring(1), /*origin=*/null))
+        .isEqualTo("403 Missing or wrong X-Copybara-Token header\n");
+    assertThat(destination.processed).isEmpty();
+  }
+
+  @Test
+  public void testRejectsRequestsFromWebPages() throws Exception {
+    assertThat(post("/shutdown", "", token, "http://example.com"))
+        .isEqualTo("403 Requests from web pages are not allowed\n");
+  }
+
+  @After
+  public void shutdown() throws Exception {
+    assertThat(post("/shutdown", "", token, /*origin=*/null)).isEqualTo("200 Shutting down\n");
+    server.awaitShutdown();
+    assertThat(Files.exists(tokenFile)).isFalse();
+  }
+
+  private void writeConfig(String projectName) throws IOException {
+    Files.write(config, (""
+        + "core.project(name = '" + projectName + "')\n"
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = testing.origin(),\n"
+        + "    destination = testing.destination(),\n"
+        + "    authoring = authoring.overwrite('Copybara <no-reply@google.com>'),\n"
+        + ")\n").getBytes(UTF_8));
+  }
+
+  private String post(String path, String body, String token, String origin) throws IOException {
+    return request("POST", path, body, token, origin);
+  }
+
+  /**
+   * Sends a request and returns the status code and the body of the response. Uses a socket since
+   * {@link java.net.HttpURLConnection} doesn't send {@code Origin} headers.
+   */
+  private String request(String method, String path, String body, String token, String origin)
+      throws IOException {
+    byte[] content = body.getBytes(UTF_8);
+    StringBuilder request = new StringBuilder()
+        .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+        .append("Host: localhost\r\n")
+        .append("Connection: close\r\n")
+        .append("Content-Type: text/plain\r\n")
+        .append("Content-Length: ").append(content.length).append("\r\n");
+    if (token != null) {
+      request.append(CopybaraServer.TOKEN_HEADER).append(": ").append(token).append("\r\n");
+    }
+    if (origin != null) {
+      request.append("Origin: ").append(origin).append("\r\n");
+    }
+    request.append("\r\n");
+    try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+      OutputStream out = socket.getOutputStream();
+      out.write(request.toString().getBytes(UTF_8));
+      out.write(content);
+      out.flush();
+      String response = new String(ByteStreams.toByteArray(socket.getInputStream()), UTF_8);
+      // HTTP/1.1 <status> <reason>\r\n<headers>\r\n\r\n<body>
+      String status = response.substring(9, 12);
+      return status + " " + response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+  }
+}
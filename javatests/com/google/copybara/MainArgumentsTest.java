@@ -17,6 +17,7 @@
 package com.google.copybara;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.jimfs.Jimfs;
 
@@ -31,6 +32,7 @@ import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class MainArgumentsTest {
@@ -63,4 +65,46 @@ public class MainArgumentsTest {
     thrown.expectMessage("'file' exists and is not a directory");
     mainArguments.getBaseWorkdir(fs);
   }
+
+  @Test
+  public void getBatchJobs() throws Exception {
+    Files.write(fs.getPath("batch"), (""
+        + "# Comment\n"
+        + "foo/copy.bara.sky\n"
+        + "\n"
+        + "  bar/copy.bara.sky   import  \n"
+        + "baz/copy.bara.sky default http://example.com/repo branch\n").getBytes(UTF_8));
+    mainArguments.batchFile = "batch";
+    mainArguments.validateUnnamedArgs();
+
+    List<MainArguments> jobs = mainArguments.getBatchJobs(fs);
+    assertThat(jobs).hasSize(3);
+    assertThat(jobs.get(0).getConfigPath()).isEqualTo("foo/copy.bara.sky");
+    assertThat(jobs.get(0).getWorkflowName()).isEqualTo("default");
+    assertThat(jobs.get(0).getSourceRef()).isNull();
+    assertThat(jobs.get(1).getConfigPath()).isEqualTo("bar/copy.bara.sky");
+    assertThat(jobs.get(1).getWorkflowName()).isEqualTo("import");
+    assertThat(jobs.get(1).getSourceRef()).isNull();
+    assertThat(jobs.get(2).getSourceRef()).isEqualTo("http://example.com/repo branch");
+  }
+
+  @Test
+  public void batchWithPositionalArguments() throws Exception {
+    mainArguments.batchFile = "batch";
+    mainArguments.unnamed.add("copy.bara.sky");
+    thrown.expect(CommandLineException.class);
+    thrown.expectMessage("Positional arguments cannot be used with --batch");
+    mainArguments.validateUnnamedArgs();
+  }
+
+  @Test
+  public void serverWithPositionalArguments() throws Exception {
+    mainArguments.serverPort = 0;
+    mainArguments.validateUnnamedArgs();
+
+    mainArguments.unnamed.add("copy.bara.sky");
+    thrown.expect(CommandLineException.class);
+    thrown.expectMessage("Positional arguments cannot be used with --server-port");
+    mainArguments.validateUnnamedArgs();
+  }
 }
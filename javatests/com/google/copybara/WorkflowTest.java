@@ -267,6 +267,70 @@ public class WorkflowTest {
     assertThat(programmableDestination.processed).hasSize(3);
   }
 
+  @Test
+  public void iterativeWorkflowWithLookAhead() throws Exception {
+    for (int timestamp = 0; timestamp < 20; timestamp++) {
+      origin.addSimpleChange(timestamp);
+    }
+    options.workflowOptions.iterativeLookAhead = 3;
+    Workflow workflow = iterativeWorkflow(/*previousRef=*/"5");
+
+    workflow.run(workdir, /*sourceRef=*/"15");
+    assertThat(destination.processed).hasSize(10);
+    int nextChange = 6;
+    for (ProcessedChange change : destination.processed) {
+      String asString = Integer.toString(nextChange);
+      assertThat(change.getChangesSummary()).isEqualTo(asString + " change");
+      assertThat(change.getOriginRef().asString()).isEqualTo(asString);
+      assertThat(change.numFiles()).isEqualTo(1);
+      assertThat(change.getContent("file.txt")).isEqualTo(PREFIX + asString);
+      nextChange++;
+    }
+  }
+
+  @Test
+  public void iterativeWorkflowWithLookAheadConfirmationHandling() throws Exception {
+    for (int timestamp = 0; timestamp < 10; timestamp++) {
+      origin.addSimpleChange(timestamp);
+    }
+
+    console()
+        .respondYes()
+        .respondNo();
+    RecordsProcessCallDestination programmableDestination = new RecordsProcessCallDestination(
+        WriterResult.OK, WriterResult.PROMPT_TO_CONTINUE, WriterResult.PROMPT_TO_CONTINUE);
+
+    options.testingOptions.destination = programmableDestination;
+    options.workflowOptions.iterativeLookAhead = 2;
+
+    Workflow workflow = iterativeWorkflow(/*previousRef=*/"2");
+
+    try {
+      workflow.run(workdir, /*sourceRef=*/"9");
+      fail("Should throw ChangeRejectedException");
+    } catch (ChangeRejectedException expected) {
+      assertThat(expected.getMessage())
+          .contains("Iterative workflow aborted by user after: Change 3 of 7 (5)");
+    }
+    assertThat(programmableDestination.processed).hasSize(3);
+  }
+
+  @Test
+  public void iterativeSkipCommitsWithLookAhead() throws Exception {
+    origin.singleFileChange(0, "one", "file.txt", "a");
+    origin.singleFileChange(1, "two", "file.txt", "b");
+    origin.singleFileChange(2, "three", "file.txt", "b");
+    origin.singleFileChange(3, "four", "file.txt", "c");
+    transformations = "[]";
+    destination.failOnEmptyChange = true;
+    options.workflowOptions.iterativeLookAhead = 2;
+    Workflow workflow = iterativeWorkflow(/*previousRef=*/"0");
+    workflow.run(workdir, /*sourceRef=*/"3");
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
+  }
+
   @Test
   public void iterativeWorkflowNoPreviousRef() throws Exception {
     origin.addSimpleChange(/*timestamp*/ 1);
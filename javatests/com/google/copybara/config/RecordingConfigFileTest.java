@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.copybara.config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RecordingConfigFileTest {
+
+  private FileSystem fs;
+  private RecordingConfigFile config;
+
+  @Before
+  public void setup() throws Exception {
+    fs = Jimfs.newFileSystem();
+    Files.createDirectories(fs.getPath("/root/lib"));
+    Files.write(fs.getPath("/root/copy.bara.sky"), "config".getBytes());
+    Files.write(fs.getPath("/root/lib/macros.bara.sky"), "macros".getBytes());
+    Files.write(fs.getPath("/root/lib/other.bara.sky"), "other".getBytes());
+    config = new RecordingConfigFile(
+        new PathBasedConfigFile(fs.getPath("/root/copy.bara.sky"), fs.getPath("/root")));
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    assertThat(config.path()).isEqualTo("/root/copy.bara.sky");
+    ConfigFile macros = config.resolve("lib/macros.bara.sky");
+    assertThat(macros.path()).isEqualTo("/root/lib/macros.bara.sky");
+    assertThat(macros.content()).isEqualTo("macros".getBytes());
+    assertThat(macros.resolve("other.bara.sky").content()).isEqualTo("other".getBytes());
+    assertThat(config.resolve("//lib/other.bara.sky").path()).isEqualTo("/root/lib/other.bara.sky");
+  }
+
+  @Test
+  public void testIsUpToDate() throws Exception {
+    config.content();
+    config.resolve("lib/macros.bara.sky").content();
+    assertThat(config.isUpToDate()).isTrue();
+
+    // Not read
+    Files.write(fs.getPath("/root/lib/other.bara.sky"), "modified".getBytes());
+    assertThat(config.isUpToDate()).isTrue();
+
+    Files.write(fs.getPath("/root/lib/macros.bara.sky"), "modified".getBytes());
+    assertThat(config.isUpToDate()).isFalse();
+    Files.write(fs.getPath("/root/lib/macros.bara.sky"), "macros".getBytes());
+    assertThat(config.isUpToDate()).isTrue();
+
+    Files.delete(fs.getPath("/root/lib/macros.bara.sky"));
+    assertThat(config.isUpToDate()).isFalse();
+  }
+}
@@ -21,6 +21,8 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Authoring;
 import com.google.copybara.Config;
 import com.google.copybara.Destination;
@@ -30,6 +32,7 @@ import com.google.copybara.RepoException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
+import com.google.copybara.testing.MapConfigFile;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.transform.Sequence;
@@ -46,7 +49,9 @@ import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.Type;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Rule;
@@ -259,6 +264,76 @@ public class SkylarkParserTest {
     assertThat(config.getName()).isEqualTo("stuff_in_foo");
   }
 
+  @Test
+  public void testReusesUnchangedFiles() throws Exception {
+    SkylarkParser skylarkParser =
+        new SkylarkParser(ImmutableSet.of(Mock.class, MockLabelsAwareModule.class));
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("lib.bara.sky", bytes("load('//constants', 'suffix')\nname = 'my' + suffix\n"));
+    files.put("constants.bara.sky", bytes("suffix = 'test'\n"));
+    files.put("copy.bara.sky", bytes(projectConfig("load('//lib', 'name')\n", "name")));
+    options.setWorkflowName("default");
+
+    assertThat(loadConfig(skylarkParser, files).getName()).isEqualTo("mytest");
+    assertThat(skylarkParser.parseCount()).isEqualTo(3);
+    assertThat(skylarkParser.evalCount()).isEqualTo(3);
+
+    // Only the config file is evaluated again
+    assertThat(loadConfig(skylarkParser, files).getName()).isEqualTo("mytest");
+    assertThat(skylarkParser.parseCount()).isEqualTo(3);
+    assertThat(skylarkParser.evalCount()).isEqualTo(4);
+
+    // The files that load the modified file, directly or not, are evaluated again
+    files.put("constants.bara.sky", bytes("suffix = 'other'\n"));
+    assertThat(loadConfig(skylarkParser, files).getName()).isEqualTo("myother");
+    assertThat(skylarkParser.parseCount()).isEqualTo(4);
+    assertThat(skylarkParser.evalCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void testDoesNotReuseLabelsAwareLibraries() throws Exception {
+    SkylarkParser skylarkParser =
+        new SkylarkParser(ImmutableSet.of(Mock.class, MockLabelsAwareModule.class));
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("lib.bara.sky", bytes("name = mock_labels_aware_module.read_foo()\n"));
+    files.put("foo", bytes("stuff_in_foo"));
+    files.put("copy.bara.sky", bytes(projectConfig("load('//lib', 'name')\n", "name")));
+    options.setWorkflowName("default");
+
+    assertThat(loadConfig(skylarkParser, files).getName()).isEqualTo("stuff_in_foo");
+    files.put("foo", bytes("other_stuff"));
+    assertThat(loadConfig(skylarkParser, files).getName()).isEqualTo("other_stuff");
+    assertThat(skylarkParser.parseCount()).isEqualTo(2);
+    assertThat(skylarkParser.evalCount()).isEqualTo(4);
+  }
+
+  private Config loadConfig(SkylarkParser skylarkParser, Map<String, byte[]> files)
+      throws IOException, ValidationException {
+    return skylarkParser.loadConfig(
+        new MapConfigFile(ImmutableMap.copyOf(files), "copy.bara.sky"), options.build());
+  }
+
+  private static String projectConfig(String header, String projectName) {
+    return header
+        + "core.project(name = " + projectName + ")\n"
+        + "\n"
+        + "core.workflow(\n"
+        + "   name = 'default',\n"
+        + "   origin = mock.origin(\n"
+        + "      url = 'some_url',\n"
+        + "      branch = 'master',\n"
+        + "   ),\n"
+        + "   destination = mock.destination(\n"
+        + "      folder = 'some folder'\n"
+        + "   ),\n"
+        + "   authoring = authoring.overwrite('Copybara <no-reply@google.com>'),\n"
+        + ")\n";
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes(UTF_8);
+  }
+
   /**
    * TODO(copybara-team): Migrate SkylarkParserTest.testNonReversibleTransform
    */
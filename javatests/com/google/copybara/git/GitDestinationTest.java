@@ -18,8 +18,10 @@ package com.google.copybara.git;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Author;
 import com.google.copybara.Destination;
 import com.google.copybara.Destination.Writer;
@@ -40,6 +42,8 @@ import com.google.copybara.util.console.testing.TestingConsole.MessageType;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -74,6 +78,7 @@ public class GitDestinationTest {
     options = new OptionsBuilder().setConsole(console);
     options.gitDestination.committerEmail = "commiter@email";
     options.gitDestination.committerName = "Bara Kopi";
+    options.git.repoStorage = Files.createTempDirectory("GitDestinationTest-repos").toString();
     destinationFiles = new Glob(ImmutableList.of("**"));
 
     url = "file://" + repoGitDir;
@@ -444,6 +449,126 @@ public class GitDestinationTest {
         .isEqualTo("first_commit");
   }
 
+  @Test
+  public void destinationCacheIsReused() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    options.gitDestination.committerName = "Piko Raba";
+    Files.write(workdir.resolve("test.txt"), "some other content".getBytes());
+    process(destination().newWriter(destinationFiles), new DummyReference("second_commit"));
+    GitTesting.assertCommitterLineMatches(repo(), "master", "Piko Raba <.*> [-+ 0-9+]+");
+
+    GitRepository cache = GitRepository.cachedBareRepo(
+        Paths.get(options.git.repoStorage), url, /*verbose=*/true, System.getenv());
+    assertThat(cache.revParse("refs/copybara/destination/master"))
+        .isEqualTo(repo().revParse("master^"));
+    // Committer overrides are not persisted in the shared repository
+    assertThat(cache.simpleCommand("config", "-l", "--local").getStdout())
+        .doesNotContain("Piko Raba");
+  }
+
+  @Test
+  public void writerUsesOneWorktreeAndRemovesIt() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    GitRepository cache = GitRepository.cachedBareRepo(
+        Paths.get(options.git.repoStorage), url, /*verbose=*/true, System.getenv());
+    Destination.BufferedWriter writer =
+        (Destination.BufferedWriter) destination().newWriter(destinationFiles);
+    assertThat(writer.getPreviousRef(DummyOrigin.LABEL_NAME)).isEqualTo("first_commit");
+    Files.write(workdir.resolve("test.txt"), "some other content".getBytes());
+    process(writer, new DummyReference("second_commit"));
+    // The bare repository and the worktree of the writer
+    assertThat(worktreeCount(cache)).isEqualTo(2);
+
+    writer.flush(console);
+    assertThat(worktreeCount(cache)).isEqualTo(1);
+  }
+
+  private static int worktreeCount(GitRepository repo) throws RepoException {
+    int count = 0;
+    for (String line : repo.simpleCommand("worktree", "list", "--porcelain").getStdout()
+        .split("\n")) {
+      if (line.startsWith("worktree ")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void previousImportReferenceFromLabelIndex() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    DestinationLabelIndex index = DestinationLabelIndex.forUrl(
+        Paths.get(options.git.repoStorage), url);
+    String head = repo().revParse("master");
+    DestinationLabelIndex.Entry entry =
+        index.lookup(DummyOrigin.LABEL_NAME, destinationFiles.roots());
+    assertThat(entry.commit).isEqualTo(head);
+    assertThat(entry.value).isEqualTo("first_commit");
+    // Only valid for the same destination roots
+    assertThat(index.lookup(DummyOrigin.LABEL_NAME, ImmutableSet.of("foo"))).isNull();
+
+    // Check that the index is used instead of reading the commit message
+    index.record(head, DummyOrigin.LABEL_NAME, "from_index", destinationFiles.roots());
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("from_index");
+
+    // Commits pushed after the indexed one are still read
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    GitRepository scratchRepo = repo().withWorkTree(scratchTree);
+    scratchRepo.simpleCommand("checkout", "master");
+    Files.write(scratchTree.resolve("other.txt"), "other".getBytes());
+    scratchRepo.simpleCommand("add", "other.txt");
+    scratchRepo.simpleCommand("commit", "-m",
+        "Manual import\n\n" + DummyOrigin.LABEL_NAME + ": manual_commit");
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("manual_commit");
+
+    // Indexed commits that are no longer in the history are ignored
+    scratchRepo.simpleCommand("reset", "--hard", "HEAD~1");
+    scratchRepo.simpleCommand("commit", "--amend", "-m",
+        "Rewritten\n\n" + DummyOrigin.LABEL_NAME + ": rewritten_commit");
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("rewritten_commit");
+  }
+
+  @Test
+  public void previousImportReferenceIsNotInTheSubject() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    GitRepository scratchRepo = repo().withWorkTree(scratchTree);
+    scratchRepo.simpleCommand("checkout", "master");
+    Files.write(scratchTree.resolve("other.txt"), "other".getBytes());
+    scratchRepo.simpleCommand("add", "other.txt");
+    scratchRepo.simpleCommand("commit", "-m", DummyOrigin.LABEL_NAME + ": in_the_subject");
+
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("first_commit");
+  }
+
   @Test
   public void previousImportReferenceIsBeforeACommitWithMultipleParents() throws Exception {
     fetch = "master";
@@ -636,6 +761,96 @@ public class GitDestinationTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void excludedDestinationPathsOutsideTheRootsAreKept() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    for (String file : ImmutableList.of("README", "other/deep/file", "foo/bar", "foo/excluded.txt",
+        "bar/[ab].txt", "bar/a.txt")) {
+      Files.createDirectories(scratchTree.resolve(file).getParent());
+      Files.write(scratchTree.resolve(file), file.getBytes(UTF_8));
+    }
+    repo().withWorkTree(scratchTree)
+        .simpleCommand("add", "--all");
+    repo().withWorkTree(scratchTree)
+        .simpleCommand("commit", "-m", "message");
+
+    Files.createDirectories(workdir.resolve("foo"));
+    Files.write(workdir.resolve("foo/new"), "new content".getBytes(UTF_8));
+    destinationFiles = new Glob(ImmutableList.of("foo/**", "bar/a.txt"),
+        ImmutableList.of("foo/excluded.txt"));
+    process(destination().newWriter(destinationFiles), new DummyReference("ref"));
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("README", "README")
+        .containsFile("other/deep/file", "other/deep/file")
+        .containsFile("foo/excluded.txt", "foo/excluded.txt")
+        // Paths are not interpreted as patterns: 'bar/[ab].txt' doesn't add back 'bar/a.txt'
+        .containsFile("bar/[ab].txt", "bar/[ab].txt")
+        .containsFile("foo/new", "new content")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void processWithDirectIndex() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.directIndex = true;
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    for (String file : ImmutableList.of("README", "foo/old", "foo/excluded.txt")) {
+      Files.createDirectories(scratchTree.resolve(file).getParent());
+      Files.write(scratchTree.resolve(file), file.getBytes(UTF_8));
+    }
+    repo().withWorkTree(scratchTree)
+        .simpleCommand("add", "--all");
+    repo().withWorkTree(scratchTree)
+        .simpleCommand("commit", "-m", "message");
+
+    Files.createDirectories(workdir.resolve("foo"));
+    Files.write(workdir.resolve("foo/new"), "new content".getBytes(UTF_8));
+    Files.write(workdir.resolve("foo/script"), "#!/bin/sh".getBytes(UTF_8));
+    Files.setPosixFilePermissions(workdir.resolve("foo/script"),
+        PosixFilePermissions.fromString("rwxr-xr-x"));
+    Files.createSymbolicLink(workdir.resolve("foo/link"), Paths.get("new"));
+    Files.write(workdir.resolve("foo/.gitignore"), "*.log\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("foo/debug.log"), "ignored".getBytes(UTF_8));
+    destinationFiles = new Glob(ImmutableList.of("foo/**"), ImmutableList.of("foo/excluded.txt"));
+    process(destination().newWriter(destinationFiles), new DummyReference("ref"));
+
+    assertThat(git("ls-tree", "-r", "--name-only", "master"))
+        .isEqualTo("README\nfoo/.gitignore\nfoo/excluded.txt\nfoo/link\nfoo/new\nfoo/script\n");
+    assertThat(git("ls-tree", "master", "foo/script")).startsWith("100755 blob ");
+    assertThat(git("ls-tree", "master", "foo/link")).startsWith("120000 blob ");
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("README", "README")
+        .containsFile("foo/excluded.txt", "foo/excluded.txt")
+        .containsFile("foo/new", "new content")
+        .containsFile("foo/script", "#!/bin/sh")
+        .containsFile("foo/.gitignore", "*.log\n");
+
+    thrown.expect(EmptyChangeException.class);
+    thrown.expectMessage("empty change");
+    process(destination().newWriter(destinationFiles), new DummyReference("ref"));
+  }
+
+  @Test
+  public void processWithDirectIndexFallsBackToGitAddWithGitAttributes() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.directIndex = true;
+
+    Files.write(workdir.resolve(".gitattributes"), "*.txt text eol=lf\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("test.txt"), "some\r\ncontent\r\n".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref"));
+
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile(".gitattributes", "*.txt text eol=lf\n")
+        .containsFile("test.txt", "some\ncontent\n")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void processWithBaseline() throws Exception {
     fetch = "master";
@@ -733,4 +948,74 @@ public class GitDestinationTest {
         .containsFile("test99", "99")
         .containsNoMoreFiles();
   }
+
+  @Test
+  public void pushInBatches() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.pushBatchSize = 2;
+
+    Destination.BufferedWriter writer =
+        (Destination.BufferedWriter) destinationFirstCommit().newWriter(destinationFiles);
+
+    Files.write(workdir.resolve("test1"), "1".getBytes(UTF_8));
+    process(writer, new DummyReference("ref1"));
+    assertThat(git("--git-dir", repoGitDir.toString(), "branch", "--list", "master")).isEmpty();
+
+    Files.write(workdir.resolve("test2"), "2".getBytes(UTF_8));
+    process(writer, new DummyReference("ref2"));
+    assertCommitCount(2, "master");
+    assertCommitHasOrigin("master", "ref2");
+
+    Files.write(workdir.resolve("test3"), "3".getBytes(UTF_8));
+    process(writer, new DummyReference("ref3"));
+    assertCommitCount(2, "master");
+
+    writer.flush(console);
+    assertCommitCount(3, "master");
+    assertCommitHasOrigin("master", "ref3");
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("test1", "1")
+        .containsFile("test2", "2")
+        .containsFile("test3", "3")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void pushInBatchesResumesAfterTheLastAcceptedCommit() throws Exception {
+    fetch = "master";
+    push = "master";
+    Files.write(workdir.resolve("test0"), "0".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref0"));
+
+    // The remote rejects the commit migrated from ref3
+    Path hook = repoGitDir.resolve("hooks/pre-receive");
+    Files.write(hook, ("#!/bin/bash\n"
+        + "while read old new ref; do\n"
+        + "  git log --format=%B $old..$new | grep -q '^" + DummyOrigin.LABEL_NAME + ": ref3$'"
+        + " && exit 1\n"
+        + "done\n"
+        + "exit 0\n").getBytes(UTF_8));
+    Files.setPosixFilePermissions(hook, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+    options.gitDestination.pushBatchSize = 0;
+    Destination.BufferedWriter writer =
+        (Destination.BufferedWriter) destination().newWriter(destinationFiles);
+    for (int i = 1; i <= 4; i++) {
+      Files.write(workdir.resolve("test" + i), ("" + i).getBytes(UTF_8));
+      process(writer, new DummyReference("ref" + i));
+    }
+    assertCommitCount(1, "master");
+    try {
+      writer.flush(console);
+      fail();
+    } catch (RepoException expected) {
+      assertThat(expected.getMessage()).contains("pre-receive hook declined");
+    }
+    console.assertThat().onceInLog(MessageType.WARNING,
+        "Pushing 4 commits to .* master failed. Pushing the remaining 4 commits one by one.");
+    // The commits before the rejected one are pushed
+    assertCommitCount(3, "master");
+    assertCommitHasOrigin("master", "ref2");
+  }
 }
@@ -29,17 +29,20 @@ import com.google.copybara.Authoring.AuthoringMappingMode;
 import com.google.copybara.Change;
 import com.google.copybara.ValidationException;
 import com.google.copybara.Origin.ChangesVisitor;
+import com.google.copybara.Origin.IncrementalReader;
 import com.google.copybara.Origin.Reader;
 import com.google.copybara.Origin.VisitResult;
 import com.google.copybara.RepoException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.testing.TestingConsole;
 import com.google.copybara.util.console.testing.TestingConsole.MessageType;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
@@ -221,6 +224,25 @@ public class GitOriginTest {
     assertThat(Files.exists(testFile)).isFalse();
   }
 
+  @Test
+  public void testCheckoutOnlyOriginFilesRoots() throws Exception {
+    Files.createDirectories(remote.resolve("foo/bar"));
+    Files.createDirectories(remote.resolve("baz"));
+    Files.write(remote.resolve("foo/bar/one.txt"), "one".getBytes(UTF_8));
+    Files.write(remote.resolve("foo/two.txt"), "two".getBytes(UTF_8));
+    Files.write(remote.resolve("baz/three.txt"), "three".getBytes(UTF_8));
+    git("add", "-A");
+    git("commit", "-m", "more files");
+
+    Reader<GitReference> reader = origin.newReader(
+        new Glob(ImmutableList.of("foo/bar/**", "doesnt_exist/**")), authoring);
+    reader.checkout(origin.resolve("master"), checkoutDir);
+
+    assertThatPath(checkoutDir)
+        .containsFile("foo/bar/one.txt", "one")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void testGitOriginWithHook() throws Exception {
     Path hook = Files.createTempFile("script", "script");
@@ -271,6 +293,74 @@ public class GitOriginTest {
     assertThat(new String(Files.readAllBytes(testFile))).isEqualTo("some content");
   }
 
+  @Test
+  public void testCheckoutIncremental() throws Exception {
+    Files.write(remote.resolve("deleted.txt"), "deleted".getBytes(UTF_8));
+    Files.write(remote.resolve("same.txt"), "same".getBytes(UTF_8));
+    Files.write(remote.resolve("untouched.txt"), "untouched".getBytes(UTF_8));
+    Files.createDirectories(remote.resolve("deleted_dir/nested"));
+    Files.write(remote.resolve("deleted_dir/nested/file.txt"), "deleted".getBytes(UTF_8));
+    git("add", "-A");
+    git("commit", "-m", "more files");
+    GitReference first = origin.resolve("master");
+    git("rm", "deleted.txt", "deleted_dir/nested/file.txt");
+    Files.write(remote.resolve("test.txt"), "new content".getBytes(UTF_8));
+    Files.write(remote.resolve("added.txt"), "added".getBytes(UTF_8));
+    git("add", "-A");
+    git("commit", "-m", "second");
+    GitReference second = origin.resolve("master");
+
+    IncrementalReader<GitReference> reader =
+        (IncrementalReader<GitReference>) origin.newReader(Glob.ALL_FILES, authoring);
+    reader.checkoutIncremental(first, checkoutDir);
+    assertThatPath(checkoutDir)
+        .containsFile("test.txt", "some content")
+        .containsFile("deleted.txt", "deleted")
+        .containsFile("same.txt", "same")
+        .containsFile("untouched.txt", "untouched")
+        .containsFile("deleted_dir/nested/file.txt", "deleted")
+        .containsNoMoreFiles();
+
+    Object untouchedFileKey = Files.readAttributes(
+        checkoutDir.resolve("untouched.txt"), BasicFileAttributes.class).fileKey();
+    // Simulate the changes done by the transformations of the previous migration
+    Files.write(checkoutDir.resolve("same.txt"), "transformed".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("generated.txt"), "generated".getBytes(UTF_8));
+    Files.createDirectories(checkoutDir.resolve("generated_dir"));
+    Files.write(checkoutDir.resolve("generated_dir/file.txt"), "generated".getBytes(UTF_8));
+    // Like the snapshot for reversible_check. Linking changes the ctime of the files.
+    FileUtil.snapshotFilesRecursively(checkoutDir, Files.createTempDirectory("snapshot"));
+
+    reader.checkoutIncremental(second, checkoutDir);
+    assertThatPath(checkoutDir)
+        .containsFile("test.txt", "new content")
+        .containsFile("added.txt", "added")
+        .containsFile("same.txt", "same")
+        .containsFile("untouched.txt", "untouched")
+        .containsNoMoreFiles();
+    // Directories left empty by the deleted files are removed
+    assertThat(Files.exists(checkoutDir.resolve("deleted_dir"))).isFalse();
+    // Files modified by the transformations are restored. Files that changed neither in the
+    // origin nor in the checkout are not written again.
+    assertThat(Files.readAttributes(
+        checkoutDir.resolve("untouched.txt"), BasicFileAttributes.class).fileKey())
+        .isEqualTo(untouchedFileKey);
+  }
+
+  @Test
+  public void testCheckoutIncrementalInADifferentDirectory() throws Exception {
+    IncrementalReader<GitReference> reader =
+        (IncrementalReader<GitReference>) origin.newReader(Glob.ALL_FILES, authoring);
+    reader.checkoutIncremental(origin.resolve("master"), checkoutDir);
+
+    Path otherDir = Files.createTempDirectory("other");
+    Files.write(otherDir.resolve("garbage.txt"), "garbage".getBytes(UTF_8));
+    reader.checkoutIncremental(origin.resolve("master"), otherDir);
+    assertThatPath(otherDir)
+        .containsFile("test.txt", "some content")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void testCheckoutOfARef() throws IOException, RepoException {
     GitReference reference = origin.resolve(firstCommitRef);
@@ -303,6 +393,121 @@ public class GitOriginTest {
     }
   }
 
+  @Test
+  public void testChangesMultiLineMessages() throws IOException, RepoException {
+    String author = "John Name <john@name.com>";
+    singleFileCommit(author, "first line\n\nmore details\n\nfoo: bar", "test.txt", "content2");
+    singleFileCommit(author, "another\n\n    indented\n", "test.txt", "content3");
+
+    ImmutableList<Change<GitReference>> changes = newReader()
+        .changes(origin.resolve(firstCommitRef), origin.resolve("HEAD"));
+
+    assertThat(changes).hasSize(2);
+    assertThat(changes.get(0).getMessage()).isEqualTo("first line\n\nmore details\n\nfoo: bar\n");
+    assertThat(changes.get(0).getLabels()).containsEntry("foo", "bar");
+    assertThat(changes.get(1).getMessage()).isEqualTo("another\n\n    indented\n");
+    assertThat(changes.get(1).getLabels()).isEmpty();
+  }
+
+  @Test
+  public void testShallowFetchIsDeepenedForOlderRevisions() throws Exception {
+    String author = "John Name <john@name.com>";
+    for (int i = 1; i <= 10; i++) {
+      singleFileCommit(author, "change" + i, "test.txt", "some content" + i);
+    }
+    origin = skylark.eval("result",
+        String.format("result = git.origin(\n"
+            + "    url = '%s',\n"
+            + "    ref = 'master',\n"
+            + "    fetch_refspecs = ['refs/heads/master'],\n"
+            + "    depth = 1,\n"
+            + ")", url));
+
+    GitReference head = origin.resolve("master");
+    assertThat(Files.exists(origin.getRepository().getGitDir().resolve("shallow"))).isTrue();
+
+    ImmutableList<Change<GitReference>> changes = newReader()
+        .changes(origin.resolve(firstCommitRef), head);
+
+    assertThat(changes).hasSize(10);
+    assertThat(changes.get(0).getMessage()).isEqualTo("change1\n");
+    assertThat(changes.get(9).getMessage()).isEqualTo("change10\n");
+  }
+
+  @Test
+  public void testShallowHistoryIsDeepenedWhenListingAllChanges() throws Exception {
+    origin = shallowOrigin();
+    GitReference head = origin.resolve("master");
+
+    ImmutableList<Change<GitReference>> changes = newReader().changes(/*fromRef=*/null, head);
+
+    assertThat(changes).hasSize(11);
+    assertThat(changes.get(0).getMessage()).isEqualTo("first file\n");
+    assertThat(origin.getRepository().getShallowRoots()).isEmpty();
+  }
+
+  @Test
+  public void testShallowHistoryIsDeepenedWhenVisitingChanges() throws Exception {
+    options.git.visitChangesBatchSize = 3;
+    origin = shallowOrigin();
+    GitReference head = origin.resolve("master");
+    final List<String> visited = new ArrayList<>();
+
+    newReader().visitChanges(head,
+        new ChangesVisitor() {
+          @Override
+          public VisitResult visit(Change<?> input) {
+            visited.add(input.firstLineMessage());
+            return VisitResult.CONTINUE;
+          }
+        });
+
+    assertThat(visited).hasSize(11);
+    assertThat(visited.get(0)).isEqualTo("change10");
+    assertThat(visited.get(10)).isEqualTo("first file");
+    assertThat(ImmutableSet.copyOf(visited)).hasSize(11);
+  }
+
+  /**
+   * Returns an origin that only fetches the last commit of master, after adding ten commits.
+   */
+  private GitOrigin shallowOrigin() throws Exception {
+    String author = "John Name <john@name.com>";
+    for (int i = 1; i <= 10; i++) {
+      singleFileCommit(author, "change" + i, "test.txt", "some content" + i);
+    }
+    return skylark.eval("result",
+        String.format("result = git.origin(\n"
+            + "    url = '%s',\n"
+            + "    ref = 'master',\n"
+            + "    fetch_refspecs = ['refs/heads/master'],\n"
+            + "    depth = 1,\n"
+            + ")", url));
+  }
+
+  @Test
+  public void testBatchJobsFetchEveryReferenceOnce() throws Exception {
+    GitOptions batchOptions = new GitOptions(Files.createTempDirectory("batch").toString());
+    options.git.shareBatchState(batchOptions);
+    assertThat(origin.resolve("master").asString()).isEqualTo(firstCommitRef);
+
+    singleFileCommit("John Name <john@name.com>", "change", "test.txt", "new content");
+    String secondCommitRef = git("rev-parse", "HEAD").trim();
+    // Like the origin of another job of the batch
+    assertThat(origin().resolve("master").asString()).isEqualTo(firstCommitRef);
+    assertThat(origin().resolve(secondCommitRef).asString()).isEqualTo(secondCommitRef);
+  }
+
+  @Test
+  public void testInvalidFetchRefspec() throws Exception {
+    skylark.evalFails(
+        String.format("git.origin(\n"
+            + "    url = '%s',\n"
+            + "    fetch_refspecs = ['refs/heads/*:refs/heads/*'],\n"
+            + ")", url),
+        "Only source refspecs are allowed");
+  }
+
   @Test
   public void testNoChanges() throws IOException, RepoException {
     ImmutableList<Change<GitReference>> changes = newReader()
@@ -380,6 +585,42 @@ public class GitOriginTest {
     assertThat(visited.get(1).firstLineMessage()).isEqualTo("two");
   }
 
+  @Test
+  public void testVisitInBatches() throws Exception {
+    options.git.visitChangesBatchSize = 2;
+    origin = origin();
+    String author = "John Name <john@name.com>";
+    for (int i = 1; i <= 5; i++) {
+      singleFileCommit(author, "change" + i, "test.txt", "some content" + i);
+    }
+    final List<String> visited = new ArrayList<>();
+    newReader().visitChanges(getLastCommitRef(),
+        new ChangesVisitor() {
+          @Override
+          public VisitResult visit(Change<?> input) {
+            visited.add(input.firstLineMessage());
+            return input.firstLineMessage().equals("change2")
+                ? VisitResult.TERMINATE
+                : VisitResult.CONTINUE;
+          }
+        });
+
+    assertThat(visited).containsExactly("change5", "change4", "change3", "change2").inOrder();
+
+    visited.clear();
+    newReader().visitChanges(getLastCommitRef(),
+        new ChangesVisitor() {
+          @Override
+          public VisitResult visit(Change<?> input) {
+            visited.add(input.firstLineMessage());
+            return VisitResult.CONTINUE;
+          }
+        });
+
+    assertThat(visited).containsExactly(
+        "change5", "change4", "change3", "change2", "change1", "first file").inOrder();
+  }
+
   @Test
   public void testVisitMerge() throws IOException, RepoException {
     createBranchMerge("John Name <john@name.com>");
@@ -17,8 +17,13 @@
 package com.google.copybara.git;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.copybara.Author;
+import com.google.copybara.EmptyChangeException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -46,6 +51,103 @@ public class GitRepositoryTest {
     repository.simpleCommand("checkout", "foo");
   }
 
+  @Test
+  public void testRevParseUsesCatFilePool() throws Exception {
+    Path workTree = repository.getWorkTree();
+    Files.write(workTree.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.simpleCommand("add", "foo.txt");
+    repository.simpleCommand("commit", "-m", "first", "--date", "1467227425 +0200");
+
+    String expected = repository.simpleCommand("rev-parse", "HEAD").getStdout().trim();
+    long before = repository.forksAvoided();
+
+    assertThat(repository.revParse("HEAD")).isEqualTo(expected);
+    assertThat(repository.resolveReference("HEAD").readTimestamp()).isEqualTo(1467227425L);
+    assertThat(repository.forksAvoided()).isEqualTo(before + 2);
+  }
+
+  @Test
+  public void testCloseCatFilePool() throws Exception {
+    String expected = commitFoo(repository);
+
+    repository.closeCatFilePool();
+
+    assertThat(repository.forksAvoided()).isEqualTo(0);
+    assertThat(repository.revParse("HEAD")).isEqualTo(expected);
+    assertThat(repository.forksAvoided()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCatFilePoolsAreBounded() throws Exception {
+    for (int i = 0; i <= CatFilePool.MAX_POOLS; i++) {
+      GitRepository other = GitRepository.initScratchRepo(/*verbose=*/false, System.getenv());
+      String head = commitFoo(other);
+      assertThat(other.revParse("HEAD")).isEqualTo(head);
+    }
+    assertThat(CatFilePool.size()).isEqualTo(CatFilePool.MAX_POOLS);
+  }
+
+  private static String commitFoo(GitRepository repository) throws Exception {
+    Files.write(repository.getWorkTree().resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.simpleCommand("add", "foo.txt");
+    repository.simpleCommand("commit", "-m", "first");
+    return repository.simpleCommand("rev-parse", "HEAD").getStdout().trim();
+  }
+
+  @Test
+  public void testRevParseNonExistentRefFallsBackToGit() throws Exception {
+    thrown.expect(CannotFindReferenceException.class);
+    thrown.expectMessage("Cannot find reference 'foo'");
+    repository.revParse("foo");
+  }
+
+  @Test
+  public void testCommitIndex() throws Exception {
+    Path workTree = repository.getWorkTree();
+    Files.write(workTree.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.simpleCommand("add", "foo.txt");
+    Author author = new Author("Foo Bar", "foo@bar.com");
+    repository.commitIndex(author, 1467227425L, "\nfirst  \n\n\nbody\n\n");
+    Files.write(workTree.resolve("bar.txt"), "bar".getBytes(UTF_8));
+    repository.simpleCommand("add", "bar.txt");
+    repository.commitIndex(author, 1467227426L, "second");
+
+    assertThat(repository.simpleCommand("log", "--format=%an <%ae> %at%n%B--").getStdout())
+        .isEqualTo("Foo Bar <foo@bar.com> 1467227426\nsecond\n--\n"
+            + "Foo Bar <foo@bar.com> 1467227425\nfirst\n\nbody\n--\n");
+    assertThat(repository.simpleCommand("ls-tree", "--name-only", "HEAD").getStdout())
+        .isEqualTo("bar.txt\nfoo.txt\n");
+
+    thrown.expect(EmptyChangeException.class);
+    thrown.expectMessage("empty change");
+    repository.commitIndex(author, 1467227427L, "third");
+  }
+
+  @Test
+  public void testCommitEmptyChange() throws Exception {
+    Path workTree = repository.getWorkTree();
+    Files.write(workTree.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.simpleCommand("add", "foo.txt");
+    repository.commit(repository, "Foo Bar <foo@bar.com>", 1467227425L, "first");
+    // A change of the mode only is not empty
+    repository.simpleCommand("update-index", "--chmod=+x", "foo.txt");
+    repository.commit(repository, "Foo Bar <foo@bar.com>", 1467227426L, "second");
+
+    assertThat(repository.simpleCommand("log", "--format=%s").getStdout())
+        .isEqualTo("second\nfirst\n");
+
+    thrown.expect(EmptyChangeException.class);
+    thrown.expectMessage("empty change");
+    repository.commit(repository, "Foo Bar <foo@bar.com>", 1467227427L, "third");
+  }
+
+  @Test
+  public void testCleanUpMessage() throws Exception {
+    assertThat(GitRepository.cleanUpMessage("\n \nSummary \t\n\n\n  indented\nlast")).isEqualTo(
+        "Summary\n\n  indented\nlast\n");
+    assertThat(GitRepository.cleanUpMessage("Summary\n")).isEqualTo("Summary\n");
+  }
+
   @Test
   public void testGitBinaryResolution() throws Exception {
     assertThat(GitRepository.resolveGitBinary(ImmutableMap.<String, String>of()))
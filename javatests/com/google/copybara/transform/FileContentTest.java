@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FileContentTest {
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("FileContentTest");
+  }
+
+  @Test
+  public void testReadAndDecode() throws IOException {
+    Path file = Files.write(workdir.resolve("file.txt"), "héllo\n".getBytes(UTF_8));
+    FileContent content = FileContent.read(file);
+
+    assertThat(content.isBinary()).isFalse();
+    assertThat(content.decode()).isEqualTo("héllo\n");
+    assertThat(content.contentEquals("héllo\n".getBytes(UTF_8))).isTrue();
+    assertThat(content.contentEquals("hello\n".getBytes(UTF_8))).isFalse();
+  }
+
+  @Test
+  public void testLargeFileIsMapped() throws IOException {
+    String text = Strings.repeat("0123456789abcdef", (int) FileContent.MMAP_THRESHOLD / 16 + 1);
+    Path file = Files.write(workdir.resolve("large.txt"), text.getBytes(UTF_8));
+    FileContent content = FileContent.read(file);
+
+    assertThat(content.bytes().isDirect()).isTrue();
+    assertThat(content.isBinary()).isFalse();
+    assertThat(content.decode()).isEqualTo(text);
+    assertThat(content.contentEquals(text.getBytes(UTF_8))).isTrue();
+  }
+
+  @Test
+  public void testBinaryDetection() throws IOException {
+    Path file = Files.write(workdir.resolve("file.bin"), new byte[]{'a', 0, 'b'});
+    assertThat(FileContent.read(file).isBinary()).isTrue();
+
+    // Only the beginning of the file is inspected, like git does
+    byte[] lateNul = new byte[10000];
+    Arrays.fill(lateNul, 0, 9999, (byte) 'a');
+    file = Files.write(workdir.resolve("late_nul.txt"), lateNul);
+    assertThat(FileContent.read(file).isBinary()).isFalse();
+  }
+
+  @Test
+  public void testWriteKeepsPermissionsAndLeavesNoTemporaryFiles() throws IOException {
+    Path file = Files.write(workdir.resolve("script.sh"), "old".getBytes(UTF_8));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-x---"));
+
+    FileContent.write(file, "new".getBytes(UTF_8));
+
+    assertThat(new String(Files.readAllBytes(file), UTF_8)).isEqualTo("new");
+    assertThat(Files.getPosixFilePermissions(file)).containsExactlyElementsIn(
+        ImmutableSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_READ,
+            PosixFilePermission.GROUP_EXECUTE));
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(workdir)) {
+      assertThat(files).containsExactly(file);
+    }
+  }
+}
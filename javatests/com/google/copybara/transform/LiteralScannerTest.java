@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LiteralScannerTest {
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+
+  private static LiteralScanner scanner(String... patterns) {
+    List<byte[]> bytes = new ArrayList<>();
+    for (String pattern : patterns) {
+      bytes.add(pattern.getBytes(UTF_8));
+    }
+    return new LiteralScanner(bytes);
+  }
+
+  private static List<Integer> found(LiteralScanner scanner, String content) {
+    BitSet found = scanner.scan(content.getBytes(UTF_8));
+    List<Integer> result = new ArrayList<>();
+    for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  @Test
+  public void testFindsPatterns() {
+    LiteralScanner scanner = scanner("he", "she", "his", "hers");
+    assertThat(found(scanner, "ushers")).containsExactly(0, 1, 3);
+    assertThat(found(scanner, "this")).containsExactly(2);
+    assertThat(found(scanner, "nothing here")).containsExactly(0);
+    assertThat(found(scanner, "")).isEmpty();
+  }
+
+  @Test
+  public void testOverlappingAndRepeatedPatterns() {
+    LiteralScanner scanner = scanner("aab", "ab", "b", "ab");
+    assertThat(found(scanner, "aaab")).containsExactly(0, 1, 2, 3);
+    assertThat(found(scanner, "aba")).containsExactly(1, 2, 3);
+  }
+
+  @Test
+  public void testNonAsciiContent() {
+    LiteralScanner scanner = scanner("café", "été");
+    assertThat(found(scanner, "un café en été")).containsExactly(0, 1);
+    assertThat(found(scanner, "cafe")).isEmpty();
+  }
+
+  @Test
+  public void testNoPatterns() {
+    assertThat(found(new LiteralScanner(ImmutableList.<byte[]>of()), "foo")).isEmpty();
+  }
+
+  @Test
+  public void testEmptyPatternIsRejected() {
+    thrown.expect(IllegalArgumentException.class);
+    scanner("foo", "");
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RegularFileResolverTest {
+
+  private Path workdir;
+  private Path root;
+  private RegularFileResolver files;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("RegularFileResolverTest").toRealPath();
+    root = Files.createDirectories(workdir.resolve("root"));
+    files = new RegularFileResolver(root);
+  }
+
+  @Test
+  public void testResolve() throws IOException {
+    Path file = Files.write(root.resolve("file.txt"), "foo".getBytes(UTF_8));
+    Path link = Files.createSymbolicLink(root.resolve("link"), file.getFileName());
+    Path dirLink = Files.createSymbolicLink(root.resolve("dir_link"), root);
+
+    assertThat(files.resolve(file, attrs(file))).isEqualTo(file);
+    assertThat(files.resolve(link, attrs(link))).isEqualTo(file);
+    assertThat(files.resolve(dirLink, attrs(dirLink))).isNull();
+    assertThat(files.resolve(root, attrs(root))).isNull();
+  }
+
+  @Test
+  public void testIsInTree() throws IOException {
+    Path file = Files.write(root.resolve("file.txt"), "foo".getBytes(UTF_8));
+    Path outside = Files.write(workdir.resolve("outside.txt"), "foo".getBytes(UTF_8));
+    Path outsideLink = Files.createSymbolicLink(root.resolve("outside_link"), outside);
+
+    assertThat(files.isInTree(files.resolve(file, attrs(file)))).isTrue();
+    assertThat(files.isInTree(files.resolve(outsideLink, attrs(outsideLink)))).isFalse();
+  }
+
+  @Test
+  public void testClaim() throws IOException {
+    Path file = Files.write(root.resolve("file.txt"), "foo".getBytes(UTF_8));
+    Path link = Files.createSymbolicLink(root.resolve("link"), file.getFileName());
+
+    assertThat(files.claim(files.resolve(link, attrs(link)))).isTrue();
+    assertThat(files.claim(files.resolve(file, attrs(file)))).isFalse();
+  }
+
+  private static BasicFileAttributes attrs(Path path) throws IOException {
+    return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+  }
+}
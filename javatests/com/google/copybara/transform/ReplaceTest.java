@@ -22,12 +22,15 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Core;
+import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
 import com.google.copybara.VoidOperationException;
+import com.google.copybara.WorkflowOptions;
 import com.google.copybara.testing.FileSubjects;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.ContentCache;
 import com.google.copybara.util.console.testing.TestingConsole;
 import com.google.copybara.util.console.testing.TestingConsole.MessageType;
 import java.io.IOException;
@@ -448,6 +451,150 @@ public final class ReplaceTest {
         .onceInLog(MessageType.WARNING, ".*BEFORE.*lulz.*didn't affect the workdir[.]");
   }
 
+  @Test
+  public void consecutiveReplacesInSequence() throws Exception {
+    Transformation transformation = skylark.eval("t", "t = core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'bar', after = 'baz', paths = glob(['*.java'])),\n"
+        + "    core.replace(before = 'baz', after = 'qux'),\n"
+        + "  ],\n"
+        + "  reversal = [],\n"
+        + ")");
+    writeFile(checkoutDir.resolve("file.txt"), "foo bar baz");
+    writeFile(checkoutDir.resolve("file.java"), "foo bar baz");
+
+    transformation.transform(TransformWorks.of(checkoutDir, "testmsg"), console);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "bar bar qux")
+        .containsFile("file.java", "qux qux qux")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void consecutiveReplacesInSequenceReportNoopForEachReplace() throws Exception {
+    options.workflowOptions.ignoreNoop = true;
+    Transformation transformation = skylark.eval("t", "t = core.transform([\n"
+        + "    core.replace(before = 'FIRST_NOT_FOUND', after = 'bar'),\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'bar', after = 'foo'),\n"
+        + "    core.replace(before = 'SECOND_NOT_FOUND', after = 'bar'),\n"
+        + "  ],\n"
+        + "  reversal = [],\n"
+        + ")");
+    writeFile(checkoutDir.resolve("file.txt"), "foo");
+
+    transformation.transform(TransformWorks.of(checkoutDir, "testmsg"), console);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "foo")
+        .containsNoMoreFiles();
+    console.assertThat()
+        .onceInLog(MessageType.WARNING, ".*FIRST_NOT_FOUND.*didn't affect the workdir[.]")
+        .onceInLog(MessageType.WARNING, ".*SECOND_NOT_FOUND.*didn't affect the workdir[.]")
+        .timesInLog(2, MessageType.WARNING, ".*didn't affect the workdir[.]");
+  }
+
+  @Test
+  public void binaryFilesAreSkipped() throws Exception {
+    options.workflowOptions.replaceSkipBinaryFiles = true;
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + ")");
+    byte[] binary = new byte[]{'f', 'o', 'o', 0, (byte) 0xff};
+    Files.write(checkoutDir.resolve("file.bin"), binary);
+    writeFile(checkoutDir.resolve("file.txt"), "foo");
+
+    transform(replace);
+
+    assertThat(Files.readAllBytes(checkoutDir.resolve("file.bin"))).isEqualTo(binary);
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "bar");
+  }
+
+  @Test
+  public void filesWithNulBytesAreReplacedByDefault() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + ")");
+    Files.write(checkoutDir.resolve("file.bin"), new byte[]{'f', 'o', 'o', 0});
+
+    transform(replace);
+
+    assertThat(Files.readAllBytes(checkoutDir.resolve("file.bin")))
+        .isEqualTo(new byte[]{'b', 'a', 'r', 0});
+  }
+
+  @Test
+  public void cacheIsDisabledByDefault() throws Exception {
+    options.workflowOptions = new WorkflowOptions(Files.createTempDirectory("home").toString());
+
+    assertThat(options.workflowOptions.getTransformCache()).isNull();
+  }
+
+  @Test
+  public void resultsAreReusedFromCache() throws Exception {
+    enableCache();
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo${x}',\n"
+        + "  after = 'bar${x}',\n"
+        + "  regex_groups = {\n"
+        + "       'x' : '[0-9 ,]',\n"
+        + "  },\n"
+        + ")");
+    writeFile(checkoutDir.resolve("changed.txt"), "foo1");
+    writeFile(checkoutDir.resolve("comment.txt"), "// foo, not fo");
+    writeFile(checkoutDir.resolve("noop.txt"), "food");
+    writeFile(checkoutDir.resolve("other.txt"), "other");
+    transform(replace);
+    ContentCache cache = options.workflowOptions.getTransformCache();
+    assertThat(cache.getHits()).isEqualTo(0);
+    assertThat(cache.getMisses()).isEqualTo(3);
+
+    checkoutDir = Files.createTempDirectory("checkout");
+    writeFile(checkoutDir.resolve("changed.txt"), "foo1");
+    writeFile(checkoutDir.resolve("comment.txt"), "// foo, not fo");
+    writeFile(checkoutDir.resolve("noop.txt"), "food");
+    writeFile(checkoutDir.resolve("new.txt"), "foo foo2");
+    transform(replace);
+
+    // The result of noop.txt is not stored
+    assertThat(cache.getHits()).isEqualTo(2);
+    assertThat(cache.getMisses()).isEqualTo(5);
+    assertThatPath(checkoutDir)
+        .containsFile("changed.txt", "bar1")
+        .containsFile("comment.txt", "// bar, not fo")
+        .containsFile("noop.txt", "food")
+        .containsFile("new.txt", "bar bar2")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void cacheKeyDoesNotDependOnTheOrderOfTheGroups() throws Exception {
+    enableCache();
+    writeFile(checkoutDir.resolve("file.txt"), "a1b2");
+    transform(eval("core.replace(\n"
+        + "  before = 'a${x}b${y}',\n"
+        + "  after = '${y}${x}',\n"
+        + "  regex_groups = {'x' : '[0-9]', 'y' : '[0-9]'},\n"
+        + ")"));
+
+    checkoutDir = Files.createTempDirectory("checkout");
+    writeFile(checkoutDir.resolve("file.txt"), "a1b2");
+    transform(eval("core.replace(\n"
+        + "  before = 'a${x}b${y}',\n"
+        + "  after = '${y}${x}',\n"
+        + "  regex_groups = {'y' : '[0-9]', 'x' : '[0-9]'},\n"
+        + ")"));
+
+    assertThat(options.workflowOptions.getTransformCache().getHits()).isEqualTo(1);
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "21")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void useDollarSignInAfter() throws Exception {
     Replace replace = eval("core.replace(\n"
@@ -713,6 +860,219 @@ public final class ReplaceTest {
             + "foo\n");
   }
 
+  @Test
+  public void linesWithoutRequiredLiteralAreSkipped() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo${x}',\n"
+        + "  after = 'bar${x}',\n"
+        + "  regex_groups = {\n"
+        + "       'x' : '[0-9]+',\n"
+        + "  },\n"
+        + ")");
+    assertThat(replace.replacer().requiredLiteral()).isEqualTo("foo");
+
+    writeFile(checkoutDir.resolve("file"), ""
+        + "no match\n"
+        + "a foo\n"
+        + "b foo1\n"
+        + "\n"
+        + "c foo22 foo foo3\n"
+        + "foo");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", ""
+            + "no match\n"
+            + "a foo\n"
+            + "b bar1\n"
+            + "\n"
+            + "c bar22 foo bar3\n"
+            + "foo");
+  }
+
+  @Test
+  public void matchStartsBeforeRequiredLiteral() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = '${x}foo',\n"
+        + "  after = '${x}bar',\n"
+        + "  regex_groups = {\n"
+        + "       'x' : '[a-z]+',\n"
+        + "  },\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), ""
+        + "1 abcfoo\n"
+        + "2 foo xyzfoo\n");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", ""
+            + "1 abcbar\n"
+            + "2 foo xyzbar\n");
+  }
+
+  @Test
+  public void requiredLiteralWithNewlineOnlyMatchesMultiline() throws Exception {
+    String content = "foo\nbar\n";
+
+    Replace lineByLine = eval("core.replace(\n"
+        + "  before = 'foo\\nbar',\n"
+        + "  after = 'baz',\n"
+        + ")");
+    assertThat(lineByLine.replacer().replace(content)).isSameAs(content);
+
+    Replace multiline = eval("core.replace(\n"
+        + "  before = 'foo\\nbar',\n"
+        + "  after = 'baz',\n"
+        + "  multiline = True,\n"
+        + ")");
+    assertThat(multiline.replacer().replace(content)).isEqualTo("baz\n");
+  }
+
+  @Test
+  public void firstOnlyMultilineAcrossLines() throws Exception {
+    Replace replace = eval(""
+        + "core.replace("
+        + "  before = 'foo\\nbar',"
+        + "  after = 'baz',"
+        + "  first_only = True,"
+        + "  multiline = True,"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), ""
+        + "x foo\n"
+        + "bar foo\n"
+        + "bar");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", ""
+            + "x baz foo\n"
+            + "bar");
+  }
+
+  @Test
+  public void lastLineWithoutNewline() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + ")");
+
+    assertThat(replace.replacer().replace("foo\nfoo")).isEqualTo("bar\nbar");
+    assertThat(replace.replacer().replace("foo")).isEqualTo("bar");
+    assertThat(replace.replacer().replace("foo\n")).isEqualTo("bar\n");
+    assertThat(replace.replacer().replace("x\n\nfoo")).isEqualTo("x\n\nbar");
+  }
+
+  @Test
+  public void crlfLineEndingsArePreserved() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), "a foo\r\nb\r\nfoo c\r\nfoo");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", "a bar\r\nb\r\nbar c\r\nbar");
+  }
+
+  @Test
+  public void endOfLineBeforeCarriageReturn() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo${eol}',\n"
+        + "  after = 'bar${eol}',\n"
+        + "  regex_groups = {\n"
+        + "       'eol' : '\\r?$',\n"
+        + "  },\n"
+        + ")");
+
+    assertThat(replace.replacer().replace("a foo\r\nb foo\nfoo c\r\n"))
+        .isEqualTo("a bar\r\nb bar\nfoo c\r\n");
+  }
+
+  @Test
+  public void unchangedContentIsReturnedAsIs() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo${x}',\n"
+        + "  after = 'bar${x}',\n"
+        + "  regex_groups = {\n"
+        + "       'x' : '[0-9]+',\n"
+        + "  },\n"
+        + ")");
+    // Without the required literal
+    String content = "no match\nat all\n";
+    assertThat(replace.replacer().replace(content)).isSameAs(content);
+    // With the required literal, but not matching
+    content = "a foo\nb foo\n";
+    assertThat(replace.replacer().replace(content)).isSameAs(content);
+    content = "";
+    assertThat(replace.replacer().replace(content)).isSameAs(content);
+
+    Replace multiline = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + "  multiline = True,\n"
+        + ")");
+    content = "no match\n";
+    assertThat(multiline.replacer().replace(content)).isSameAs(content);
+  }
+
+  @Test
+  public void symlinkTargetsAreReplacedOnce() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'foofoo',\n"
+        + ")");
+    Path outside = writeFile(checkoutDir.resolve("outside.txt"), "foo");
+    checkoutDir = Files.createDirectories(checkoutDir.resolve("checkout"));
+    writeFile(checkoutDir.resolve("target.txt"), "foo");
+    Files.createSymbolicLink(checkoutDir.resolve("link.txt"), checkoutDir.resolve("target.txt"));
+    Files.createSymbolicLink(checkoutDir.resolve("other_link.txt"),
+        checkoutDir.resolve("link.txt"));
+    Files.createSymbolicLink(checkoutDir.resolve("outside_link.txt"), outside);
+    transform(replace);
+
+    // The target is modified once, even if several links point to it
+    assertThatPath(checkoutDir)
+        .containsFile("target.txt", "foofoo");
+    assertThat(Files.isSymbolicLink(checkoutDir.resolve("link.txt"))).isTrue();
+    assertThat(Files.isSymbolicLink(checkoutDir.resolve("other_link.txt"))).isTrue();
+    // Files outside of the checkout are not modified
+    assertThat(Files.isSymbolicLink(checkoutDir.resolve("outside_link.txt"))).isTrue();
+    assertThat(new String(Files.readAllBytes(outside), UTF_8)).isEqualTo("foo");
+  }
+
+  @Test
+  public void symlinkTargetsNotMatchingPathsAreReplaced() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after = 'bar',\n"
+        + "  paths = glob(['a/**']),\n"
+        + ")");
+    Files.createDirectories(checkoutDir.resolve("a"));
+    Files.createDirectories(checkoutDir.resolve("b"));
+    writeFile(checkoutDir.resolve("b/x"), "foo");
+    writeFile(checkoutDir.resolve("b/y"), "foo");
+    Files.createSymbolicLink(checkoutDir.resolve("a/x"),
+        checkoutDir.getFileSystem().getPath("../b/x"));
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("b/x", "bar")
+        .containsFile("b/y", "foo");
+    assertThat(Files.isSymbolicLink(checkoutDir.resolve("a/x"))).isTrue();
+  }
+
+  private void enableCache() throws IOException {
+    options.workflowOptions =
+        new WorkflowOptions(Files.createTempDirectory("home").toString());
+    options.workflowOptions.ignoreNoop = true;
+    options.workflowOptions.useTransformCache = true;
+    skylark = new SkylarkTestExecutor(options, Core.class);
+  }
+
   private Replace eval(String replace) throws ValidationException {
     return skylark.eval("r", "r = " + replace);
   }
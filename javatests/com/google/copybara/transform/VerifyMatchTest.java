@@ -1,6 +1,8 @@
 package com.google.copybara.transform;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Core;
@@ -131,6 +133,46 @@ public final class VerifyMatchTest {
         "File 'folder/file1.txt' failed validation 'Verify match foo'");
   }
 
+  @Test
+  public void testSymlinkTargetIsValidated() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  paths = glob(['a/**']),\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    Files.createDirectories(checkoutDir.resolve("a"));
+    Files.createDirectories(checkoutDir.resolve("b"));
+    writeFile(checkoutDir.resolve("b/x"), "foo");
+    Files.createSymbolicLink(checkoutDir.resolve("a/x"),
+        checkoutDir.getFileSystem().getPath("../b/x"));
+
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("1 file(s) failed the validation of Verify match 'foo'.");
+    transform(transformation);
+  }
+
+  @Test
+  public void testSymlinkOutsideOfTheCheckoutFails() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    Path outside = writeFile(checkoutDir.resolve("outside.txt"), "bar");
+    checkoutDir = Files.createDirectories(checkoutDir.resolve("checkout"));
+    Files.createSymbolicLink(checkoutDir.resolve("link.txt"), outside);
+
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e.getMessage())
+          .isEqualTo("1 file(s) failed the validation of Verify match 'foo'.");
+    }
+    console.assertThat().onceInLog(TestingConsole.MessageType.ERROR,
+        "File '/checkout/link.txt' cannot be validated by 'Verify match 'foo'': it is a symlink"
+            + " to '/outside.txt', outside of the checkout.");
+  }
+
   @Test
   public void testApacheLicense() throws Exception {
     VerifyMatch transformation = eval("core.verify_match(\n"
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ContentCacheTest {
+
+  private static final long MAX_SIZE = 1024 * 1024;
+
+  private Path dir;
+  private ContentCache cache;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("ContentCacheTest");
+    cache = new ContentCache(dir.resolve("cache"), MAX_SIZE);
+  }
+
+  @Test
+  public void testGetAndPut() throws IOException {
+    String key = ContentCache.key("fingerprint", bytes("content"));
+
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, "value".getBytes(UTF_8));
+    assertThat(new String(cache.get(key), UTF_8)).isEqualTo("value");
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+
+    // A different instance over the same directory sees the entry
+    assertThat(new ContentCache(dir.resolve("cache"), MAX_SIZE).get(key)).isNotNull();
+  }
+
+  @Test
+  public void testKeyDependsOnFingerprintAndContent() {
+    String key = ContentCache.key("fingerprint", bytes("content"));
+
+    assertThat(ContentCache.key("fingerprint", bytes("content"))).isEqualTo(key);
+    assertThat(ContentCache.key("other", bytes("content"))).isNotEqualTo(key);
+    assertThat(ContentCache.key("fingerprint", bytes("other"))).isNotEqualTo(key);
+    // The boundary between fingerprint and content is part of the key
+    assertThat(ContentCache.key("fingerprintc", bytes("ontent"))).isNotEqualTo(key);
+  }
+
+  @Test
+  public void testKeyDoesNotConsumeBuffer() {
+    ByteBuffer content = bytes("content");
+    ContentCache.key("fingerprint", content);
+    assertThat(content.remaining()).isEqualTo("content".length());
+  }
+
+  @Test
+  public void testIOErrorsAreIgnored() throws IOException {
+    Path file = Files.write(dir.resolve("file"), new byte[0]);
+    ContentCache broken = new ContentCache(file, MAX_SIZE);
+    String key = ContentCache.key("fingerprint", bytes("content"));
+
+    broken.put(key, "value".getBytes(UTF_8));
+    assertThat(broken.get(key)).isNull();
+    assertThat(broken.getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+    Path cacheDir = dir.resolve("small");
+    ContentCache small = new ContentCache(cacheDir, /*maxSize=*/400);
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      String key = ContentCache.key("fingerprint", bytes("content" + i));
+      keys.add(key);
+      small.put(key, new byte[100]);
+      // Make sure that the entries have different modification times
+      setLastModified(cacheDir, key, i);
+    }
+    // The oldest entry is used, so it is not evicted
+    assertThat(small.get(keys.get(0))).isNotNull();
+    setLastModified(cacheDir, keys.get(0), 10);
+
+    // Over the maximum size: trimmed to three quarters of it
+    String newKey = ContentCache.key("fingerprint", bytes("content4"));
+    small.put(newKey, new byte[100]);
+
+    assertThat(small.get(keys.get(0))).isNotNull();
+    assertThat(small.get(keys.get(1))).isNull();
+    assertThat(small.get(keys.get(2))).isNull();
+    assertThat(small.get(keys.get(3))).isNotNull();
+    assertThat(small.get(newKey)).isNotNull();
+  }
+
+  @Test
+  public void testExistingEntriesCountTowardsTheMaximumSize() throws IOException {
+    Path cacheDir = dir.resolve("shared");
+    String key = ContentCache.key("fingerprint", bytes("content"));
+    new ContentCache(cacheDir, /*maxSize=*/250).put(key, new byte[200]);
+    setLastModified(cacheDir, key, 0);
+
+    ContentCache cache = new ContentCache(cacheDir, /*maxSize=*/250);
+    String otherKey = ContentCache.key("fingerprint", bytes("other"));
+    cache.put(otherKey, new byte[100]);
+
+    assertThat(cache.get(key)).isNull();
+    assertThat(cache.get(otherKey)).isNotNull();
+  }
+
+  private static void setLastModified(Path cacheDir, String key, long seconds)
+      throws IOException {
+    Files.setLastModifiedTime(cacheDir.resolve(key.substring(0, 2)).resolve(key.substring(2)),
+        FileTime.fromMillis(seconds * 1000));
+  }
+
+  private static ByteBuffer bytes(String content) {
+    return ByteBuffer.wrap(content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.FileSubjects.assertThatPath;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DirectoryCleanerTest {
+
+  private Path parent;
+  private Path workdir;
+  private Path outside;
+
+  @Before
+  public void setup() throws Exception {
+    parent = Files.createTempDirectory("parent");
+    workdir = Files.createDirectories(parent.resolve("workdir"));
+    outside = touch(Files.createTempDirectory("outside").resolve("file"));
+    touch(workdir.resolve("checkout/foo"));
+    touch(workdir.resolve("checkout/some/folder/bar"));
+    touch(workdir.resolve("origin/foo"));
+    Files.createDirectories(workdir.resolve("empty"));
+    Files.createSymbolicLink(workdir.resolve("link"), outside);
+  }
+
+  @Test
+  public void cleanInPlace() throws Exception {
+    new DirectoryCleaner(/*async=*/false).clean(workdir);
+
+    assertThat(list(workdir)).isEmpty();
+    assertThat(list(parent)).containsExactly("workdir");
+    // Symlinks are not followed
+    assertThatPath(outside.getParent()).containsFile("file", "abc");
+  }
+
+  @Test
+  public void cleanInBackground() throws Exception {
+    DirectoryCleaner cleaner = new DirectoryCleaner(/*async=*/true);
+
+    cleaner.clean(workdir);
+
+    assertThat(list(workdir)).isEmpty();
+    cleaner.awaitBackgroundDeletions();
+    // The trash directory is deleted once it is empty
+    assertThat(list(parent)).containsExactly("workdir");
+    assertThatPath(outside.getParent()).containsFile("file", "abc");
+  }
+
+  @Test
+  public void leftoverTrashIsDeleted() throws Exception {
+    // Left behind by a previous process
+    Path leftover = parent.resolve(DirectoryCleaner.TRASH_DIR_PREFIX + "previous");
+    touch(leftover.resolve(DirectoryCleaner.LOCK_FILE));
+    touch(leftover.resolve("workdir-1/file"));
+    DirectoryCleaner cleaner = new DirectoryCleaner(/*async=*/true);
+
+    cleaner.clean(workdir);
+
+    cleaner.awaitBackgroundDeletions();
+    assertThat(list(parent)).containsExactly("workdir");
+  }
+
+  @Test
+  public void trashOfLiveProcessesAndSymlinksAreNotDeleted() throws Exception {
+    Path live = parent.resolve(DirectoryCleaner.TRASH_DIR_PREFIX + "live");
+    touch(live.resolve("workdir-1/file"));
+    Path link = Files.createSymbolicLink(
+        parent.resolve(DirectoryCleaner.TRASH_DIR_PREFIX + "link"), outside.getParent());
+    touch(outside.getParent().resolve(DirectoryCleaner.LOCK_FILE));
+    DirectoryCleaner cleaner = new DirectoryCleaner(/*async=*/true);
+
+    try (FileChannel lock = FileChannel.open(touch(live.resolve(DirectoryCleaner.LOCK_FILE)),
+        StandardOpenOption.WRITE)) {
+      lock.lock();
+      cleaner.clean(workdir);
+      cleaner.awaitBackgroundDeletions();
+    }
+
+    assertThat(list(parent)).containsExactly(
+        "workdir", live.getFileName().toString(), link.getFileName().toString());
+    assertThatPath(live).containsFile("workdir-1/file", "abc");
+    assertThatPath(outside.getParent()).containsFile("file", "abc");
+  }
+
+  @Test
+  public void cleanInBackgroundTwice() throws Exception {
+    DirectoryCleaner cleaner = new DirectoryCleaner(/*async=*/true);
+    cleaner.clean(workdir);
+    touch(workdir.resolve("checkout/foo"));
+
+    cleaner.clean(workdir);
+
+    assertThat(list(workdir)).isEmpty();
+    cleaner.awaitBackgroundDeletions();
+    assertThat(list(parent)).containsExactly("workdir");
+  }
+
+  @Test
+  public void cleanKeepingSomeEntries() throws Exception {
+    DirectoryCleaner cleaner = new DirectoryCleaner(/*async=*/true);
+
+    cleaner.clean(workdir, ImmutableSet.of(workdir.resolve("checkout")));
+
+    assertThat(list(workdir)).containsExactly("checkout");
+    assertThatPath(workdir)
+        .containsFile("checkout/foo", "abc")
+        .containsFile("checkout/some/folder/bar", "abc")
+        .containsNoMoreFiles();
+    cleaner.awaitBackgroundDeletions();
+    assertThat(list(parent)).containsExactly("workdir");
+  }
+
+  private static List<String> list(Path dir) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+      for (Path entry : entries) {
+        names.add(entry.getFileName().toString());
+      }
+    }
+    return names;
+  }
+
+  private static Path touch(Path path) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, "abc".getBytes());
+    return path;
+  }
+}
@@ -21,10 +21,14 @@ import static com.google.copybara.testing.FileSubjects.assertThatPath;
 
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.Random;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -124,6 +128,84 @@ public class FileUtilTest {
         .isEqualTo(absoluteTarget.toString());
   }
 
+  @Test
+  public void testCopyInParallel() throws Exception {
+    Path one = Files.createTempDirectory("one");
+    Path two = Files.createTempDirectory("two");
+    for (int i = 0; i < 20; i++) {
+      touch(one.resolve("dir" + i % 4 + "/file" + i));
+    }
+    byte[] big = new byte[3 * 1024 * 1024 + 7];
+    new Random(0).nextBytes(big);
+    Files.write(one.resolve("dir0/big"), big);
+    Files.setPosixFilePermissions(one.resolve("dir0/big"),
+        ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_READ));
+    Files.createSymbolicLink(one.resolve("dir1/link"), one.getFileSystem().getPath("../dir0"));
+    Files.createDirectories(one.resolve("empty"));
+    FileTime time = FileTime.fromMillis(1_000_000_000_000L);
+    Files.setLastModifiedTime(one.resolve("dir0/big"), time);
+
+    FileUtil.copyFilesRecursively(one, two, /*parallelism=*/4);
+
+    for (int i = 0; i < 20; i++) {
+      assertThatPath(two).containsFile("dir" + i % 4 + "/file" + i, "abc");
+    }
+    assertThat(Files.readAllBytes(two.resolve("dir0/big"))).isEqualTo(big);
+    assertThat(Files.isExecutable(two.resolve("dir0/big"))).isTrue();
+    assertThat(Files.getPosixFilePermissions(two.resolve("dir0/big"))).containsExactly(
+        PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_READ);
+    assertThat(Files.getLastModifiedTime(two.resolve("dir0/big"))).isEqualTo(time);
+    // Symlinks to directories are copied as symlinks, not followed
+    assertThat(Files.readSymbolicLink(two.resolve("dir1/link")).toString()).isEqualTo("../dir0");
+    assertThat(Files.isDirectory(two.resolve("empty"))).isTrue();
+
+    // Like the sequential copy, it doesn't overwrite files
+    Path three = Files.createTempDirectory("three");
+    Files.createDirectories(three.resolve("dir0"));
+    Files.write(three.resolve("dir0/big"), new byte[0]);
+    thrown.expect(FileAlreadyExistsException.class);
+    FileUtil.copyFilesRecursively(one, three, /*parallelism=*/4);
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Path one = Files.createTempDirectory("one");
+    Path two = Files.createTempDirectory("two");
+    Files.setPosixFilePermissions(touch(one.resolve("foo")),
+        ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_READ,
+            PosixFilePermission.OWNER_WRITE));
+    touch(one.resolve("some/folder/bar"));
+    Files.createSymbolicLink(one.resolve("some/folder/baz"),
+        one.getFileSystem().getPath("../../foo"));
+
+    FileUtil.snapshotFilesRecursively(one, two);
+
+    assertThatPath(two)
+        .containsFile("foo", "abc")
+        .containsFile("some/folder/bar", "abc")
+        .containsFile("some/folder/baz", "abc")
+        .containsNoMoreFiles();
+    assertThat(Files.isExecutable(two.resolve("foo"))).isTrue();
+    assertThat(Files.readSymbolicLink(two.resolve("some/folder/baz")).toString())
+        .isEqualTo(two.getFileSystem().getPath("../../foo").toString());
+    // The content is shared, not copied
+    assertThat(Files.isSameFile(one.resolve("foo"), two.resolve("foo"))).isTrue();
+
+    // Replacing a file in one tree doesn't change the other one
+    Path tmp = Files.write(one.resolve("some/folder/tmp"), "new content".getBytes());
+    Files.move(tmp, one.resolve("some/folder/bar"), StandardCopyOption.REPLACE_EXISTING);
+    assertThatPath(one)
+        .containsFile("foo", "abc")
+        .containsFile("some/folder/bar", "new content")
+        .containsFile("some/folder/baz", "abc")
+        .containsNoMoreFiles();
+    assertThatPath(two)
+        .containsFile("foo", "abc")
+        .containsFile("some/folder/bar", "abc")
+        .containsFile("some/folder/baz", "abc")
+        .containsNoMoreFiles();
+  }
+
   private Path touch(Path path) throws IOException {
     Files.createDirectories(path.getParent());
     Files.write(path, "abc".getBytes());
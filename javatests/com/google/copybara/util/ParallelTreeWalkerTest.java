@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.util.ParallelTreeWalker.FileProcessor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelTreeWalkerTest {
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+
+  private Path root;
+
+  @Before
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("ParallelTreeWalkerTest");
+    for (String path : ImmutableList.of(
+        "a.txt", "b/c.txt", "b/d/e.txt", "b/d/f.txt", "g/h.txt", "i.txt")) {
+      Path file = root.resolve(path);
+      Files.createDirectories(file.getParent());
+      Files.write(file, path.getBytes());
+    }
+  }
+
+  @Test
+  public void testSortedOrder() throws IOException {
+    List<Path> expected = new ArrayList<>();
+    for (String path : ImmutableList.of(
+        "a.txt", "b/c.txt", "b/d/e.txt", "b/d/f.txt", "g/h.txt", "i.txt")) {
+      expected.add(root.resolve(path));
+    }
+
+    for (int parallelism : new int[]{1, 2, 8}) {
+      assertThat(ParallelTreeWalker.walk(root, new FileProcessor<Path>() {
+        @Override
+        public Path process(Path file, BasicFileAttributes attrs) {
+          return file;
+        }
+      }, parallelism)).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void testFilesRewrittenDuringTheWalk() throws IOException {
+    Path dir = Files.createTempDirectory("rewritten");
+    List<Path> expected = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      expected.add(Files.write(dir.resolve(String.format("file%03d.txt", i)), "x".getBytes()));
+    }
+
+    // Replaces every file atomically, like the transformations do
+    List<Path> result = ParallelTreeWalker.walk(dir, new FileProcessor<Path>() {
+      @Override
+      public Path process(Path file, BasicFileAttributes attrs) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        Files.write(tmp, (new String(Files.readAllBytes(file)) + "x").getBytes());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return file;
+      }
+    }, 8);
+
+    assertThat(result).containsExactlyElementsIn(expected).inOrder();
+    for (Path file : expected) {
+      // Processed exactly once
+      assertThat(new String(Files.readAllBytes(file))).isEqualTo("xx");
+    }
+  }
+
+  @Test
+  public void testNullResultsAreSkipped() throws IOException {
+    assertThat(ParallelTreeWalker.walk(root, new FileProcessor<String>() {
+      @Override
+      public String process(Path file, BasicFileAttributes attrs) {
+        return file.startsWith(root.resolve("b/d"))
+            ? root.relativize(file).toString()
+            : null;
+      }
+    }, 4)).containsExactly("b/d/e.txt", "b/d/f.txt");
+  }
+
+  @Test
+  public void testEmptyDirectory() throws IOException {
+    Path empty = Files.createTempDirectory("empty");
+    assertThat(ParallelTreeWalker.walk(empty, new FileProcessor<Path>() {
+      @Override
+      public Path process(Path file, BasicFileAttributes attrs) {
+        return file;
+      }
+    }, 4)).isEmpty();
+  }
+
+  @Test
+  public void testIOExceptionIsPropagated() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Cannot process");
+    ParallelTreeWalker.walk(root, new FileProcessor<Path>() {
+      @Override
+      public Path process(Path file, BasicFileAttributes attrs) throws IOException {
+        if (file.getFileName().toString().equals("e.txt")) {
+          throw new IOException("Cannot process " + file);
+        }
+        return file;
+      }
+    }, 4);
+  }
+
+  @Test
+  public void testInvalidParallelism() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    ParallelTreeWalker.walk(root, new FileProcessor<Path>() {
+      @Override
+      public Path process(Path file, BasicFileAttributes attrs) {
+        return file;
+      }
+    }, 0);
+  }
+}
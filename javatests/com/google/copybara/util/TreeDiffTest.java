@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TreeDiffTest {
+
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private Path left;
+  private Path right;
+
+  @Before
+  public void setUp() throws Exception {
+    Path rootPath = tmpFolder.getRoot().toPath();
+    left = Files.createDirectories(rootPath.resolve("left"));
+    right = Files.createDirectories(rootPath.resolve("right"));
+  }
+
+  @Test
+  public void equalTrees() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    writeFile(left, "b/file2.txt", "bar");
+    writeFile(right, "file1.txt", "foo");
+    writeFile(right, "b/file2.txt", "bar");
+    // Empty directories are ignored
+    Files.createDirectories(right.resolve("c"));
+
+    assertThat(TreeDiff.equal(left, right)).isTrue();
+    assertThat(diff()).isEmpty();
+  }
+
+  @Test
+  public void hardLinksAreEqual() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    FileUtil.snapshotFilesRecursively(left, right);
+
+    assertThat(TreeDiff.equal(left, right)).isTrue();
+  }
+
+  @Test
+  public void differentContent() throws Exception {
+    writeFile(left, "file.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n11\n12\n");
+    writeFile(right, "file.txt", "1\n2\n3\nfour\n5\n6\n7\n8\n9\n10\n11\n12");
+
+    assertThat(TreeDiff.equal(left, right)).isFalse();
+    assertThat(diff()).containsExactly(""
+        + "diff --git a/left/file.txt b/right/file.txt\n"
+        + "--- a/left/file.txt\n"
+        + "+++ b/right/file.txt\n"
+        + "@@ -1,7 +1,7 @@\n"
+        + " 1\n"
+        + " 2\n"
+        + " 3\n"
+        + "-4\n"
+        + "+four\n"
+        + " 5\n"
+        + " 6\n"
+        + " 7\n"
+        + "@@ -9,4 +9,4 @@\n"
+        + " 9\n"
+        + " 10\n"
+        + " 11\n"
+        + "-12\n"
+        + "+12\n"
+        + "\\ No newline at end of file\n");
+  }
+
+  @Test
+  public void sameSizeDifferentContent() throws Exception {
+    writeFile(left, "file.txt", "foo\n");
+    writeFile(right, "file.txt", "bar\n");
+
+    assertThat(TreeDiff.equal(left, right)).isFalse();
+  }
+
+  @Test
+  public void addedDeletedAndBinaryFiles() throws Exception {
+    writeFile(left, "deleted.txt", "foo\nbar\n");
+    writeFile(right, "added.txt", "foo\n");
+    Files.write(right.resolve("binary"), new byte[] {0, 1, 2});
+
+    assertThat(TreeDiff.equal(left, right)).isFalse();
+    assertThat(diff()).containsExactly(""
+            + "diff --git a/left/added.txt b/right/added.txt\n"
+            + "new file mode 100644\n"
+            + "--- /dev/null\n"
+            + "+++ b/right/added.txt\n"
+            + "@@ -0,0 +1 @@\n"
+            + "+foo\n",
+        ""
+            + "diff --git a/left/binary b/right/binary\n"
+            + "new file mode 100644\n"
+            + "Binary files /dev/null and b/right/binary differ\n",
+        ""
+            + "diff --git a/left/deleted.txt b/right/deleted.txt\n"
+            + "deleted file mode 100644\n"
+            + "--- a/left/deleted.txt\n"
+            + "+++ /dev/null\n"
+            + "@@ -1,2 +0,0 @@\n"
+            + "-foo\n"
+            + "-bar\n").inOrder();
+  }
+
+  @Test
+  public void executableBitAndSymlinks() throws Exception {
+    writeFile(left, "script.sh", "echo hello\n");
+    writeFile(right, "script.sh", "echo hello\n");
+    Files.setPosixFilePermissions(right.resolve("script.sh"), ImmutableSet.of(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+        PosixFilePermission.OWNER_EXECUTE));
+    Files.createSymbolicLink(left.resolve("link"), left.getFileSystem().getPath("foo"));
+    Files.createSymbolicLink(right.resolve("link"), right.getFileSystem().getPath("bar"));
+
+    assertThat(TreeDiff.equal(left, right)).isFalse();
+    assertThat(diff()).containsExactly(""
+            + "diff --git a/left/link b/right/link\n"
+            + "--- a/left/link\n"
+            + "+++ b/right/link\n"
+            + "@@ -1 +1 @@\n"
+            + "-foo\n"
+            + "\\ No newline at end of file\n"
+            + "+bar\n"
+            + "\\ No newline at end of file\n",
+        ""
+            + "diff --git a/left/script.sh b/right/script.sh\n"
+            + "old mode 100644\n"
+            + "new mode 100755\n").inOrder();
+  }
+
+  @Test
+  public void editsOverTheLimitReplaceTheChangedLines() throws Exception {
+    List<String> a = new ArrayList<>();
+    List<String> b = new ArrayList<>();
+    a.add("same\n");
+    b.add("same\n");
+    for (int i = 0; i < TreeDiff.MAX_EDITS; i++) {
+      a.add("a" + i + "\n");
+      b.add("b" + i + "\n");
+    }
+    StringBuilder sb = new StringBuilder();
+    TreeDiff.appendHunks(sb, a, b);
+
+    List<String> lines = Arrays.asList(sb.toString().split("\n"));
+    assertThat(lines.get(0)).isEqualTo(String.format(
+        "@@ -1,%d +1,%d @@", TreeDiff.MAX_EDITS + 1, TreeDiff.MAX_EDITS + 1));
+    assertThat(lines.get(1)).isEqualTo(" same");
+    assertThat(lines.get(2)).isEqualTo("-a0");
+    assertThat(lines.get(TreeDiff.MAX_EDITS + 2)).isEqualTo("+b0");
+  }
+
+  private ImmutableList<String> diff() throws IOException {
+    final ImmutableList.Builder<String> diffs = ImmutableList.builder();
+    boolean differ = TreeDiff.diff(left, right, new TreeDiff.FileDiffHandler() {
+      @Override
+      public void fileDiff(String diff) {
+        diffs.add(diff);
+      }
+    });
+    ImmutableList<String> result = diffs.build();
+    assertThat(differ).isEqualTo(!result.isEmpty());
+    return result;
+  }
+
+  private void writeFile(Path parent, String fileName, String fileContents) throws IOException {
+    Path filePath = parent.resolve(fileName);
+    Files.createDirectories(filePath.getParent());
+    Files.write(filePath, fileContents.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -26,6 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -102,6 +104,36 @@ public class ConsoleTest {
     console.promptConfirmation("Do you want to proceed?");
   }
 
+  @Test
+  public void logConsoleFromConcurrentThreads() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Console console = LogConsole.writeOnlyConsole(new PrintStream(out));
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      final int thread = i;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 500; j++) {
+            console.info("message " + thread);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+    assertThat(lines).hasLength(8 * 500);
+    for (String line : lines) {
+      assertThat(line).matches("\\d{8} \\d{2}:\\d{2}:\\d{2}\\.\\d{3} INFO: message \\d");
+    }
+  }
+
   @Test
   public void progressPrefix() throws Exception {
     TestingConsole delegate = new TestingConsole();